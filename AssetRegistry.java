@@ -0,0 +1,228 @@
+import greenfoot.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The sprite stack sheets that spracks can be made of, declared in a
+ * manifest and loaded in the background only once they are first requested.
+ * <p>
+ * The manifest is a text file with one sheet per line, giving the name of the
+ * sheet's image without ".png" and its number of layers:
+ * <pre>
+ * # comment
+ * NAME LAYER_COUNT
+ * </pre>
+ * Reading the manifest decodes no images. Requesting a sheet starts loading
+ * its view through a {@link ViewCacheManager} on a pool of loader threads,
+ * and returns a future of the view. Until the view is ready, a placeholder
+ * view of the same size can be drawn in its place: a plain box with as many
+ * layers as the sheet, shared between every sheet of that size.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class AssetRegistry {
+    /** The directory that Greenfoot loads images from, which sheet sizes are read from. */
+    private static final Path IMAGE_DIRECTORY = Paths.get("images");
+    /** The width and height of the layers of a placeholder whose sheet's size could not be read. */
+    private static final int DEFAULT_PLACEHOLDER_SIZE = 16;
+    /** The color of every layer of a placeholder. */
+    private static final Color PLACEHOLDER_COLOR = new Color(128, 128, 128);
+
+    /** The threads that load sheets, which must not keep the JVM alive. */
+    private static final ExecutorService LOADER_EXECUTOR = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "Asset loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final ViewCacheManager manager;
+    /** The number of layers of every declared sheet, by sheet name. */
+    private final Map<String, Integer> layerCounts;
+    /** The view of every requested sheet, loaded or loading, by sheet name. */
+    private final Map<String, CompletableFuture<SprackView>> views;
+    /** The placeholder of every requested size, keyed by layer width, layer height and layer count. */
+    private final Map<String, SprackView> placeholders;
+    /** The placeholder of each sheet, by sheet name, so that the header of its image is read only once. */
+    private final Map<String, SprackView> sheetPlaceholders;
+
+    /**
+     * Create a new registry with no declared sheets, whose views are created
+     * by the given manager.
+     *
+     * @param manager the manager to register loaded views with
+     */
+    public AssetRegistry(ViewCacheManager manager) {
+        this.manager = manager;
+        layerCounts = new ConcurrentHashMap<>();
+        views = new ConcurrentHashMap<>();
+        placeholders = new ConcurrentHashMap<>();
+        sheetPlaceholders = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Declare every sheet listed in the given manifest.
+     *
+     * @param path the manifest file to read
+     * @throws IOException if the file could not be read or is not a valid manifest
+     */
+    public void readManifest(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException("Malformed sheet manifest line: " + line);
+                }
+                try {
+                    declare(fields[0], Integer.parseInt(fields[1]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Malformed sheet manifest line: " + line, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Declare a sheet that can be requested by name, without loading it.
+     *
+     * @param name the name of the sheet, which is also the name of its image without ".png"
+     * @param layerCount the number of layers in the sheet
+     * @throws IllegalArgumentException if the layer count is not positive
+     */
+    public void declare(String name, int layerCount) {
+        if (layerCount <= 0) {
+            throw new IllegalArgumentException("Sheet \"" + name + "\" must have at least one layer");
+        }
+        layerCounts.put(name, layerCount);
+    }
+
+    /**
+     * Return whether a sheet of the given name has been declared.
+     *
+     * @param name the name of the sheet
+     * @return true if the sheet can be requested
+     */
+    public boolean isDeclared(String name) {
+        return layerCounts.containsKey(name);
+    }
+
+    /**
+     * Return the view of the sheet with the given name, starting to load it
+     * in the background if it has not been requested before.
+     *
+     * @param name the name of the sheet
+     * @return a future completed with the view of the sheet once it is loaded
+     * @throws IllegalArgumentException if no sheet of that name is declared
+     */
+    public CompletableFuture<SprackView> request(String name) {
+        int layerCount = getLayerCount(name);
+        return views.computeIfAbsent(name, key ->
+            CompletableFuture.supplyAsync(() -> manager.register(key, layerCount), LOADER_EXECUTOR));
+    }
+
+    /**
+     * Request every one of the given sheets, such as those used by a level.
+     *
+     * @param names the names of the sheets
+     * @return a future completed once every sheet is loaded
+     * @throws IllegalArgumentException if any sheet is not declared
+     */
+    public CompletableFuture<Void> load(Collection<String> names) {
+        CompletableFuture<?>[] loading = new CompletableFuture<?>[names.size()];
+        Iterator<String> iterator = names.iterator();
+        for (int i = 0; i < loading.length; i++) {
+            loading[i] = request(iterator.next());
+        }
+        return CompletableFuture.allOf(loading);
+    }
+
+    /**
+     * Return the view of the sheet with the given name if it has finished
+     * loading, without waiting for it.
+     *
+     * @param name the name of the sheet
+     * @return the loaded view of the sheet, or null if it is not loaded yet
+     */
+    public SprackView getLoadedView(String name) {
+        CompletableFuture<SprackView> view = views.get(name);
+        if (view == null || !view.isDone() || view.isCompletedExceptionally()) {
+            return null;
+        }
+        return view.join();
+    }
+
+    /**
+     * Return the view to draw in place of the sheet with the given name until
+     * it is loaded: a box with the size and number of layers of the sheet.
+     * Only the header of the sheet's image is read, to find its size, and
+     * only the first time a placeholder of the sheet is requested.
+     *
+     * @param name the name of the sheet
+     * @return the placeholder view of the sheet
+     * @throws IllegalArgumentException if no sheet of that name is declared
+     */
+    public SprackView getPlaceholder(String name) {
+        int layerCount = getLayerCount(name);
+        return sheetPlaceholders.computeIfAbsent(name, key -> createPlaceholder(key, layerCount));
+    }
+
+    /**
+     * Return the placeholder of the size of the sheet with the given name,
+     * reading the size from the header of its image.
+     */
+    private SprackView createPlaceholder(String name, int layerCount) {
+        int width = DEFAULT_PLACEHOLDER_SIZE;
+        int height = DEFAULT_PLACEHOLDER_SIZE * layerCount;
+        try (ImageInputStream input = ImageIO.createImageInputStream(IMAGE_DIRECTORY.resolve(name + ".png").toFile())) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            // Draw a placeholder of the default size instead
+        }
+        int layerWidth = width;
+        int layerHeight = Math.max(1, height / layerCount);
+        return placeholders.computeIfAbsent(layerWidth + "x" + layerHeight + "x" + layerCount, key -> {
+            GreenfootImage sheet = new GreenfootImage(layerWidth, layerHeight * layerCount);
+            sheet.setColor(PLACEHOLDER_COLOR);
+            sheet.fill();
+            return manager.register("placeholder " + key, sheet, layerCount);
+        });
+    }
+
+    private int getLayerCount(String name) {
+        Integer layerCount = layerCounts.get(name);
+        if (layerCount == null) {
+            throw new IllegalArgumentException("No sheet \"" + name + "\" is declared");
+        }
+        return layerCount;
+    }
+}
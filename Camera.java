@@ -1,19 +1,31 @@
 /**
- * The class containing a position, rotation, and zoom factor used to control
- * where spracks are rendered on the visible viewport.
+ * A position, rotation, and zoom factor used to control where spracks are
+ * rendered on a {@link Viewport}.
+ * <p>
+ * Each viewport of a {@link FramePipeline} has a camera of its own, so a
+ * world can be drawn from several cameras in the same frame. Cameras are
+ * moved by simulation ticks and captured at the end of each batch of ticks,
+ * so they should only be changed by ticks or while no ticks are running.
  *
  * @author Martin Baldwin
  * @version May 2024
  */
 public class Camera {
-    // Don't let anyone instantiate this class
-    private Camera() {}
+    private double x;
+    private double y;
+    private double rotation;
+    private double zoom;
+    private double maxZoom;
+    private double closeness;
 
-    private static double x;
-    private static double y;
-    private static double rotation;
-    private static double zoom;
-    private static double closeness;
+    /**
+     * Create a new camera at the origin, unrotated and with a zoom factor of
+     * 0.0, that snaps directly to its targets.
+     */
+    public Camera() {
+        maxZoom = SprackView.IMAGE_CACHE_SCALE;
+        closeness = 1.0;
+    }
 
     /**
      * Set the factor by which the {@link #targetLocation} and {@link targetRotation}
@@ -23,11 +35,11 @@ public class Camera {
      *
      * @param closeness the interpolation factor of position and rotation, in the range [0.0, 1.0]
      */
-    public static void setCloseness(double closeness) {
+    public void setCloseness(double closeness) {
         if (closeness < 0.0 || closeness > 1.0) {
             throw new IllegalArgumentException("Camera closeness factor must be between 0.0 and 1.0");
         }
-        Camera.closeness = closeness;
+        this.closeness = closeness;
     }
 
     /**
@@ -36,9 +48,9 @@ public class Camera {
      * @param x the x position to interpolate towards
      * @param y the y position to interpolate towards
      */
-    public static void targetLocation(double x, double y) {
-        Camera.x += (x - Camera.x) * closeness;
-        Camera.y += (y - Camera.y) * closeness;
+    public void targetLocation(double x, double y) {
+        this.x += (x - this.x) * closeness;
+        this.y += (y - this.y) * closeness;
     }
 
     /**
@@ -46,34 +58,50 @@ public class Camera {
      *
      * @param rotation the angle to interpolate towards, in degrees
      */
-    public static void targetRotation(double rotation) {
+    public void targetRotation(double rotation) {
         rotation = Vector2.normalizeAngle(rotation);
-        double diff = rotation - Camera.rotation;
+        double diff = rotation - this.rotation;
         if (diff > 180.0) {
             diff -= 360.0;
         } else if (diff < -180.0) {
             diff += 360.0;
         }
-        Camera.rotation = Vector2.normalizeAngle(Camera.rotation + diff * closeness);
+        this.rotation = Vector2.normalizeAngle(this.rotation + diff * closeness);
     }
 
     /**
      * Set the zoom factor of the camera.
      * <p>
-     * If the given zoom factor is greater than {@link SprackView#IMAGE_CACHE_SCALE},
+     * If the given zoom factor is greater than the {@link #setMaxZoom maximum zoom factor},
      * the camera's zoom factor will be clamped to that value.
      *
      * @return the zoom factor of the camera
      * @throws IllegalArgumentException if the given zoom factor is negative
      */
-    public static void setZoom(double zoom) {
+    public void setZoom(double zoom) {
         if (zoom < 0) {
             throw new IllegalArgumentException("Zoom factor must not be negative");
-        } else if (zoom > SprackView.IMAGE_CACHE_SCALE) {
-            Camera.zoom = SprackView.IMAGE_CACHE_SCALE;
+        } else if (zoom > maxZoom) {
+            this.zoom = maxZoom;
         } else {
-            Camera.zoom = zoom;
+            this.zoom = zoom;
+        }
+    }
+
+    /**
+     * Set the largest zoom factor that the camera can have, clamping the
+     * current zoom factor to it. This defaults to {@link SprackView#IMAGE_CACHE_SCALE},
+     * the largest zoom factor at which cached sprack images can be drawn.
+     *
+     * @param maxZoom the maximum zoom factor of the camera
+     * @throws IllegalArgumentException if the given zoom factor is not positive
+     */
+    public void setMaxZoom(double maxZoom) {
+        if (!(maxZoom > 0.0)) {
+            throw new IllegalArgumentException("Maximum zoom factor must be positive");
         }
+        this.maxZoom = maxZoom;
+        setZoom(zoom);
     }
 
     /**
@@ -84,10 +112,10 @@ public class Camera {
      * @param rotation the rotation angle to set the camera to
      * @param zoom the zoom factor to set the camera to
      */
-    public static void resetTo(double x, double y, double rotation, double zoom) {
-        Camera.x = x;
-        Camera.y = y;
-        Camera.rotation = Vector2.normalizeAngle(rotation);
+    public void resetTo(double x, double y, double rotation, double zoom) {
+        this.x = x;
+        this.y = y;
+        this.rotation = Vector2.normalizeAngle(rotation);
         setZoom(zoom);
     }
 
@@ -96,7 +124,7 @@ public class Camera {
      *
      * @return the x position of the camera, in world coordinates
      */
-    public static double getX() {
+    public double getX() {
         return x;
     }
 
@@ -105,7 +133,7 @@ public class Camera {
      *
      * @return the y position of the camera, in world coordinates
      */
-    public static double getY() {
+    public double getY() {
         return y;
     }
 
@@ -114,7 +142,7 @@ public class Camera {
      *
      * @return the rotation angle of the camera, in degrees
      */
-    public static double getRotation() {
+    public double getRotation() {
         return rotation;
     }
 
@@ -123,7 +151,7 @@ public class Camera {
      *
      * @return the zoom factor of the camera
      */
-    public static double getZoom() {
+    public double getZoom() {
         return zoom;
     }
 }
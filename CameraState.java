@@ -0,0 +1,86 @@
+/**
+ * A copy of the position, rotation, and zoom factor of a {@link Camera} at
+ * one point in time, used to render a frame independently of changes made to
+ * the camera while the frame is being drawn.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class CameraState {
+    private double x;
+    private double y;
+    private double rotation;
+    private double zoom;
+
+    /**
+     * Set this state to the current state of the given camera.
+     *
+     * @param camera the camera to copy the state of
+     */
+    public void capture(Camera camera) {
+        x = camera.getX();
+        y = camera.getY();
+        rotation = camera.getRotation();
+        zoom = camera.getZoom();
+    }
+
+    /**
+     * Set this state to a state between two others.
+     *
+     * @param from the state to interpolate from
+     * @param to the state to interpolate towards
+     * @param alpha the interpolation factor, where 0.0 corresponds to from and 1.0 corresponds to to
+     */
+    public void interpolate(CameraState from, CameraState to, double alpha) {
+        x = from.x + (to.x - from.x) * alpha;
+        y = from.y + (to.y - from.y) * alpha;
+        rotation = Vector2.interpolateAngle(from.rotation, to.rotation, alpha);
+        zoom = from.zoom + (to.zoom - from.zoom) * alpha;
+    }
+
+    /**
+     * Return the captured x position of the camera.
+     *
+     * @return the x position of the camera, in world coordinates
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Return the captured y position of the camera.
+     *
+     * @return the y position of the camera, in world coordinates
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Return the captured rotation of the camera.
+     *
+     * @return the rotation angle of the camera, in degrees
+     */
+    public double getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Replace the captured rotation of the camera, such as with one rounded
+     * to the rotations that a renderer draws at.
+     *
+     * @param rotation the rotation angle of the camera, in degrees
+     */
+    public void setRotation(double rotation) {
+        this.rotation = rotation;
+    }
+
+    /**
+     * Return the captured zoom factor of the camera.
+     *
+     * @return the zoom factor of the camera
+     */
+    public double getZoom() {
+        return zoom;
+    }
+}
@@ -2,4 +2,9 @@ public class Crate extends Sprack {
     public Crate() {
         super("crate");
     }
+
+    @Override
+    public boolean isStatic() {
+        return true;
+    }
 }
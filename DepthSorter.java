@@ -0,0 +1,248 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maintains the order in which visible spracks are drawn so that spracks
+ * lower on the screen are drawn over those above them.
+ * <p>
+ * Between consecutive frames, spracks rarely move far enough on the screen to
+ * change places with more than a few others. Instead of sorting from scratch,
+ * the order from the previous frame is kept, spracks that are no longer
+ * visible are dropped, and the result is repaired with an insertion sort,
+ * which runs in close to linear time on a nearly sorted order. Newly visible
+ * spracks are sorted on their own and merged in. A full sort is used instead
+ * after large camera rotations, or when the insertion sort has to move
+ * spracks too far.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class DepthSorter {
+    /**
+     * The change in camera rotation since the last full sort, in degrees,
+     * beyond which the previous order is assumed to be of no help.
+     */
+    private static final double FULL_SORT_ROTATION = 45.0;
+    /**
+     * The average number of places each sprack may be moved by the insertion
+     * sort before it gives up and a full sort is used instead.
+     */
+    private static final int MAX_AVERAGE_SHIFTS = 4;
+
+    /** The spracks in draw order, from back to front. */
+    private Sprack[] order;
+    /** The screen y positions of spracks in order, used as sort keys. */
+    private double[] depths;
+    /** Newly visible spracks that were not in the previous order. */
+    private Sprack[] incoming;
+    /** Space for merge sorting and for merging incoming spracks into the order, swapped with order afterwards. */
+    private Sprack[] merged;
+    private int size;
+
+    /**
+     * The number of the current frame. During a frame, a sprack's mark is set
+     * to twice this value if it is visible and to one more than that once it
+     * has been placed in the order.
+     */
+    private int frame;
+    /** The camera rotation at the time of the last full sort. */
+    private double fullSortRotation;
+    private boolean lastSortWasFull;
+
+    /**
+     * Create a new depth sorter with an empty draw order.
+     */
+    public DepthSorter() {
+        order = new Sprack[16];
+        depths = new double[16];
+        incoming = new Sprack[16];
+        merged = new Sprack[16];
+        fullSortRotation = Double.NaN;
+    }
+
+    /**
+     * Update the draw order to contain exactly the given spracks, sorted by
+     * their current screen y positions.
+     *
+     * @param visible the spracks to draw this frame, in any order
+     * @param cameraRotation the current rotation of the camera, in degrees
+     */
+    public void sort(List<Sprack> visible, double cameraRotation) {
+        frame++;
+        int visibleMark = frame * 2;
+        int placedMark = visibleMark + 1;
+        for (int i = 0; i < visible.size(); i++) {
+            visible.get(i).setDepthSortMark(visibleMark);
+        }
+
+        // Keep spracks from the previous order that are still visible, in the same order
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Sprack sprack = order[i];
+            if (sprack.getDepthSortMark() == visibleMark) {
+                sprack.setDepthSortMark(placedMark);
+                order[kept++] = sprack;
+            }
+        }
+        Arrays.fill(order, kept, size, null);
+        size = kept;
+
+        // Collect newly visible spracks
+        if (order.length < visible.size()) {
+            int capacity = Math.max(visible.size(), order.length * 2);
+            order = Arrays.copyOf(order, capacity);
+            depths = new double[capacity];
+            incoming = new Sprack[capacity];
+            merged = new Sprack[capacity];
+        }
+        int incomingSize = 0;
+        for (int i = 0; i < visible.size(); i++) {
+            Sprack sprack = visible.get(i);
+            if (sprack.getDepthSortMark() == visibleMark) {
+                sprack.setDepthSortMark(placedMark);
+                incoming[incomingSize++] = sprack;
+            }
+        }
+
+        // Repair the order of the kept spracks
+        double rotationChange = Math.abs(cameraRotation - fullSortRotation) % 360.0;
+        if (Double.isNaN(rotationChange) || Math.min(rotationChange, 360.0 - rotationChange) > FULL_SORT_ROTATION
+            || !insertionSort()) {
+            mergeSort(order, size);
+            fullSortRotation = cameraRotation;
+            lastSortWasFull = true;
+        } else {
+            lastSortWasFull = false;
+        }
+
+        // Sort the newly visible spracks on their own and merge them in,
+        // since they have no previous position to start from
+        if (incomingSize > 0) {
+            mergeSort(incoming, incomingSize);
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < size && j < incomingSize) {
+                if (incoming[j].getScreenY() < order[i].getScreenY()) {
+                    merged[k++] = incoming[j++];
+                } else {
+                    merged[k++] = order[i++];
+                }
+            }
+            while (i < size) {
+                merged[k++] = order[i++];
+            }
+            while (j < incomingSize) {
+                merged[k++] = incoming[j++];
+            }
+            Arrays.fill(incoming, 0, incomingSize, null);
+            Arrays.fill(order, 0, size, null);
+            Sprack[] previous = order;
+            order = merged;
+            merged = previous;
+            size = k;
+        }
+    }
+
+    /**
+     * Sort the first given number of spracks in the given array by depth with
+     * a stable merge sort, using merged as scratch space. Unlike Arrays.sort
+     * with a comparator, this allocates no temporary array.
+     *
+     * @param items the spracks to sort, in place
+     * @param count the number of spracks at the start of items to sort
+     */
+    private void mergeSort(Sprack[] items, int count) {
+        Sprack[] from = items;
+        Sprack[] to = merged;
+        for (int width = 1; width < count; width *= 2) {
+            for (int left = 0; left < count; left += 2 * width) {
+                int middle = Math.min(left + width, count);
+                int right = Math.min(left + 2 * width, count);
+                int i = left;
+                int j = middle;
+                int k = left;
+                while (i < middle && j < right) {
+                    // Take from the left run on ties, keeping equal spracks in order
+                    if (Double.compare(from[j].getScreenY(), from[i].getScreenY()) < 0) {
+                        to[k++] = from[j++];
+                    } else {
+                        to[k++] = from[i++];
+                    }
+                }
+                while (i < middle) {
+                    to[k++] = from[i++];
+                }
+                while (j < right) {
+                    to[k++] = from[j++];
+                }
+            }
+            Sprack[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != items) {
+            System.arraycopy(from, 0, items, 0, count);
+        }
+        Arrays.fill(merged, 0, count, null);
+    }
+
+    /**
+     * Sort the current order by depth with an insertion sort, giving up if the
+     * order turns out to be far from sorted.
+     *
+     * @return true if the order was sorted, false if the insertion sort gave up
+     */
+    private boolean insertionSort() {
+        for (int i = 0; i < size; i++) {
+            depths[i] = order[i].getScreenY();
+        }
+        long shiftsLeft = (long) size * MAX_AVERAGE_SHIFTS;
+        for (int i = 1; i < size; i++) {
+            Sprack sprack = order[i];
+            double depth = depths[i];
+            int j = i - 1;
+            while (j >= 0 && depths[j] > depth) {
+                order[j + 1] = order[j];
+                depths[j + 1] = depths[j];
+                j--;
+            }
+            order[j + 1] = sprack;
+            depths[j + 1] = depth;
+            shiftsLeft -= i - 1 - j;
+            if (shiftsLeft < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of spracks in the draw order.
+     *
+     * @return the number of spracks to draw
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the sprack at the given position in the draw order, where 0 is
+     * drawn first.
+     *
+     * @param index the position in the draw order
+     * @return the sprack at that position
+     */
+    public Sprack get(int index) {
+        return order[index];
+    }
+
+    /**
+     * Return whether the last call to {@link #sort} had to sort from scratch.
+     *
+     * @return true if the last sort was a full sort, false if the previous order was repaired
+     */
+    public boolean wasFullSort() {
+        return lastSortWasFull;
+    }
+}
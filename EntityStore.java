@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+/**
+ * The world locations and rotations of a set of entities, stored as parallel
+ * arrays of primitives indexed by entity.
+ * <p>
+ * Keeping the state of every entity in a few flat arrays, instead of in
+ * fields spread across many objects, lets code that processes all entities
+ * at once, such as taking snapshots or transforming locations to the screen,
+ * run as tight loops over contiguous memory. Entities at different indices
+ * can be updated from different threads at once.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class EntityStore {
+    private double[] x;
+    private double[] y;
+    private double[] rotation;
+    private int size;
+
+    /**
+     * Create a new store with no entities.
+     */
+    public EntityStore() {
+        this(16);
+    }
+
+    /**
+     * Create a new store with no entities and room for the given number of
+     * entities before it has to grow.
+     *
+     * @param capacity the initial number of entities to make room for
+     */
+    public EntityStore(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        rotation = new double[capacity];
+    }
+
+    /**
+     * Add a new entity with the given state to this store.
+     *
+     * @param x the x position of the entity, in world coordinates
+     * @param y the y position of the entity, in world coordinates
+     * @param rotation the rotation angle of the entity, in degrees
+     * @return the index of the new entity
+     */
+    public int add(double x, double y, double rotation) {
+        ensureCapacity(size + 1);
+        this.x[size] = x;
+        this.y[size] = y;
+        this.rotation[size] = rotation;
+        return size++;
+    }
+
+    /**
+     * Set the contents of this store to a copy of the given store.
+     *
+     * @param other the store to copy
+     */
+    public void copyFrom(EntityStore other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.x, 0, x, 0, other.size);
+        System.arraycopy(other.y, 0, y, 0, other.size);
+        System.arraycopy(other.rotation, 0, rotation, 0, other.size);
+        size = other.size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (x.length < capacity) {
+            int newCapacity = Math.max(capacity, x.length * 2);
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            rotation = Arrays.copyOf(rotation, newCapacity);
+        }
+    }
+
+    /**
+     * Return the number of entities in this store.
+     *
+     * @return the number of entities
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the x position of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the x position of the entity, in world coordinates
+     */
+    public double getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Return the y position of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the y position of the entity, in world coordinates
+     */
+    public double getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Return the rotation of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the rotation angle of the entity, in degrees
+     */
+    public double getRotation(int index) {
+        return rotation[index];
+    }
+
+    /**
+     * Set the world location of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @param x the x position of the entity, in world coordinates
+     * @param y the y position of the entity, in world coordinates
+     */
+    public void setLocation(int index, double x, double y) {
+        this.x[index] = x;
+        this.y[index] = y;
+    }
+
+    /**
+     * Set the rotation of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @param rotation the rotation angle of the entity, in degrees
+     */
+    public void setRotation(int index, double rotation) {
+        this.rotation[index] = rotation;
+    }
+
+    /**
+     * Write the locations of the given entities, interpolated between this
+     * store and another store, into the given arrays.
+     *
+     * @param to the store to interpolate towards, containing at least the same entities
+     * @param alpha the interpolation factor, where 0.0 gives this store's locations
+     * @param indices the indices of the entities to interpolate
+     * @param count the number of indices to use
+     * @param outX the array to store interpolated x positions in, by position in indices
+     * @param outY the array to store interpolated y positions in, by position in indices
+     */
+    public void interpolateLocations(EntityStore to, double alpha, int[] indices, int count, double[] outX, double[] outY) {
+        double[] fromX = x;
+        double[] fromY = y;
+        double[] toX = to.x;
+        double[] toY = to.y;
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            outX[i] = fromX[index] + (toX[index] - fromX[index]) * alpha;
+            outY[i] = fromY[index] + (toY[index] - fromY[index]) * alpha;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything from outside the simulation that a single frame depends on: the
+ * keys held down and typed, the number of simulation ticks to run, and how
+ * far to interpolate between ticks when rendering.
+ * <p>
+ * Simulation ticks read keys from the input of the frame that started them
+ * rather than from the keyboard, so a sequence of frame inputs is enough to
+ * reproduce a session exactly, independently of the speed at which it is
+ * replayed.
+ * <p>
+ * A source of input may return the same FrameInput every frame, updated in
+ * place, so that frames do not allocate. An input that is kept past the
+ * frame it was returned for, such as one that is recorded, must be copied.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class FrameInput {
+    /**
+     * The keys whose held state is recorded, in the order of their bits in
+     * the key mask. New keys must be added at the end so that recorded
+     * traces stay valid.
+     */
+    public static final List<String> TRACKED_KEYS = Collections.unmodifiableList(Arrays.asList(
+        "left", "right", "space", "w", "s"
+    ));
+
+    private int ticks;
+    private double alpha;
+    private int keysDown;
+    private String key;
+
+    /**
+     * Create a new frame input.
+     *
+     * @param ticks the number of simulation ticks to start in this frame
+     * @param alpha the fraction of a tick to interpolate rendering by, in the range [0.0, 1.0)
+     * @param keysDown a mask with the bit of each of {@link #TRACKED_KEYS} that is held down set
+     * @param key the name of the key last typed before this frame, or null if none was typed
+     */
+    public FrameInput(int ticks, double alpha, int keysDown, String key) {
+        set(ticks, alpha, keysDown, key);
+    }
+
+    /**
+     * Create a new copy of the given frame input.
+     *
+     * @param input the frame input to copy
+     */
+    public FrameInput(FrameInput input) {
+        this(input.ticks, input.alpha, input.keysDown, input.key);
+    }
+
+    /**
+     * Replace this frame input with the input of a new frame, so that a
+     * source of input can reuse it.
+     *
+     * @param ticks the number of simulation ticks to start in the frame
+     * @param alpha the fraction of a tick to interpolate rendering by, in the range [0.0, 1.0)
+     * @param keysDown a mask with the bit of each of {@link #TRACKED_KEYS} that is held down set
+     * @param key the name of the key last typed before the frame, or null if none was typed
+     */
+    void set(int ticks, double alpha, int keysDown, String key) {
+        this.ticks = ticks;
+        this.alpha = alpha;
+        this.keysDown = keysDown;
+        this.key = key;
+    }
+
+    /**
+     * Return the bit of the given key in key masks.
+     *
+     * @param key the name of the key
+     * @return the mask with only the bit of the key set
+     * @throws IllegalArgumentException if the key is not one of {@link #TRACKED_KEYS}
+     */
+    public static int getKeyBit(String key) {
+        int index = TRACKED_KEYS.indexOf(key);
+        if (index < 0) {
+            throw new IllegalArgumentException("Key \"" + key + "\" is not tracked by FrameInput");
+        }
+        return 1 << index;
+    }
+
+    /**
+     * Return the number of simulation ticks to start in this frame.
+     *
+     * @return the number of ticks
+     */
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Return the fraction of a tick by which rendering is interpolated past
+     * the last finished tick.
+     *
+     * @return the interpolation factor, in the range [0.0, 1.0)
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+
+    /**
+     * Return the mask of keys held down during this frame.
+     *
+     * @return a mask with the bit of each held key of {@link #TRACKED_KEYS} set
+     */
+    public int getKeysDown() {
+        return keysDown;
+    }
+
+    /**
+     * Return whether the given key was held down during this frame.
+     *
+     * @param key the name of one of {@link #TRACKED_KEYS}
+     * @return true if the key was held down
+     * @throws IllegalArgumentException if the key is not tracked
+     */
+    public boolean isKeyDown(String key) {
+        return (keysDown & getKeyBit(key)) != 0;
+    }
+
+    /**
+     * Return the name of the key last typed before this frame.
+     *
+     * @return the name of the typed key, or null if no key was typed
+     */
+    public String getKey() {
+        return key;
+    }
+}
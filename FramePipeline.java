@@ -0,0 +1,1020 @@
+import greenfoot.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The update and render loop of a world of sprites.
+ * <p>
+ * Sprites are updated in fixed-length simulation ticks, independently of how
+ * often frames are rendered, and collisions between spracks are detected at
+ * the end of every tick. Ticks run on a separate simulation thread, with
+ * the updates of large numbers of sprites spread across all cores. At the end
+ * of each batch of ticks, the simulation publishes snapshots of the state
+ * before and after its last tick, and frames are rendered from those
+ * snapshots, interpolating between them by the time left over since the last
+ * tick. While one frame is being drawn, the ticks for the next frame are
+ * already running, so rendering trails the simulation by one frame.
+ * <p>
+ * {@link Sprack#isStatic Static} spracks are kept in {@link StaticChunks}
+ * rather than the spatial index of moving spracks, and are neither updated
+ * nor captured in snapshots. For renderers that draw static tiles, only the
+ * static spracks near a visible moving sprack are drawn individually, and
+ * only where they must cover it. Static spracks can also be removed again,
+ * which lets a {@link WorldStreamer} load and evict them around the camera.
+ * <p>
+ * Spracks whose sheets are still loading are drawn with a
+ * {@link Sprack#isPlaceholder placeholder}. Since collision bounds and static
+ * tiles depend on a sprack's view, each is taken out of them while its loaded
+ * view is swapped in, at the start of the first frame after loading finishes.
+ * <p>
+ * A frame can be drawn from several {@link Viewport viewports}, each with a
+ * camera and renderer of its own. The visible spracks of each viewport are
+ * found, transformed, sorted, and handed to its renderer one viewport at a
+ * time, since spracks hold the screen state of only one viewport at once.
+ * The viewports are then drawn at the same time on different threads, which
+ * is where most of the time of a frame goes.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class FramePipeline {
+    /** The number of simulation ticks per second of real time. */
+    public static final double TICKS_PER_SECOND = 60.0;
+    private static final long TICK_NANOS = (long) (1e9 / TICKS_PER_SECOND);
+    /**
+     * The maximum number of ticks to run for a single frame. Time beyond this
+     * is dropped so that a slow frame does not cause even more ticks to run.
+     */
+    private static final int MAX_TICKS_PER_FRAME = 5;
+    /** The number of sprites at or above which updates are spread across cores. */
+    static final int PARALLEL_UPDATE_THRESHOLD = 1024;
+    /** The number of slices the sprites are split into when their updates are spread across cores. */
+    private static final int UPDATE_SLICES = 64;
+
+    /** The width and height of a cell in the spatial index, in world units. */
+    private static final double GRID_CELL_SIZE = 64.0;
+    /** The number of buckets in the spatial index. */
+    private static final int GRID_BUCKET_COUNT = 4096;
+    /**
+     * The distance by which the visible area is grown when looking for
+     * visible spracks, in world units, since spracks are indexed at their
+     * latest locations but drawn at interpolated ones.
+     */
+    private static final double CULL_MARGIN = 8.0;
+
+    private static final Color BACKGROUND_COLOR = new Color(56, 56, 56);
+
+    /** The most pipelines whose ticks can wait for the simulation thread at once. */
+    private static final int SIMULATION_QUEUE_CAPACITY = 64;
+
+    /**
+     * The pipelines whose ticks are waiting for the simulation thread, in a
+     * ring guarded by itself. Unlike a blocking queue, the ring and its
+     * monitor don't allocate when ticks are started or waited for.
+     */
+    private static final FramePipeline[] SIMULATION_QUEUE = new FramePipeline[SIMULATION_QUEUE_CAPACITY];
+    /** The index in SIMULATION_QUEUE of the pipeline to run ticks for next. */
+    private static int simulationQueueHead;
+    /** The number of pipelines in SIMULATION_QUEUE. */
+    private static int simulationQueueSize;
+
+    static {
+        // The thread that runs simulation ticks, shared by all pipelines
+        Thread thread = new Thread(FramePipeline::runSimulation, "Simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** The viewports drawn every frame, in drawing order, with the main viewport first. */
+    private final List<Viewport> viewports;
+    /** The rendering state of each viewport, in the same order. */
+    private final List<ViewportFrame> viewportFrames;
+    /** The tasks that draw the viewports at the same time, with the root first, rebuilt when viewports change. */
+    private DrawViewportsTask[] drawTasks;
+
+    private final List<Sprite> sprites;
+    /** The tasks that update slices of the sprites at the same time, with the root first, built once. */
+    private final UpdateSpritesTask[] updateTasks;
+    /** The spracks within sprites, in the order of their entity indices. */
+    private final List<Sprack> spracks;
+    /** The world locations and rotations of every sprack, indexed the same way as snapshots. */
+    private final EntityStore entities;
+    /** Spatial index of every moving sprack, used to skip spracks outside the viewport. */
+    private final SpatialGrid grid;
+    /** The static spracks, grouped into chunks drawn from pre-composited tiles. */
+    private final StaticChunks statics;
+    /** Whether any viewport's renderer draws the cached images of views, shared with their manager. */
+    private final AtomicBoolean imageCacheUse;
+    /** The number of the current frame, used to collect each static sprack at most once. */
+    private int collectMark;
+    /** Collision detection between spracks, run at the end of every tick. */
+    private final SweepAndPrune collisions;
+    /** The spracks drawn with placeholders until their sheets finish loading, in the order they were added. */
+    private final Set<Sprack> placeholders;
+    /** The placeholder spracks whose views are being swapped in, reused across frames. */
+    private final List<Sprack> loadedSpracks;
+    /** World logic run on the simulation thread at the start of every tick. */
+    private final Runnable tickAction;
+    /** The source of the input and timing of each frame. */
+    private InputSource inputSource;
+    /** The input of the last frame, which its ticks are run with. */
+    private FrameInput frameInput;
+
+    /** The image of the canvas that canvasPixels shares the pixels of, or null if none is bound. */
+    private BufferedImage canvasImage;
+    /** The pixels of the last canvas, wrapped once so that viewport images can be copied into it without allocating. */
+    private PixelRegion canvasPixels;
+
+    /** The loader of static spracks around the camera, or null if the world is not streamed. */
+    private WorldStreamer streamer;
+
+    /** The snapshot taken before the last published tick, read by rendering. */
+    private WorldSnapshot previous;
+    /** The snapshot taken after the last published tick, read by rendering. */
+    private WorldSnapshot current;
+    /** The snapshot the simulation takes before its last tick, swapped with previous when published. */
+    private WorldSnapshot simulationPrevious;
+    /** The snapshot the simulation takes after its last tick, swapped with current when published. */
+    private WorldSnapshot simulationCurrent;
+
+    /** The number of ticks for the simulation thread to run next. */
+    private int ticksToRun;
+    /** Whether ticks were started and have not been finished by the rendering thread yet. */
+    private boolean ticksStarted;
+    /** Guards ticksRunning and tickFailure, and is notified when ticks finish. */
+    private final Object tickLock;
+    /** Whether the simulation thread is still running the started ticks. */
+    private boolean ticksRunning;
+    /** The exception thrown by the last ticks, or null if they succeeded. */
+    private Throwable tickFailure;
+    /** The time at which the last frame started, or 0 if the clock has been reset. */
+    private long lastFrameTime;
+    /** Real time that has passed but has not been simulated yet, in nanoseconds. */
+    private long unsimulatedNanos;
+    /** The time taken by the ticks last run on the simulation thread, in nanoseconds. */
+    private long tickNanos;
+
+    /**
+     * The rendering state of one viewport: what it found to be visible in the
+     * frame being rendered, and the draw order kept between frames.
+     */
+    private static class ViewportFrame {
+        private final Viewport viewport;
+        /** The camera state interpolated for the frame being rendered. */
+        private final CameraState renderCamera;
+        /** The world to screen transform of the frame being rendered. */
+        private final ScreenTransform screenTransform;
+        /** The spracks found to be near the viewport during rendering, reused across frames. */
+        private final List<Sprack> visibleSpracks;
+        /** The entity indices of the visible moving spracks, then the world and screen locations of every visible sprack. */
+        private int[] visibleIndices;
+        private double[] visibleWorldX;
+        private double[] visibleWorldY;
+        private double[] visibleScreenX;
+        private double[] visibleScreenY;
+        /** The order in which visible spracks are drawn, kept between frames. */
+        private final DepthSorter depthSorter;
+        /** The image the viewport is drawn onto before being copied to the canvas, or null if drawn onto the canvas directly. */
+        private GreenfootImage image;
+        /** The pixels of the image, or null if they cannot be shared or there is no image. */
+        private PixelRegion imagePixels;
+        /** The image the viewport is drawn onto in the frame being rendered. */
+        private GreenfootImage target;
+        /**
+         * The level of detail each managed view was last drawn at in this
+         * viewport, by view number, so that levels change with hysteresis
+         * separately in every viewport. A level only depends on the view and
+         * the scale factor, which is the same for every sprack in a viewport.
+         */
+        private SprackView.LevelOfDetail[] viewDetails;
+
+        ViewportFrame(Viewport viewport) {
+            this.viewport = viewport;
+            renderCamera = new CameraState();
+            screenTransform = new ScreenTransform();
+            visibleSpracks = new ArrayList<>();
+            visibleIndices = new int[0];
+            visibleWorldX = new double[0];
+            visibleWorldY = new double[0];
+            visibleScreenX = new double[0];
+            visibleScreenY = new double[0];
+            viewDetails = new SprackView.LevelOfDetail[0];
+            depthSorter = new DepthSorter();
+        }
+
+        /**
+         * Return the level of detail to draw spracks of the given view at in
+         * this viewport, with hysteresis from the level the view was last
+         * drawn at here.
+         */
+        SprackView.LevelOfDetail selectDetail(SprackView view, double scale) {
+            int number = view.getViewNumber();
+            if (number == 0) {
+                // Views without a manager have no number to keep their level by
+                return view.selectDetail(scale);
+            }
+            if (number >= viewDetails.length) {
+                viewDetails = Arrays.copyOf(viewDetails, Math.max(number + 1, viewDetails.length * 2));
+            }
+            SprackView.LevelOfDetail previous = viewDetails[number];
+            SprackView.LevelOfDetail detail = previous == null ? view.selectDetail(scale) : view.selectDetail(scale, previous);
+            viewDetails[number] = detail;
+            return detail;
+        }
+    }
+
+    /**
+     * Create a new pipeline with no sprites, drawn from a new camera.
+     *
+     * @param tickAction world logic to run at the start of every simulation tick, before sprites are updated
+     */
+    public FramePipeline(Runnable tickAction) {
+        this(new Camera(), tickAction);
+    }
+
+    /**
+     * Create a new pipeline with no sprites, drawn from the given camera.
+     *
+     * @param camera the camera of the main viewport, which covers the whole canvas
+     * @param tickAction world logic to run at the start of every simulation tick, before sprites are updated
+     */
+    public FramePipeline(Camera camera, Runnable tickAction) {
+        this.tickAction = tickAction;
+        viewports = new ArrayList<>();
+        viewportFrames = new ArrayList<>();
+        sprites = new ArrayList<>();
+        spracks = new ArrayList<>();
+        entities = new EntityStore();
+        grid = new SpatialGrid(GRID_CELL_SIZE, GRID_BUCKET_COUNT);
+        statics = new StaticChunks(Sprack.getViewManager());
+        collisions = new SweepAndPrune();
+        placeholders = new LinkedHashSet<>();
+        loadedSpracks = new ArrayList<>();
+        previous = new WorldSnapshot();
+        current = new WorldSnapshot();
+        simulationPrevious = new WorldSnapshot();
+        simulationCurrent = new WorldSnapshot();
+        inputSource = InputSource.none();
+        tickLock = new Object();
+        updateTasks = buildUpdateTasks();
+        imageCacheUse = Sprack.getViewManager().newCacheUse();
+        addViewport(new Viewport(camera, new GreenfootRenderer()));
+    }
+
+    /**
+     * Set the source of the input of following frames, which is made
+     * available through {@link Input} to the ticks started by each frame.
+     *
+     * @param inputSource the source of frame input
+     */
+    public void setInputSource(InputSource inputSource) {
+        this.inputSource = inputSource;
+    }
+
+    /**
+     * Return the input of the last frame, which its ticks see through
+     * {@link Input}, for use on the rendering thread.
+     *
+     * @return the input of the last frame, or null if no frame has run
+     */
+    public FrameInput getFrameInput() {
+        return frameInput;
+    }
+
+    /**
+     * Add a viewport to draw in following frames, over the viewports already
+     * added, and limit the zoom factor of its camera to what its renderer can
+     * draw. Any running simulation ticks are finished first.
+     *
+     * @param viewport the viewport to add
+     * @throws IllegalArgumentException if the viewport's renderer already draws another viewport
+     */
+    public void addViewport(Viewport viewport) {
+        finishTicks();
+        checkRendererUnused(viewport.getRenderer());
+        viewports.add(viewport);
+        viewportFrames.add(new ViewportFrame(viewport));
+        buildDrawTasks();
+        updateImageCacheUse();
+        viewport.getCamera().setMaxZoom(viewport.getRenderer().getMaxZoom());
+        // There is nothing to interpolate the new camera from
+        previous.captureCameras(viewports);
+        current.captureCameras(viewports);
+    }
+
+    /**
+     * Stop drawing the given viewport. Any running simulation ticks are
+     * finished first.
+     *
+     * @param viewport the viewport to remove
+     * @throws IllegalArgumentException if the viewport is the main viewport
+     */
+    public void removeViewport(Viewport viewport) {
+        finishTicks();
+        int index = viewports.indexOf(viewport);
+        if (index == 0) {
+            throw new IllegalArgumentException("Cannot remove the main viewport");
+        }
+        if (index < 0) {
+            return;
+        }
+        viewports.remove(index);
+        viewportFrames.remove(index);
+        buildDrawTasks();
+        updateImageCacheUse();
+        // Later viewports move down, so their captured cameras must too
+        previous.captureCameras(viewports);
+        current.captureCameras(viewports);
+    }
+
+    /**
+     * Return the viewports drawn every frame, in drawing order, starting with
+     * the main viewport.
+     *
+     * @return an unmodifiable list of the viewports
+     */
+    public List<Viewport> getViewports() {
+        return Collections.unmodifiableList(viewports);
+    }
+
+    /**
+     * Return the camera of the main viewport, which covers the whole canvas.
+     * A {@link WorldStreamer} loads chunks around this camera.
+     *
+     * @return the main camera
+     */
+    public Camera getCamera() {
+        return viewports.get(0).getCamera();
+    }
+
+    /**
+     * Set the way in which the main viewport is drawn in following frames.
+     *
+     * @param renderer the renderer to draw the main viewport with
+     * @see #setRenderer(Viewport, FrameRenderer)
+     */
+    public void setRenderer(FrameRenderer renderer) {
+        setRenderer(viewports.get(0), renderer);
+    }
+
+    /**
+     * Set the way in which the given viewport is drawn in following frames,
+     * and limit the zoom factor of its camera to what the renderer can draw.
+     * Any running simulation ticks are finished first.
+     *
+     * @param viewport the viewport to draw with the renderer
+     * @param renderer the renderer to draw the viewport with
+     * @throws IllegalArgumentException if the renderer already draws another viewport
+     */
+    public void setRenderer(Viewport viewport, FrameRenderer renderer) {
+        finishTicks();
+        if (renderer != viewport.getRenderer()) {
+            checkRendererUnused(renderer);
+        }
+        viewport.setRenderer(renderer);
+        updateImageCacheUse();
+        viewport.getCamera().setMaxZoom(renderer.getMaxZoom());
+        // Don't interpolate from a zoom factor that the new renderer can't draw
+        previous.captureCameras(viewports);
+        current.captureCameras(viewports);
+    }
+
+    /**
+     * Tell the manager of the views whether any viewport's renderer draws
+     * their cached images, so that it can release them while none does.
+     */
+    private void updateImageCacheUse() {
+        boolean used = false;
+        for (int i = 0; i < viewports.size(); i++) {
+            used |= viewports.get(i).getRenderer().usesImageCache();
+        }
+        Sprack.getViewManager().setCacheUsed(imageCacheUse, used);
+    }
+
+    /**
+     * Throw an exception if the given renderer draws any viewport, since
+     * renderers keep the state of the viewport they draw.
+     */
+    private void checkRendererUnused(FrameRenderer renderer) {
+        for (int i = 0; i < viewports.size(); i++) {
+            if (viewports.get(i).getRenderer() == renderer) {
+                throw new IllegalArgumentException("Renderer already draws another viewport");
+            }
+        }
+    }
+
+    /**
+     * Return the way in which the main viewport is drawn.
+     *
+     * @return the renderer that draws the main viewport
+     */
+    public FrameRenderer getRenderer() {
+        return viewports.get(0).getRenderer();
+    }
+
+    /**
+     * Set the loader of static spracks around the camera, which is updated at
+     * the start of every following frame.
+     *
+     * @param streamer the loader of the world's static spracks, or null to stop streaming
+     */
+    public void setStreamer(WorldStreamer streamer) {
+        this.streamer = streamer;
+    }
+
+    /**
+     * Add a sprack to this pipeline at the given world location. Any running
+     * simulation ticks are finished first. A {@link Sprack#isStatic static}
+     * sprack must be given its final rotation before it is added.
+     *
+     * @param sprack the sprack to add
+     * @param x the x position to place the sprack at, in world coordinates
+     * @param y the y position to place the sprack at, in world coordinates
+     */
+    public void add(Sprack sprack, double x, double y) {
+        finishTicks();
+        if (sprack.isPlaceholder()) {
+            placeholders.add(sprack);
+        }
+        if (sprack.isStatic()) {
+            sprack.setWorldLocation(x, y);
+            statics.add(sprack);
+            collisions.add(sprack);
+            return;
+        }
+        sprack.setEntity(entities, entities.add(x, y, sprack.getSpriteRotation()));
+        sprites.add(sprack);
+        spracks.add(sprack);
+        grid.add(sprack);
+        sprack.setSpatialGrid(grid);
+        collisions.add(sprack);
+    }
+
+    /**
+     * Add several {@link Sprack#isStatic static} spracks to this pipeline at
+     * their current world locations and rotations. Any running simulation
+     * ticks are finished first.
+     *
+     * @param added the static spracks to add
+     */
+    public void addStatics(List<Sprack> added) {
+        finishTicks();
+        for (int i = 0; i < added.size(); i++) {
+            if (!added.get(i).isStatic()) {
+                throw new IllegalArgumentException("Only static spracks can be added in batches");
+            }
+            statics.add(added.get(i));
+            if (added.get(i).isPlaceholder()) {
+                placeholders.add(added.get(i));
+            }
+        }
+        collisions.addAll(added);
+    }
+
+    /**
+     * Remove several {@link Sprack#isStatic static} spracks from this
+     * pipeline. Any running simulation ticks are finished first. The spracks
+     * are removed from last to first, which is fastest when they are given in
+     * the order they were added in.
+     *
+     * @param removed the static spracks to remove
+     */
+    public void removeStatics(List<Sprack> removed) {
+        finishTicks();
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            statics.remove(removed.get(i));
+        }
+        collisions.removeAll(removed);
+        if (!placeholders.isEmpty()) {
+            placeholders.removeAll(removed);
+        }
+    }
+
+    /**
+     * Forget the time of the last frame, so that time during which no frames
+     * were rendered, such as while the scenario was paused, is not simulated.
+     */
+    public void resetClock() {
+        lastFrameTime = 0;
+        unsimulatedNanos = 0;
+    }
+
+    /**
+     * Render a frame onto the given canvas, and start the simulation ticks
+     * that are due since the last frame. The number of ticks and how far to
+     * interpolate between them come from the real-time clock, unless the
+     * input source replaces them.
+     *
+     * @param canvas the image to render onto
+     */
+    public void frame(GreenfootImage canvas) {
+        FrameProfiler.beginFrame();
+        finishTicks();
+        // Angles used from here on count as used by this frame when evicting
+        Sprack.getViewManager().advanceEpoch();
+        swapLoadedViews();
+        if (streamer != null) {
+            // No ticks are running, so the camera and the spracks of the world can be read and changed
+            streamer.update(this, getCamera().getX(), getCamera().getY());
+        }
+
+        long now = System.nanoTime();
+        if (lastFrameTime != 0) {
+            unsimulatedNanos += now - lastFrameTime;
+        }
+        lastFrameTime = now;
+        int ticks = (int) Math.min(unsimulatedNanos / TICK_NANOS, MAX_TICKS_PER_FRAME);
+        unsimulatedNanos = Math.min(unsimulatedNanos - ticks * TICK_NANOS, TICK_NANOS - 1);
+
+        // Input is only made current on the simulation thread, just before the ticks that use it,
+        // since the ticks of other pipelines may run in between
+        FrameInput input = inputSource.nextFrame(ticks, (double) unsimulatedNanos / TICK_NANOS);
+        frameInput = input;
+
+        for (int i = 0; i < viewportFrames.size(); i++) {
+            prepare(viewportFrames.get(i), i, canvas, input.getAlpha());
+        }
+        startTicks(input.getTicks());
+        draw(canvas);
+        FrameProfiler.endFrame();
+    }
+
+    /**
+     * Swap the loaded views of the spracks whose sheets have finished loading
+     * in for their placeholders. This must not run while simulation ticks are
+     * running.
+     */
+    private void swapLoadedViews() {
+        if (placeholders.isEmpty()) {
+            return;
+        }
+        loadedSpracks.clear();
+        for (Iterator<Sprack> iterator = placeholders.iterator(); iterator.hasNext();) {
+            Sprack sprack = iterator.next();
+            if (sprack.isViewLoaded()) {
+                iterator.remove();
+                loadedSpracks.add(sprack);
+            }
+        }
+        if (loadedSpracks.isEmpty()) {
+            return;
+        }
+        // Collision bounds and static tiles are found from the view, so take the spracks out of them while swapping
+        collisions.removeAll(loadedSpracks);
+        for (int i = 0; i < loadedSpracks.size(); i++) {
+            Sprack sprack = loadedSpracks.get(i);
+            if (sprack.isStatic()) {
+                statics.remove(sprack);
+            }
+            sprack.swapLoadedView();
+            if (sprack.isStatic()) {
+                statics.add(sprack);
+            }
+        }
+        collisions.addAll(loadedSpracks);
+        loadedSpracks.clear();
+    }
+
+    /**
+     * Wait for running simulation ticks to finish and publish their snapshots
+     * for rendering.
+     */
+    private void finishTicks() {
+        if (ticksStarted) {
+            Throwable failure;
+            synchronized (tickLock) {
+                try {
+                    while (ticksRunning) {
+                        tickLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for simulation", e);
+                }
+                failure = tickFailure;
+                tickFailure = null;
+            }
+            ticksStarted = false;
+            if (failure != null) {
+                throw new IllegalStateException("Simulation tick failed", failure);
+            }
+            // The ticks ran alongside the last frame, but are counted towards this one
+            FrameProfiler.add(FrameProfiler.Phase.UPDATE, tickNanos);
+            WorldSnapshot swap = previous;
+            previous = simulationPrevious;
+            simulationPrevious = swap;
+            swap = current;
+            current = simulationCurrent;
+            simulationCurrent = swap;
+        }
+        if (current.size() != spracks.size()) {
+            // Spracks were added since the last tick, so there is nothing to interpolate from
+            previous.capture(entities, viewports);
+            current.capture(entities, viewports);
+        }
+    }
+
+    /**
+     * Start running the given number of simulation ticks on the simulation thread.
+     */
+    private void startTicks(int ticks) {
+        if (ticks <= 0) {
+            return;
+        }
+        synchronized (SIMULATION_QUEUE) {
+            if (simulationQueueSize == SIMULATION_QUEUE.length) {
+                throw new IllegalStateException("Too many pipelines waiting for simulation");
+            }
+            ticksToRun = ticks;
+            synchronized (tickLock) {
+                ticksRunning = true;
+            }
+            ticksStarted = true;
+            SIMULATION_QUEUE[(simulationQueueHead + simulationQueueSize) % SIMULATION_QUEUE.length] = this;
+            simulationQueueSize++;
+            SIMULATION_QUEUE.notify();
+        }
+    }
+
+    /**
+     * Run the ticks of each pipeline in the simulation queue in turn, forever.
+     * This is the body of the simulation thread.
+     */
+    private static void runSimulation() {
+        while (true) {
+            FramePipeline pipeline;
+            synchronized (SIMULATION_QUEUE) {
+                while (simulationQueueSize == 0) {
+                    try {
+                        SIMULATION_QUEUE.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                pipeline = SIMULATION_QUEUE[simulationQueueHead];
+                SIMULATION_QUEUE[simulationQueueHead] = null;
+                simulationQueueHead = (simulationQueueHead + 1) % SIMULATION_QUEUE.length;
+                simulationQueueSize--;
+            }
+            pipeline.runTicks();
+        }
+    }
+
+    /**
+     * Run the started ticks on the simulation thread, capturing snapshots
+     * around the last one, and tell the rendering thread when they finish.
+     */
+    private void runTicks() {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            Input.setFrame(frameInput);
+            for (int i = 0; i < ticksToRun; i++) {
+                if (i == ticksToRun - 1) {
+                    simulationPrevious.capture(entities, viewports);
+                }
+                tick();
+            }
+            simulationCurrent.capture(entities, viewports);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        tickNanos = System.nanoTime() - start;
+        synchronized (tickLock) {
+            tickFailure = failure;
+            ticksRunning = false;
+            tickLock.notifyAll();
+        }
+    }
+
+    /**
+     * Run a single simulation tick, then detect collisions between spracks.
+     */
+    private void tick() {
+        tickAction.run();
+        if (sprites.size() >= PARALLEL_UPDATE_THRESHOLD) {
+            for (UpdateSpritesTask task : updateTasks) {
+                task.reinitialize();
+            }
+            ForkJoinPool.commonPool().invoke(updateTasks[0]);
+        } else {
+            for (int i = 0; i < sprites.size(); i++) {
+                sprites.get(i).update();
+            }
+        }
+        collisions.detect();
+    }
+
+    /**
+     * Build a binary tree of tasks over the slices of the sprites, ending in
+     * a task for each slice, so that updating sprites in parallel does not
+     * allocate.
+     *
+     * @return the tasks, with the root first
+     */
+    private UpdateSpritesTask[] buildUpdateTasks() {
+        int taskCount = 0;
+        UpdateSpritesTask[] built = new UpdateSpritesTask[UPDATE_SLICES * 2];
+        built[taskCount++] = new UpdateSpritesTask(0, UPDATE_SLICES);
+        for (int i = 0; i < taskCount; i++) {
+            UpdateSpritesTask task = built[i];
+            if (task.end - task.start > 1) {
+                int middle = (task.start + task.end) >>> 1;
+                task.left = built[taskCount++] = new UpdateSpritesTask(task.start, middle);
+                task.right = built[taskCount++] = new UpdateSpritesTask(middle, task.end);
+            }
+        }
+        return Arrays.copyOf(built, taskCount);
+    }
+
+    /**
+     * Find the spracks visible in the given viewport in the frame about to be
+     * rendered, compute their interpolated screen locations, sort them into
+     * draw order, and prepare the viewport's renderer to draw them. This must
+     * not run while simulation ticks are running.
+     *
+     * @param frame the rendering state of the viewport
+     * @param viewportIndex the position of the viewport among the pipeline's viewports
+     * @param canvas the canvas that the frame is drawn onto
+     * @param alpha the fraction of a tick that has passed since the last published tick
+     */
+    private void prepare(ViewportFrame frame, int viewportIndex, GreenfootImage canvas, double alpha) {
+        Viewport viewport = frame.viewport;
+        int width = viewport.getWidth(canvas.getWidth());
+        int height = viewport.getHeight(canvas.getHeight());
+        if (viewportIndex == 0 && viewport.isFullCanvas()) {
+            frame.target = canvas;
+        } else {
+            // Other viewports are drawn at the same time as the first, so they can't share its canvas
+            if (frame.image == null || frame.image.getWidth() != width || frame.image.getHeight() != height) {
+                frame.image = new GreenfootImage(width, height);
+                frame.imagePixels = PixelRegion.wrap(frame.image);
+            }
+            frame.target = frame.image;
+        }
+        CameraState renderCamera = frame.renderCamera;
+        renderCamera.interpolate(previous.getCamera(viewportIndex), current.getCamera(viewportIndex), alpha);
+        if (viewport.getRenderer().drawsStaticTiles()) {
+            // Draw at the nearest rotation that tiles are composited for, rather than rotate every tile
+            renderCamera.setRotation(statics.snapRotation(renderCamera.getRotation()));
+        }
+        frame.screenTransform.set(renderCamera, width, height);
+        List<Sprack> visibleSpracks = frame.visibleSpracks;
+
+        // Only render spracks near the area of the world covered by the viewport
+        long start = FrameProfiler.start();
+        visibleSpracks.clear();
+        int movingCount = 0;
+        double zoom = renderCamera.getZoom();
+        if (zoom > 0.0) {
+            double rad = Math.toRadians(renderCamera.getRotation());
+            double cos = Math.abs(Math.cos(rad));
+            double sin = Math.abs(Math.sin(rad));
+            double halfWidth = width / 2.0 / zoom;
+            double halfHeight = height / 2.0 / zoom;
+            // Half of the size of the bounding box of the rotated viewport
+            double extentX = halfWidth * cos + halfHeight * sin + CULL_MARGIN;
+            double extentY = halfWidth * sin + halfHeight * cos + CULL_MARGIN;
+            double minX = renderCamera.getX() - extentX;
+            double minY = renderCamera.getY() - extentY;
+            double maxX = renderCamera.getX() + extentX;
+            double maxY = renderCamera.getY() + extentY;
+            grid.query(minX, minY, maxX, maxY, visibleSpracks);
+            movingCount = visibleSpracks.size();
+            if (viewport.getRenderer().drawsStaticTiles()) {
+                collectStaticsNearIndividual(frame, minX, minY, maxX, maxY);
+            } else {
+                statics.query(minX, minY, maxX, maxY, visibleSpracks);
+            }
+        }
+
+        FrameProfiler.stop(FrameProfiler.Phase.CULL, start);
+        FrameProfiler.count(FrameProfiler.Counter.GRID_CULLED, spracks.size() + statics.size() - visibleSpracks.size());
+
+        // Interpolate and transform the locations of every visible sprack in batches
+        start = FrameProfiler.start();
+        int count = visibleSpracks.size();
+        if (frame.visibleIndices.length < count) {
+            int capacity = Math.max(count, frame.visibleIndices.length * 2);
+            frame.visibleIndices = new int[capacity];
+            frame.visibleWorldX = new double[capacity];
+            frame.visibleWorldY = new double[capacity];
+            frame.visibleScreenX = new double[capacity];
+            frame.visibleScreenY = new double[capacity];
+        }
+        int[] visibleIndices = frame.visibleIndices;
+        double[] visibleWorldX = frame.visibleWorldX;
+        double[] visibleWorldY = frame.visibleWorldY;
+        double[] visibleScreenX = frame.visibleScreenX;
+        double[] visibleScreenY = frame.visibleScreenY;
+        for (int i = 0; i < movingCount; i++) {
+            visibleIndices[i] = visibleSpracks.get(i).getEntityIndex();
+        }
+        previous.getEntities().interpolateLocations(current.getEntities(), alpha, visibleIndices, movingCount, visibleWorldX, visibleWorldY);
+        // Static spracks come after the moving ones, and never move
+        for (int i = movingCount; i < count; i++) {
+            Sprack sprack = visibleSpracks.get(i);
+            visibleWorldX[i] = sprack.getWorldX();
+            visibleWorldY[i] = sprack.getWorldY();
+        }
+        ScreenTransform screenTransform = frame.screenTransform;
+        screenTransform.transform(visibleWorldX, visibleWorldY, count, visibleScreenX, visibleScreenY);
+
+        double cameraRotation = screenTransform.getRotation();
+        double scale = screenTransform.getScale();
+        double imageScale = screenTransform.getImageScale();
+        for (int i = 0; i < count; i++) {
+            Sprack sprack = visibleSpracks.get(i);
+            double rotation;
+            if (i < movingCount) {
+                int index = visibleIndices[i];
+                rotation = Vector2.interpolateAngle(previous.getRotation(index), current.getRotation(index), alpha);
+            } else {
+                rotation = sprack.getSpriteRotation();
+            }
+            sprack.setScreenState(visibleScreenX[i], visibleScreenY[i], rotation - cameraRotation, scale, imageScale,
+                                  frame.selectDetail(sprack.getView(), scale));
+        }
+
+        FrameProfiler.stop(FrameProfiler.Phase.TRANSFORM, start);
+
+        start = FrameProfiler.start();
+        frame.depthSorter.sort(visibleSpracks, renderCamera.getRotation());
+        FrameProfiler.stop(FrameProfiler.Phase.SORT, start);
+
+        // Renderers keep what they need of the spracks' screen state before the next viewport replaces it
+        start = FrameProfiler.start();
+        viewport.getRenderer().prepare(frame.target, frame.depthSorter, statics);
+        FrameProfiler.stop(FrameProfiler.Phase.RENDER, start);
+    }
+
+    /**
+     * Prepare the static tiles covering the given rectangle of world, then
+     * add the static spracks that must be drawn individually to the visible
+     * spracks of the given viewport, which must hold only the visible moving
+     * spracks: those on the borders of chunks and of chunks too large to
+     * tile, and those in tiles that may overlap any sprack drawn
+     * individually, which are marked as already drawn in a tile.
+     */
+    private void collectStaticsNearIndividual(ViewportFrame frame, double minX, double minY, double maxX, double maxY) {
+        List<Sprack> visibleSpracks = frame.visibleSpracks;
+        int movingCount = visibleSpracks.size();
+        statics.prepareTiles(frame.screenTransform, minX, minY, maxX, maxY, visibleSpracks);
+        int individualCount = visibleSpracks.size();
+        collectMark++;
+        for (int i = movingCount; i < individualCount; i++) {
+            Sprack sprack = visibleSpracks.get(i);
+            sprack.setCollectMark(collectMark);
+            sprack.setDrawnInTile(false);
+        }
+        for (int i = 0; i < individualCount; i++) {
+            Sprack individual = visibleSpracks.get(i);
+            double radius = individual.getBoundingRadius() + CULL_MARGIN;
+            int first = visibleSpracks.size();
+            statics.query(individual.getWorldX() - radius, individual.getWorldY() - radius,
+                          individual.getWorldX() + radius, individual.getWorldY() + radius, visibleSpracks);
+            // Keep only the statics not already collected, in place
+            int kept = first;
+            for (int j = first; j < visibleSpracks.size(); j++) {
+                Sprack sprack = visibleSpracks.get(j);
+                if (sprack.getCollectMark() != collectMark) {
+                    sprack.setCollectMark(collectMark);
+                    sprack.setDrawnInTile(true);
+                    visibleSpracks.set(kept++, sprack);
+                }
+            }
+            while (visibleSpracks.size() > kept) {
+                visibleSpracks.remove(visibleSpracks.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Draw every viewport with its prepared renderer, at the same time if
+     * there are several, then copy those drawn onto images of their own onto
+     * the canvas in order.
+     */
+    private void draw(GreenfootImage canvas) {
+        long start = FrameProfiler.start();
+        if (viewportFrames.size() == 1) {
+            drawViewport(viewportFrames.get(0));
+        } else {
+            for (DrawViewportsTask task : drawTasks) {
+                task.reinitialize();
+            }
+            ForkJoinPool.commonPool().invoke(drawTasks[0]);
+        }
+        if (canvas.getAwtImage() != canvasImage) {
+            canvasImage = canvas.getAwtImage();
+            canvasPixels = PixelRegion.wrap(canvas);
+        }
+        for (int i = 0; i < viewportFrames.size(); i++) {
+            ViewportFrame frame = viewportFrames.get(i);
+            if (frame.target != canvas) {
+                // Viewports fill their images with the background, so they can be copied without blending
+                if (frame.imagePixels != null && canvasPixels != null) {
+                    frame.imagePixels.copyTo(canvasPixels, frame.viewport.getX(), frame.viewport.getY());
+                } else {
+                    canvas.drawImage(frame.target, frame.viewport.getX(), frame.viewport.getY());
+                }
+            }
+        }
+        FrameProfiler.stop(FrameProfiler.Phase.RENDER, start);
+    }
+
+    /**
+     * Build a binary tree of tasks over the viewports, ending in a task for
+     * each viewport, so that drawing several viewports does not allocate.
+     */
+    private void buildDrawTasks() {
+        int count = viewportFrames.size();
+        int taskCount = 0;
+        DrawViewportsTask[] built = new DrawViewportsTask[count * 2];
+        built[taskCount++] = new DrawViewportsTask(0, count);
+        for (int i = 0; i < taskCount; i++) {
+            DrawViewportsTask task = built[i];
+            if (task.end - task.start > 1) {
+                int middle = (task.start + task.end) >>> 1;
+                task.left = built[taskCount++] = new DrawViewportsTask(task.start, middle);
+                task.right = built[taskCount++] = new DrawViewportsTask(middle, task.end);
+            }
+        }
+        drawTasks = Arrays.copyOf(built, taskCount);
+    }
+
+    /**
+     * Draw the visible spracks of the given viewport onto its target, from
+     * back to front so that spracks lower on the screen appear in front.
+     */
+    private static void drawViewport(ViewportFrame frame) {
+        frame.viewport.getRenderer().draw(frame.target, BACKGROUND_COLOR);
+    }
+
+    /**
+     * A task that draws a range of viewports, splitting it in half until
+     * each viewport is drawn by a task of its own. Tasks are created when
+     * viewports are added or removed and reinitialized every frame.
+     */
+    @SuppressWarnings("serial")
+    private class DrawViewportsTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+        private DrawViewportsTask left;
+        private DrawViewportsTask right;
+
+        DrawViewportsTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (left == null) {
+                drawViewport(viewportFrames.get(start));
+                return;
+            }
+            invokeAll(left, right);
+        }
+    }
+
+    /**
+     * A task that updates the sprites in a range of slices, splitting it in
+     * half until each slice is updated by a task of its own. Slices cover
+     * the sprites evenly however many there are, so tasks are created once
+     * and reinitialized every tick.
+     */
+    @SuppressWarnings("serial")
+    private class UpdateSpritesTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+        private UpdateSpritesTask left;
+        private UpdateSpritesTask right;
+
+        UpdateSpritesTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (left == null) {
+                int count = sprites.size();
+                int last = (int) ((long) end * count / UPDATE_SLICES);
+                for (int i = (int) ((long) start * count / UPDATE_SLICES); i < last; i++) {
+                    sprites.get(i).update();
+                }
+                return;
+            }
+            invokeAll(left, right);
+        }
+    }
+}
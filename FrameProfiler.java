@@ -0,0 +1,294 @@
+import greenfoot.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings of the phases of each frame and counts of what was drawn, kept for
+ * the most recent frames so that slow frames can be traced to their cause.
+ * <p>
+ * Profiling is off by default. While it is off, {@link #start} returns
+ * without reading the clock and every other recording method returns after a
+ * single check, so instrumented code costs next to nothing. While it is on,
+ * the totals of each frame are kept in a ring of recent frames, which can be
+ * drawn as an overlay with {@link #drawOverlay} or written out with
+ * {@link #writeCsv}.
+ * <p>
+ * Frames are begun and ended on the thread that renders frames. In between,
+ * phases and counters may be recorded from any thread, such as the threads
+ * drawing viewports at the same time, so phases that run on several threads
+ * at once add up the time spent on each. Work done on other threads outside
+ * of a frame, such as simulation ticks, is timed there and recorded once it
+ * has been handed back.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class FrameProfiler {
+    /**
+     * A timed part of a frame.
+     */
+    public enum Phase {
+        /** Running simulation ticks, including sprite updates. */
+        UPDATE,
+        /** Finding the spracks near the viewport in the spatial index. */
+        CULL,
+        /** Interpolating and transforming the locations of visible spracks. */
+        TRANSFORM,
+        /** Sorting visible spracks into draw order. */
+        SORT,
+        /** Drawing the frame's viewports with their renderers, including SCALE and DRAW. */
+        RENDER,
+        /** Fetching or creating scaled sprack images with {@link SprackView#getTransformedImage}. */
+        SCALE,
+        /** Drawing scaled sprack images onto the canvas with {@link GreenfootImage#drawImage}. */
+        DRAW,
+    }
+
+    /**
+     * A count of events during a frame.
+     */
+    public enum Counter {
+        /** Spracks skipped because the spatial index put them away from the viewport. */
+        GRID_CULLED,
+        /** Spracks near the viewport whose images turned out to lie outside the canvas. */
+        OFFSCREEN_CULLED,
+        /** Spracks drawn onto the canvas. */
+        DRAWN,
+        /** Scaled images created because they were not in a scaled image cache. */
+        IMAGES_CREATED,
+        /** Scaled images found in a scaled image cache. */
+        CACHE_HITS,
+        /** Pre-composited tiles of static spracks drawn onto the canvas. */
+        TILES_DRAWN,
+        /** Tiles of static spracks composited because they were not in the tile cache. */
+        TILES_COMPOSITED,
+        /** Chunks of a streamed world whose spracks were added to the world. */
+        CHUNKS_LOADED,
+        /** Chunks of a streamed world whose spracks were removed from the world. */
+        CHUNKS_EVICTED,
+    }
+
+    /** The number of recent frames kept. */
+    public static final int HISTORY_FRAMES = 240;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 176);
+    private static final Color OVERLAY_TEXT = new Color(224, 224, 224);
+    private static final Font OVERLAY_FONT = new Font("Monospaced", false, false, 12);
+    private static final int OVERLAY_LINE_HEIGHT = 14;
+
+    // Don't let anyone instantiate this class
+    private FrameProfiler() {}
+
+    private static boolean enabled;
+    /** The time at which the current frame started, or 0 if no frame has started since enabling. */
+    private static long frameStart;
+    /** The totals of the current frame, indexed by ordinal. */
+    private static final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+    private static final AtomicLongArray counts = new AtomicLongArray(COUNTERS.length);
+    /** The totals of recent frames, as rings indexed by frame number modulo HISTORY_FRAMES. */
+    private static final long[] frameHistory = new long[HISTORY_FRAMES];
+    private static final long[][] phaseHistory = new long[PHASES.length][HISTORY_FRAMES];
+    private static final long[][] countHistory = new long[COUNTERS.length][HISTORY_FRAMES];
+    /** The number of frames recorded since profiling was last enabled. */
+    private static int recordedFrames;
+
+    /**
+     * Turn profiling on or off. Turning it on discards the frames recorded
+     * before it was last turned off.
+     *
+     * @param enabled whether to record following frames
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !FrameProfiler.enabled) {
+            recordedFrames = 0;
+            frameStart = 0;
+        }
+        FrameProfiler.enabled = enabled;
+    }
+
+    /**
+     * Return whether frames are being recorded.
+     *
+     * @return true if profiling is on
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start a new frame, discarding anything recorded since the end of the
+     * previous one.
+     */
+    public static void beginFrame() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseNanos.set(i, 0);
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counts.set(i, 0);
+        }
+        frameStart = System.nanoTime();
+    }
+
+    /**
+     * End the current frame and add its totals to the recent frames.
+     */
+    public static void endFrame() {
+        if (!enabled || frameStart == 0) {
+            return;
+        }
+        int slot = recordedFrames % HISTORY_FRAMES;
+        frameHistory[slot] = System.nanoTime() - frameStart;
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseHistory[i][slot] = phaseNanos.get(i);
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            countHistory[i][slot] = counts.get(i);
+        }
+        recordedFrames++;
+    }
+
+    /**
+     * Return the current time to pass to {@link #stop} at the end of a timed
+     * phase, or 0 without reading the clock if profiling is off.
+     *
+     * @return the start time of the phase, in nanoseconds
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Add the time since the given start time to the given phase of the
+     * current frame.
+     *
+     * @param phase the phase that was timed
+     * @param start the time returned by {@link #start} at the start of the phase
+     */
+    public static void stop(Phase phase, long start) {
+        if (enabled) {
+            phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Add the given time, measured elsewhere, to the given phase of the
+     * current frame.
+     *
+     * @param phase the phase that was timed
+     * @param nanos the time spent in the phase, in nanoseconds
+     */
+    public static void add(Phase phase, long nanos) {
+        if (enabled) {
+            phaseNanos.addAndGet(phase.ordinal(), nanos);
+        }
+    }
+
+    /**
+     * Add the given amount to the given counter of the current frame.
+     *
+     * @param counter the counter to add to
+     * @param amount the number of events
+     */
+    public static void count(Counter counter, int amount) {
+        if (enabled) {
+            counts.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    /**
+     * Return the number of recent frames available.
+     */
+    private static int getHistorySize() {
+        return Math.min(recordedFrames, HISTORY_FRAMES);
+    }
+
+    /**
+     * Draw a summary of the recent frames in the top left corner of the
+     * given canvas: the average and worst time of each phase, and the
+     * average of each counter.
+     *
+     * @param canvas the image to draw onto
+     */
+    public static void drawOverlay(GreenfootImage canvas) {
+        int frames = getHistorySize();
+        String[] lines = new String[2 + PHASES.length + COUNTERS.length];
+        lines[0] = String.format("%d frames        avg ms   max ms", frames);
+        lines[1] = formatTiming("FRAME", frameHistory, frames);
+        for (int i = 0; i < PHASES.length; i++) {
+            lines[2 + i] = formatTiming(PHASES[i].name(), phaseHistory[i], frames);
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            long total = 0;
+            for (int j = 0; j < frames; j++) {
+                total += countHistory[i][j];
+            }
+            lines[2 + PHASES.length + i] = String.format("%-16s %8.1f", COUNTERS[i].name(), frames == 0 ? 0.0 : (double) total / frames);
+        }
+
+        canvas.setColor(OVERLAY_BACKGROUND);
+        canvas.fillRect(0, 0, 250, lines.length * OVERLAY_LINE_HEIGHT + 6);
+        canvas.setFont(OVERLAY_FONT);
+        canvas.setColor(OVERLAY_TEXT);
+        for (int i = 0; i < lines.length; i++) {
+            canvas.drawString(lines[i], 4, (i + 1) * OVERLAY_LINE_HEIGHT);
+        }
+    }
+
+    /**
+     * Return a line of the overlay giving the average and worst of the given
+     * recent timings.
+     */
+    private static String formatTiming(String name, long[] history, int frames) {
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < frames; i++) {
+            total += history[i];
+            max = Math.max(max, history[i]);
+        }
+        return String.format("%-16s %8.3f %8.3f", name, frames == 0 ? 0.0 : total / 1e6 / frames, max / 1e6);
+    }
+
+    /**
+     * Write the recent frames to the given file as comma-separated values,
+     * oldest first, with one row per frame and one column per phase, in
+     * nanoseconds, and per counter.
+     *
+     * @param path the file to write, replaced if it exists
+     * @throws IOException if the file could not be written
+     */
+    public static void writeCsv(Path path) throws IOException {
+        int frames = getHistorySize();
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("frame,FRAME");
+            for (Phase phase : PHASES) {
+                writer.write(',');
+                writer.write(phase.name());
+            }
+            for (Counter counter : COUNTERS) {
+                writer.write(',');
+                writer.write(counter.name());
+            }
+            writer.newLine();
+            for (int frame = recordedFrames - frames; frame < recordedFrames; frame++) {
+                int slot = frame % HISTORY_FRAMES;
+                writer.write(frame + "," + frameHistory[slot]);
+                for (int i = 0; i < PHASES.length; i++) {
+                    writer.write("," + phaseHistory[i][slot]);
+                }
+                for (int i = 0; i < COUNTERS.length; i++) {
+                    writer.write("," + countHistory[i][slot]);
+                }
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import greenfoot.*;
+
+/**
+ * A way of drawing a frame's spracks onto a canvas.
+ * <p>
+ * Before a renderer is called, every sprack to draw has had its screen
+ * location and image transform updated, and the spracks have been sorted into
+ * draw order.
+ * <p>
+ * Rendering happens in two steps. {@link #prepare} reads everything the
+ * renderer needs from the spracks and static chunks of the frame, since the
+ * screen state of a sprack is overwritten when another viewport of the same
+ * world is prepared. {@link #draw} then draws what was prepared, reading only
+ * what prepare kept and the thread-safe caches of {@link SprackView}s, so the
+ * renderers of different viewports can draw at the same time on different
+ * threads. A single renderer is never prepared or drawn from two threads at
+ * once.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public interface FrameRenderer {
+    /**
+     * Read what is needed to draw the spracks of the given draw order onto
+     * the given canvas from back to front. If this renderer {@link #drawsStaticTiles
+     * draws static tiles}, the visible tiles of the given static chunks are
+     * drawn behind the spracks, and spracks that already appear in a tile
+     * need only be drawn again where they must cover something drawn
+     * individually.
+     *
+     * @param canvas the image that will be drawn onto
+     * @param order the spracks to draw, in draw order
+     * @param statics the static chunks holding the frame's visible tiles
+     */
+    void prepare(GreenfootImage canvas, DepthSorter order, StaticChunks statics);
+
+    /**
+     * Fill the canvas with the given background color, then draw what was
+     * read by the last call to {@link #prepare} onto it. This may run at the
+     * same time as other renderers, but not at the same time as any other
+     * method of this renderer.
+     *
+     * @param canvas the image to draw onto, the same one given to prepare
+     * @param background the color to fill the canvas with, fully opaque
+     */
+    void draw(GreenfootImage canvas, Color background);
+
+    /**
+     * Prepare and draw the given spracks onto the given canvas in one step.
+     *
+     * @param canvas the image to draw onto
+     * @param background the color to fill the canvas with, fully opaque
+     * @param order the spracks to draw, in draw order
+     * @param statics the static chunks holding the frame's visible tiles
+     */
+    default void render(GreenfootImage canvas, Color background, DepthSorter order, StaticChunks statics) {
+        prepare(canvas, order, statics);
+        draw(canvas, background);
+    }
+
+    /**
+     * Return whether this renderer draws static spracks from the
+     * pre-composited tiles of {@link StaticChunks}. Renderers that do not
+     * are given every visible static sprack to draw individually.
+     *
+     * @return true if static tiles should be prepared for this renderer
+     */
+    default boolean drawsStaticTiles() {
+        return false;
+    }
+
+    /**
+     * Return whether this renderer draws spracks from the cached images of
+     * their views. While no renderer of any pipeline does, the
+     * {@link ViewCacheManager} of the views releases their cached images
+     * and stops rendering angles ahead.
+     *
+     * @return true if this renderer reads cached images
+     */
+    default boolean usesImageCache() {
+        return true;
+    }
+
+    /**
+     * Return the largest zoom factor that this renderer can draw spracks at.
+     * Renderers that draw from the image caches of views are limited to the
+     * scale factor of those caches.
+     *
+     * @return the maximum zoom factor
+     */
+    default double getMaxZoom() {
+        return SprackView.IMAGE_CACHE_SCALE;
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.Arrays;
+
+/**
+ * A renderer that composites spracks straight into the pixel array of the
+ * canvas, reading pixels straight from the image caches of their views.
+ * <p>
+ * Each sprack's cached image is scaled with nearest-neighbour sampling and
+ * alpha blended by hand, one tile at a time, across all cores. Only the runs
+ * of visible pixels in each row of the cached image are visited.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class FramebufferRenderer extends TiledRenderer {
+    /** The source images of the spracks drawn this frame, in draw order. */
+    private PixelRegion[] itemRegions;
+    /** The spans of the source images of the spracks drawn this frame, in draw order. */
+    private SpanTable[] itemSpans;
+
+    /**
+     * Create a new framebuffer renderer.
+     */
+    public FramebufferRenderer() {
+        itemRegions = new PixelRegion[0];
+        itemSpans = new SpanTable[0];
+    }
+
+    @Override
+    protected boolean prepareItem(Sprack sprack, int item) {
+        setItemBounds(item, sprack.getDrawX(), sprack.getDrawY(), sprack.getDrawWidth(), sprack.getDrawHeight());
+        itemRegions[item] = sprack.getImageRegion();
+        itemSpans[item] = sprack.getImageSpans();
+        return true;
+    }
+
+    @Override
+    protected void growItems(int capacity) {
+        super.growItems(capacity);
+        itemRegions = Arrays.copyOf(itemRegions, capacity);
+        itemSpans = Arrays.copyOf(itemSpans, capacity);
+    }
+
+    @Override
+    protected void finishFrame(int itemCount) {
+        // Don't keep images alive longer than necessary
+        Arrays.fill(itemRegions, null);
+        Arrays.fill(itemSpans, null);
+    }
+
+    /**
+     * Composite the part of the given item within the given clip rectangle
+     * onto the target, scaling it with nearest-neighbour sampling and
+     * skipping the transparent runs of each source row.
+     */
+    @Override
+    protected void drawItem(int item, int x, int y, int width, int height,
+                            int clipLeft, int clipTop, int clipRight, int clipBottom) {
+        PixelRegion.composite(itemRegions[item], itemSpans[item], x, y, width, height,
+                              target, targetOffset, targetStride, clipLeft, clipTop, clipRight, clipBottom);
+    }
+}
@@ -0,0 +1,222 @@
+import greenfoot.*;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+
+/**
+ * A renderer that draws each sprack's scaled image onto the canvas with
+ * {@link GreenfootImage#drawImage}, one sprack at a time.
+ * <p>
+ * Optionally, static spracks are drawn from the pre-composited tiles of
+ * {@link StaticChunks}, behind everything else. A static sprack in a tile is
+ * drawn again individually only if its image intersects that of a sprack
+ * drawn individually before it in draw order, so that it still covers what
+ * is behind it. Tiled frames are drawn at the camera rotations that tiles
+ * are composited for, and spracks are positioned within tiles relative to
+ * their chunk rather than to the screen, so their images can land a pixel
+ * away from where they would be drawn individually. Tiling is therefore off
+ * by default.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class GreenfootRenderer implements FrameRenderer {
+    private final boolean tiled;
+
+    /** The images of the visible tiles of the frame, and the transforms to draw them with. */
+    private GreenfootImage[] tileImages;
+    private AffineTransform[] tileTransforms;
+    private int tileCount;
+
+    /** The views of the spracks drawn individually this frame, in draw order. */
+    private SprackView[] itemViews;
+    /** The rotation and quantized scale factor of the cached image of each item, or NaN rotation to draw its impostor. */
+    private double[] itemRotation;
+    private double[] itemScale;
+    /** The screen rectangles of the spracks drawn individually this frame. */
+    private int[] itemX;
+    private int[] itemY;
+    private int[] itemWidth;
+    private int[] itemHeight;
+    private int itemCount;
+
+    /**
+     * Create a new renderer that draws every sprack individually.
+     */
+    public GreenfootRenderer() {
+        this(false);
+    }
+
+    /**
+     * Create a new renderer.
+     *
+     * @param tiled whether to draw static spracks from tiles rather than individually
+     */
+    public GreenfootRenderer(boolean tiled) {
+        this.tiled = tiled;
+        tileImages = new GreenfootImage[0];
+        tileTransforms = new AffineTransform[0];
+        itemViews = new SprackView[0];
+        itemRotation = new double[0];
+        itemScale = new double[0];
+        itemX = new int[0];
+        itemY = new int[0];
+        itemWidth = new int[0];
+        itemHeight = new int[0];
+    }
+
+    @Override
+    public boolean drawsStaticTiles() {
+        return tiled;
+    }
+
+    @Override
+    public void prepare(GreenfootImage canvas, DepthSorter order, StaticChunks statics) {
+        tileCount = 0;
+        if (tiled) {
+            prepareTiles(statics);
+        }
+        itemCount = 0;
+        for (int i = 0; i < order.size(); i++) {
+            Sprack sprack = order.get(i);
+            if (tiled && sprack.isDrawnInTile() && !coversDrawn(sprack)) {
+                continue;
+            }
+            addItem(sprack, canvas);
+        }
+    }
+
+    /**
+     * Keep the visible tiles of the given static chunks, which are replaced
+     * when the tiles of another viewport are prepared.
+     */
+    private void prepareTiles(StaticChunks statics) {
+        int count = statics.getVisibleTileCount();
+        if (tileImages.length < count) {
+            int capacity = Math.max(count, tileImages.length * 2);
+            tileImages = Arrays.copyOf(tileImages, capacity);
+            tileTransforms = Arrays.copyOf(tileTransforms, capacity);
+            for (int i = 0; i < capacity; i++) {
+                if (tileTransforms[i] == null) {
+                    tileTransforms[i] = new AffineTransform();
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            tileImages[i] = statics.getVisibleTileImage(i);
+            tileTransforms[i].setTransform(statics.getVisibleTileTransform(i));
+        }
+        tileCount = count;
+    }
+
+    /**
+     * Add the given sprack to the items to draw, unless its image lies
+     * entirely outside the canvas.
+     */
+    private void addItem(Sprack sprack, GreenfootImage canvas) {
+        int x = sprack.getDrawX();
+        int y = sprack.getDrawY();
+        int width = sprack.getDrawWidth();
+        int height = sprack.getDrawHeight();
+        // Don't draw if offscreen
+        if (x + width <= 0 || x >= canvas.getWidth() || y + height <= 0 || y >= canvas.getHeight()) {
+            FrameProfiler.count(FrameProfiler.Counter.OFFSCREEN_CULLED, 1);
+            return;
+        }
+        if (itemCount == itemX.length) {
+            int capacity = Math.max(16, itemCount * 2);
+            itemViews = Arrays.copyOf(itemViews, capacity);
+            itemRotation = Arrays.copyOf(itemRotation, capacity);
+            itemScale = Arrays.copyOf(itemScale, capacity);
+            itemX = Arrays.copyOf(itemX, capacity);
+            itemY = Arrays.copyOf(itemY, capacity);
+            itemWidth = Arrays.copyOf(itemWidth, capacity);
+            itemHeight = Arrays.copyOf(itemHeight, capacity);
+        }
+        itemViews[itemCount] = sprack.getView();
+        itemRotation[itemCount] = sprack.getDetail() == SprackView.LevelOfDetail.IMPOSTOR ? Double.NaN : sprack.getImageRotation();
+        itemScale[itemCount] = sprack.getImageScale();
+        itemX[itemCount] = x;
+        itemY[itemCount] = y;
+        itemWidth[itemCount] = width;
+        itemHeight[itemCount] = height;
+        itemCount++;
+    }
+
+    @Override
+    public void draw(GreenfootImage canvas, Color background) {
+        canvas.setColor(background);
+        canvas.fill();
+        drawTiles(canvas);
+        for (int i = 0; i < itemCount; i++) {
+            drawItem(canvas, i);
+        }
+        // Don't keep images alive longer than necessary
+        Arrays.fill(tileImages, 0, tileCount, null);
+        Arrays.fill(itemViews, 0, itemCount, null);
+    }
+
+    /**
+     * Draw the kept visible tiles onto the canvas.
+     */
+    private void drawTiles(GreenfootImage canvas) {
+        if (tileCount == 0) {
+            return;
+        }
+        long start = FrameProfiler.start();
+        Graphics2D graphics = canvas.getAwtImage().createGraphics();
+        // Tiles are only ever rotated and scaled slightly, and filtering them costs several times as much
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        for (int i = 0; i < tileCount; i++) {
+            graphics.drawImage(tileImages[i].getAwtImage(), tileTransforms[i], null);
+        }
+        graphics.dispose();
+        FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+    }
+
+    /**
+     * Draw the given item onto the canvas: its impostor, or its cached image
+     * scaled by its view.
+     */
+    private void drawItem(GreenfootImage canvas, int item) {
+        SprackView view = itemViews[item];
+        long start;
+        if (Double.isNaN(itemRotation[item])) {
+            start = FrameProfiler.start();
+            canvas.setColor(view.getImpostorColor());
+            canvas.fillRect(itemX[item], itemY[item], itemWidth[item], itemHeight[item]);
+            FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+            FrameProfiler.count(FrameProfiler.Counter.DRAWN, 1);
+            return;
+        }
+        start = FrameProfiler.start();
+        GreenfootImage image = view.getTransformedImage(itemRotation[item], itemScale[item]);
+        FrameProfiler.stop(FrameProfiler.Phase.SCALE, start);
+        if (image == null) {
+            return;
+        }
+        start = FrameProfiler.start();
+        canvas.drawImage(image, itemX[item], itemY[item]);
+        FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+        FrameProfiler.count(FrameProfiler.Counter.DRAWN, 1);
+    }
+
+    /**
+     * Return whether the image of the given sprack intersects that of a
+     * sprack to be drawn individually earlier in the frame.
+     */
+    private boolean coversDrawn(Sprack sprack) {
+        int x = sprack.getDrawX();
+        int y = sprack.getDrawY();
+        int right = x + sprack.getDrawWidth();
+        int bottom = y + sprack.getDrawHeight();
+        for (int i = 0; i < itemCount; i++) {
+            if (x < itemX[i] + itemWidth[i] && itemX[i] < right
+                && y < itemY[i] + itemHeight[i] && itemY[i] < bottom) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
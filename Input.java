@@ -0,0 +1,58 @@
+/**
+ * The input of the frame currently being simulated, read in place of the
+ * keyboard by world logic and sprite updates so that recorded sessions can
+ * be replayed.
+ * <p>
+ * The input is set by the {@link FramePipeline} on the simulation thread
+ * just before the ticks of each frame run, and stays the same while they
+ * run. Other threads should ask the pipeline for its input instead, with
+ * {@link FramePipeline#getFrameInput}, since the ticks of another pipeline
+ * may have run since.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class Input {
+    // Don't let anyone instantiate this class
+    private Input() {}
+
+    private static volatile FrameInput current = new FrameInput(0, 0.0, 0, null);
+
+    /**
+     * Set the input of the frame about to be simulated.
+     *
+     * @param input the input of the frame
+     */
+    public static void setFrame(FrameInput input) {
+        current = input;
+    }
+
+    /**
+     * Return the input of the frame being simulated.
+     *
+     * @return the input of the current frame
+     */
+    public static FrameInput getFrame() {
+        return current;
+    }
+
+    /**
+     * Return whether the given key was held down at the start of the current
+     * frame.
+     *
+     * @param key the name of one of {@link FrameInput#TRACKED_KEYS}
+     * @return true if the key is held down
+     */
+    public static boolean isKeyDown(String key) {
+        return current.isKeyDown(key);
+    }
+
+    /**
+     * Return the name of the key last typed before the current frame.
+     *
+     * @return the name of the typed key, or null if no key was typed
+     */
+    public static String getKey() {
+        return current.getKey();
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * A source of frame input that passes on the input of another source and
+ * adds it to a trace.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class InputRecorder implements InputSource {
+    private final InputSource source;
+    private final InputTrace trace;
+
+    /**
+     * Create a new recorder of the given source.
+     *
+     * @param source the source of the input to record
+     * @param trace the trace to add each frame's input to
+     */
+    public InputRecorder(InputSource source, InputTrace trace) {
+        this.source = source;
+        this.trace = trace;
+    }
+
+    @Override
+    public FrameInput nextFrame(int ticks, double alpha) {
+        FrameInput input = source.nextFrame(ticks, alpha);
+        // The source may update the same input in place next frame
+        trace.add(new FrameInput(input));
+        return input;
+    }
+
+    /**
+     * Return the trace of the input recorded so far.
+     *
+     * @return the trace being recorded
+     */
+    public InputTrace getTrace() {
+        return trace;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * A source of frame input that plays back a recorded trace, ignoring the
+ * real-time clock so that every frame runs the same ticks as when it was
+ * recorded.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class InputReplay implements InputSource {
+    private final InputTrace trace;
+    private int position;
+
+    /**
+     * Create a new replay of the given trace, starting at its first frame.
+     *
+     * @param trace the trace to play back
+     */
+    public InputReplay(InputTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Return whether there are frames left to play back.
+     *
+     * @return true if the next frame is in the trace
+     */
+    public boolean hasNext() {
+        return position < trace.size();
+    }
+
+    /**
+     * Return the input of the next frame of the trace.
+     *
+     * @throws IllegalStateException if every frame of the trace has been played back
+     */
+    @Override
+    public FrameInput nextFrame(int ticks, double alpha) {
+        if (!hasNext()) {
+            throw new IllegalStateException("Replay has passed the end of its trace");
+        }
+        return trace.get(position++);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * A source of the input of each frame rendered by a {@link FramePipeline}.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public interface InputSource {
+    /**
+     * Return a new source that never has any keys held down or typed, and
+     * keeps the timing it is given.
+     *
+     * @return a source of empty input
+     */
+    static InputSource none() {
+        FrameInput input = new FrameInput(0, 0.0, 0, null);
+        return (ticks, alpha) -> {
+            input.set(ticks, alpha, 0, null);
+            return input;
+        };
+    }
+
+    /**
+     * Return the input of the next frame, which may be the input of the
+     * previous frame updated in place.
+     *
+     * @param ticks the number of ticks due since the last frame by the real-time clock
+     * @param alpha the fraction of a tick left over since the last tick by the real-time clock
+     * @return the input of the frame, which may use the given timing or replace it
+     */
+    FrameInput nextFrame(int ticks, double alpha);
+}
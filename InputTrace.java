@@ -0,0 +1,182 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded session: the seed of its generated world, the world file
+ * streamed around its camera if any, and the input of every frame, in order.
+ * <p>
+ * Traces are saved as text, with a header line followed by one line per
+ * frame:
+ * <pre>
+ * gfss-trace VERSION SEED KEY,KEY,... [WORLD_FILE]
+ * TICKS ALPHA KEYS_DOWN [TYPED_KEY]
+ * </pre>
+ * The header lists the tracked keys in the order of their bits, so traces
+ * recorded with different tracked keys are rejected rather than misread.
+ * Version 1 traces, which never name a world file, are still read.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class InputTrace {
+    private static final String MAGIC = "gfss-trace";
+    private static final int FORMAT_VERSION = 2;
+    /** The oldest format version that can still be read. */
+    private static final int MIN_FORMAT_VERSION = 1;
+
+    private final long seed;
+    private final Path worldFile;
+    private final List<FrameInput> frames;
+
+    /**
+     * Create a new empty trace of a world generated with the given seed,
+     * without a streamed world file.
+     *
+     * @param seed the seed of the {@link WorldGenerator} of the recorded world
+     */
+    public InputTrace(long seed) {
+        this(seed, null);
+    }
+
+    /**
+     * Create a new empty trace of a world generated with the given seed.
+     *
+     * @param seed the seed of the {@link WorldGenerator} of the recorded world
+     * @param worldFile the {@link WorldFile} streamed around the camera, or null if none was
+     */
+    public InputTrace(long seed, Path worldFile) {
+        this.seed = seed;
+        this.worldFile = worldFile;
+        frames = new ArrayList<>();
+    }
+
+    /**
+     * Add the input of a frame to the end of this trace.
+     *
+     * @param input the input of the frame
+     */
+    public synchronized void add(FrameInput input) {
+        frames.add(input);
+    }
+
+    /**
+     * Return the seed of the world this trace was recorded in.
+     *
+     * @return the seed of the world generator
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Return the world file that was streamed around the camera of the
+     * recorded world. Replays must stream it synchronously, as the recorded
+     * world did.
+     *
+     * @return the path of the world file, or null if no world file was streamed
+     */
+    public Path getWorldFile() {
+        return worldFile;
+    }
+
+    /**
+     * Return the number of frames in this trace.
+     *
+     * @return the number of frames
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * Return the input of the frame at the given index.
+     *
+     * @param index the index of the frame
+     * @return the input of the frame
+     */
+    public synchronized FrameInput get(int index) {
+        return frames.get(index);
+    }
+
+    /**
+     * Write this trace to the given file.
+     *
+     * @param path the file to write, replaced if it exists
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void save(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(MAGIC + " " + FORMAT_VERSION + " " + seed + " " + String.join(",", FrameInput.TRACKED_KEYS));
+            if (worldFile != null) {
+                writer.write(" " + worldFile);
+            }
+            writer.newLine();
+            for (FrameInput frame : frames) {
+                // Doubles are written in a form that reads back exactly
+                writer.write(frame.getTicks() + " " + frame.getAlpha() + " " + frame.getKeysDown());
+                if (frame.getKey() != null) {
+                    writer.write(" " + frame.getKey());
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Read a trace from the given file.
+     *
+     * @param path the file to read
+     * @return the trace stored in the file
+     * @throws IOException if the file could not be read or is not a valid trace
+     */
+    public static InputTrace load(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            // The world file is the rest of the line, so its path may contain spaces
+            String[] fields = header == null ? new String[0] : header.split(" ", 5);
+            int version = fields.length >= 2 ? parseVersion(fields[1]) : -1;
+            if (fields.length < 4 || !fields[0].equals(MAGIC) || version < MIN_FORMAT_VERSION || version > FORMAT_VERSION
+                || (version == 1 && fields.length > 4)) {
+                throw new IOException("Not a version " + MIN_FORMAT_VERSION + " to " + FORMAT_VERSION + " input trace: " + path);
+            }
+            if (!fields[3].equals(String.join(",", FrameInput.TRACKED_KEYS))) {
+                throw new IOException("Input trace was recorded with different tracked keys: " + fields[3]);
+            }
+            InputTrace trace;
+            try {
+                trace = new InputTrace(Long.parseLong(fields[2]), fields.length > 4 ? Paths.get(fields[4]) : null);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] frame = line.split(" ", 4);
+                    if (frame.length < 3) {
+                        throw new IOException("Malformed input trace frame: " + line);
+                    }
+                    trace.add(new FrameInput(Integer.parseInt(frame[0]), Double.parseDouble(frame[1]),
+                                             Integer.parseInt(frame[2]), frame.length > 3 ? frame[3] : null));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed input trace: " + path, e);
+            }
+            return trace;
+        }
+    }
+
+    /**
+     * Return the format version in the header of a trace, or -1 if it is not
+     * a number.
+     */
+    private static int parseVersion(String version) {
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
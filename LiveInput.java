@@ -0,0 +1,25 @@
+import greenfoot.*;
+
+/**
+ * The input of a frame taken from the keyboard as Greenfoot sees it, with the
+ * timing of the real-time clock.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class LiveInput implements InputSource {
+    /** The input returned for every frame, updated in place. */
+    private final FrameInput input = new FrameInput(0, 0.0, 0, null);
+
+    @Override
+    public FrameInput nextFrame(int ticks, double alpha) {
+        int keysDown = 0;
+        for (int i = 0; i < FrameInput.TRACKED_KEYS.size(); i++) {
+            if (Greenfoot.isKeyDown(FrameInput.TRACKED_KEYS.get(i))) {
+                keysDown |= 1 << i;
+            }
+        }
+        input.set(ticks, alpha, keysDown, Greenfoot.getKey());
+        return input;
+    }
+}
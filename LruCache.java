@@ -0,0 +1,354 @@
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity least-recently-used cache mapping long keys to values.
+ * <p>
+ * Entries are stored in preallocated arrays, so looking up, inserting, and
+ * evicting entries never allocates once the cache has been created. When the
+ * cache is full, inserting a new key evicts the entry that was least recently
+ * returned by {@link #get} or inserted by {@link #put}.
+ * <p>
+ * Entries may also be given weights, such as their size in bytes, in which
+ * case least recently used entries are evicted whenever the total weight
+ * exceeds the cache's maximum weight.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class LruCache<V> {
+    /** The value used in the hash table and linked list arrays to indicate no entry. */
+    private static final int NONE = -1;
+
+    /** The maximum number of entries held by this cache. */
+    private final int capacity;
+    /** The maximum total weight of the entries held by this cache. */
+    private final long maxWeight;
+
+    /** The keys of entries, indexed by entry number. */
+    private final long[] keys;
+    /** The values of entries, indexed by entry number. */
+    private final Object[] values;
+    /** The weights of entries, indexed by entry number. */
+    private final long[] weights;
+    /** The entry number of the next more recently used entry, indexed by entry number. */
+    private final int[] newer;
+    /** The entry number of the next less recently used entry, indexed by entry number. */
+    private final int[] older;
+
+    /**
+     * Open-addressed hash table of entry numbers, using linear probing. Empty
+     * slots contain NONE.
+     */
+    private final int[] table;
+    /** The bit mask used to wrap indices into the hash table. */
+    private final int tableMask;
+
+    /** The number of entries currently held. */
+    private int size;
+    /** The number of entry numbers that have been used, including free ones. */
+    private int usedEntries;
+    /** The first entry number freed by eviction, linked through older, or NONE if there are none. */
+    private int freeEntries;
+    /** The total weight of the entries currently held. */
+    private long weight;
+    /** The entry number of the most recently used entry, or NONE if empty. */
+    private int newest;
+    /** The entry number of the least recently used entry, or NONE if empty. */
+    private int oldest;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a new empty cache that holds at most the given number of entries.
+     *
+     * @param capacity the maximum number of entries to hold
+     * @throws IllegalArgumentException if the given capacity is not positive
+     */
+    public LruCache(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a new empty cache that holds at most the given number of entries
+     * with at most the given total weight.
+     *
+     * @param capacity the maximum number of entries to hold
+     * @param maxWeight the maximum total weight of entries to hold
+     * @throws IllegalArgumentException if the given capacity or maximum weight is not positive
+     */
+    public LruCache(int capacity, long maxWeight) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Cache maximum weight must be positive");
+        }
+        this.capacity = capacity;
+        this.maxWeight = maxWeight;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        weights = new long[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+        // Keep the load factor of the hash table at or below 0.5
+        table = new int[Integer.highestOneBit(capacity) << 2];
+        tableMask = table.length - 1;
+        Arrays.fill(table, NONE);
+        newest = NONE;
+        oldest = NONE;
+        freeEntries = NONE;
+    }
+
+    /**
+     * Return the value associated with the given key and mark it as the most
+     * recently used entry, or return null if no such entry exists.
+     *
+     * @param key the key to look up
+     * @return the value associated with the key, or null if it is not cached
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int entry = table[findSlot(key)];
+        if (entry == NONE) {
+            misses++;
+            return null;
+        }
+        hits++;
+        moveToNewest(entry);
+        return (V) values[entry];
+    }
+
+    /**
+     * Associate the given value with the given key, evicting the least
+     * recently used entry if the cache is full.
+     *
+     * @param key the key to associate the value with
+     * @param value the value to cache, not null
+     */
+    public void put(long key, V value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Associate the given value with the given key and weight, then evict
+     * least recently used entries until both the number of entries and their
+     * total weight are within this cache's limits. The new entry itself is
+     * never evicted, even if its weight alone is over the limit.
+     *
+     * @param key the key to associate the value with
+     * @param value the value to cache, not null
+     * @param weight the weight of the value, not negative
+     */
+    public void put(long key, V value, long weight) {
+        if (value == null) {
+            throw new IllegalArgumentException("Cannot cache a null value");
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("Cannot cache a value with negative weight");
+        }
+        int slot = findSlot(key);
+        int entry = table[slot];
+        if (entry != NONE) {
+            values[entry] = value;
+            this.weight += weight - weights[entry];
+            weights[entry] = weight;
+            moveToNewest(entry);
+        } else {
+            if (size == capacity) {
+                evictOldest();
+                // Removing from the table may have shifted the free slot for the new key
+                slot = findSlot(key);
+            }
+            if (freeEntries != NONE) {
+                entry = freeEntries;
+                freeEntries = older[entry];
+            } else {
+                entry = usedEntries++;
+            }
+            size++;
+            keys[entry] = key;
+            values[entry] = value;
+            weights[entry] = weight;
+            this.weight += weight;
+            table[slot] = entry;
+            linkAsNewest(entry);
+        }
+        while (this.weight > maxWeight && oldest != newest) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Remove the least recently used entry and add its entry number to the
+     * free list.
+     */
+    private void evictOldest() {
+        int entry = oldest;
+        removeFromTable(keys[entry]);
+        unlink(entry);
+        values[entry] = null;
+        weight -= weights[entry];
+        older[entry] = freeEntries;
+        freeEntries = entry;
+        size--;
+        evictions++;
+    }
+
+    /**
+     * Remove all entries from this cache. The hit, miss, and eviction counts
+     * are left unchanged.
+     */
+    public void clear() {
+        Arrays.fill(table, NONE);
+        Arrays.fill(values, null);
+        size = 0;
+        usedEntries = 0;
+        freeEntries = NONE;
+        weight = 0;
+        newest = NONE;
+        oldest = NONE;
+    }
+
+    /**
+     * Return the number of entries currently held by this cache.
+     *
+     * @return the number of cached entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the maximum number of entries this cache can hold.
+     *
+     * @return the capacity of this cache
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Return the total weight of the entries currently held by this cache.
+     *
+     * @return the total weight of cached entries
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Return the maximum total weight of the entries this cache holds.
+     *
+     * @return the maximum weight of this cache
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that found a cached value.
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that did not find a cached value.
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Return the number of entries that have been evicted to make room for new ones.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Return the index into the hash table at which the given key would ideally be stored.
+     */
+    private int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32)) & tableMask;
+    }
+
+    /**
+     * Return the index of the hash table slot holding the given key, or of the
+     * empty slot at which it would be inserted if it is not present.
+     */
+    private int findSlot(long key) {
+        int slot = hash(key);
+        while (table[slot] != NONE && keys[table[slot]] != key) {
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the given key from the hash table, shifting back any following
+     * entries in the same probe sequence so that lookups remain correct.
+     */
+    private void removeFromTable(long key) {
+        int hole = findSlot(key);
+        table[hole] = NONE;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & tableMask;
+            int entry = table[slot];
+            if (entry == NONE) {
+                return;
+            }
+            int ideal = hash(keys[entry]);
+            // Move the entry into the hole unless its ideal slot lies cyclically within (hole, slot]
+            boolean reachable = hole <= slot
+                ? (ideal > hole && ideal <= slot)
+                : (ideal > hole || ideal <= slot);
+            if (!reachable) {
+                table[hole] = entry;
+                table[slot] = NONE;
+                hole = slot;
+            }
+        }
+    }
+
+    private void moveToNewest(int entry) {
+        if (entry != newest) {
+            unlink(entry);
+            linkAsNewest(entry);
+        }
+    }
+
+    private void linkAsNewest(int entry) {
+        newer[entry] = NONE;
+        older[entry] = newest;
+        if (newest != NONE) {
+            newer[newest] = entry;
+        } else {
+            oldest = entry;
+        }
+        newest = entry;
+    }
+
+    private void unlink(int entry) {
+        if (newer[entry] != NONE) {
+            older[newer[entry]] = older[entry];
+        } else {
+            newest = older[entry];
+        }
+        if (older[entry] != NONE) {
+            newer[older[entry]] = newer[entry];
+        } else {
+            oldest = newer[entry];
+        }
+    }
+}
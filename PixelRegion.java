@@ -0,0 +1,285 @@
+import greenfoot.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * A rectangular region of packed 32-bit ARGB pixels within an int array, used
+ * to read image pixels directly without going through Java2D.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class PixelRegion {
+    private final int[] pixels;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+    private final boolean premultiplied;
+
+    /**
+     * Create a new region of the given pixel array.
+     *
+     * @param pixels the array containing the pixels of the region
+     * @param offset the index of the top left pixel of the region
+     * @param stride the difference in index between vertically adjacent pixels
+     * @param width the width of the region, in pixels
+     * @param height the height of the region, in pixels
+     * @param premultiplied whether the color components of the pixels are premultiplied by their alpha
+     */
+    public PixelRegion(int[] pixels, int offset, int stride, int width, int height, boolean premultiplied) {
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        this.premultiplied = premultiplied;
+    }
+
+    /**
+     * Return a region covering the whole of the given image, sharing its
+     * pixels if they are stored in a packed int array, or holding a copy of
+     * them otherwise. Sharing the pixels of an image prevents Java2D from
+     * accelerating drawing of it.
+     *
+     * @param image the image to get the pixels of
+     * @return a region containing the pixels of the image
+     */
+    public static PixelRegion of(GreenfootImage image) {
+        BufferedImage awtImage = image.getAwtImage();
+        int width = awtImage.getWidth();
+        int height = awtImage.getHeight();
+        int type = awtImage.getType();
+        Raster raster = awtImage.getRaster();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE)
+            && raster.getDataBuffer() instanceof DataBufferInt
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && raster.getParent() == null) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            return new PixelRegion(buffer.getData(), buffer.getOffset(), stride, width, height,
+                                   type == BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        int[] pixels = awtImage.getRGB(0, 0, width, height, null, 0, width);
+        return new PixelRegion(pixels, 0, width, width, height, false);
+    }
+
+    /**
+     * Return a region covering the whole of the given image that shares its
+     * pixels, so that drawing into the region draws into the image, or null
+     * if the image does not store its pixels in a packed int array.
+     *
+     * @param image the image to share the pixels of
+     * @return a region sharing the pixels of the image, or null if they cannot be shared
+     */
+    public static PixelRegion wrap(GreenfootImage image) {
+        BufferedImage awtImage = image.getAwtImage();
+        int type = awtImage.getType();
+        Raster raster = awtImage.getRaster();
+        if ((type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_ARGB_PRE && type != BufferedImage.TYPE_INT_RGB)
+            || !(raster.getDataBuffer() instanceof DataBufferInt)
+            || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+            || raster.getParent() != null) {
+            return null;
+        }
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        return new PixelRegion(buffer.getData(), buffer.getOffset(), stride, awtImage.getWidth(), awtImage.getHeight(),
+                               type == BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    /**
+     * Set every pixel of this region to the given color.
+     *
+     * @param pixel the packed ARGB color to fill with, in the format of this region's pixels
+     */
+    public void fill(int pixel) {
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            Arrays.fill(pixels, row, row + width, pixel);
+        }
+    }
+
+    /**
+     * Composite this region onto the given target region, scaled to the
+     * given rectangle of the target with nearest-neighbour sampling and
+     * clipped to the target's bounds. Only the runs of visible pixels given
+     * by the spans are visited, and nothing is allocated.
+     *
+     * @param target the region to draw into, which must be opaque
+     * @param spans the runs of visible pixels in each row of this region
+     * @param x the x position in the target of the left edge of the scaled region
+     * @param y the y position in the target of the top edge of the scaled region
+     * @param width the width to scale this region to, in pixels
+     * @param height the height to scale this region to, in pixels
+     */
+    public void drawScaled(PixelRegion target, SpanTable spans, int x, int y, int width, int height) {
+        composite(this, spans, x, y, width, height, target.pixels, target.offset, target.stride,
+                  0, 0, target.width, target.height);
+    }
+
+    /**
+     * Composite the part of the given source region within the given clip
+     * rectangle onto the given opaque target pixels, scaling it to the given
+     * rectangle with nearest-neighbour sampling and skipping the transparent
+     * runs of each source row.
+     */
+    static void composite(PixelRegion region, SpanTable spans, int x, int y, int width, int height,
+                          int[] target, int targetOffset, int targetStride,
+                          int clipLeft, int clipTop, int clipRight, int clipBottom) {
+        int left = Math.max(x, clipLeft);
+        int top = Math.max(y, clipTop);
+        int right = Math.min(x + width, clipRight);
+        int bottom = Math.min(y + height, clipBottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        int[] source = region.pixels;
+        int sourceOffset = region.offset;
+        int sourceStride = region.stride;
+        boolean premultiplied = region.premultiplied;
+        // Step through the source in 16.16 fixed point, sampling at pixel centers
+        int stepX = (region.width << 16) / width;
+        int stepY = (region.height << 16) / height;
+        int halfStepX = stepX >> 1;
+        int sourceY = (top - y) * stepY + (stepY >> 1);
+        for (int dy = top; dy < bottom; dy++, sourceY += stepY) {
+            int row = sourceY >> 16;
+            int sourceRow = sourceOffset + row * sourceStride;
+            int targetRow = targetOffset + dy * targetStride;
+            for (int span = spans.getRowStart(row), end = spans.getRowEnd(row); span < end; span++) {
+                // Find the target columns that sample from within the span
+                int spanLeft = x + (int) ((((long) spans.getSpanStart(span) << 16) - halfStepX + stepX - 1) / stepX);
+                int spanRight = x + (int) ((((long) spans.getSpanEnd(span) << 16) - halfStepX + stepX - 1) / stepX);
+                int dx = Math.max(spanLeft, left);
+                int dxEnd = Math.min(spanRight, right);
+                if (dx >= dxEnd) {
+                    if (spanLeft >= right) {
+                        break;
+                    }
+                    continue;
+                }
+                int sourceX = (dx - x) * stepX + halfStepX;
+                for (; dx < dxEnd; dx++, sourceX += stepX) {
+                    int pixel = source[sourceRow + (sourceX >> 16)];
+                    int alpha = pixel >>> 24;
+                    if (alpha == 255) {
+                        target[targetRow + dx] = pixel;
+                        continue;
+                    }
+                    target[targetRow + dx] = TiledRenderer.blend(pixel, target[targetRow + dx], alpha, premultiplied);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy this region onto the given target region with its top left corner
+     * at the given position, replacing the target's pixels and clipped to the
+     * target's bounds. Both regions must be opaque, so that their pixels mean
+     * the same whether or not they are premultiplied. Nothing is allocated.
+     *
+     * @param target the region to copy into
+     * @param x the x position in the target of the left edge of this region
+     * @param y the y position in the target of the top edge of this region
+     */
+    public void copyTo(PixelRegion target, int x, int y) {
+        int left = Math.max(0, -x);
+        int top = Math.max(0, -y);
+        int right = Math.min(width, target.width - x);
+        int bottom = Math.min(height, target.height - y);
+        for (int row = top; row < bottom; row++) {
+            System.arraycopy(pixels, offset + row * stride + left,
+                             target.pixels, target.offset + (y + row) * target.stride + x + left, right - left);
+        }
+    }
+
+    /**
+     * Return a new image containing a copy of the pixels of this region.
+     *
+     * @return a new GreenfootImage of the same size as this region
+     */
+    public GreenfootImage toImage() {
+        GreenfootImage image = new GreenfootImage(width, height);
+        BufferedImage awtImage = image.getAwtImage();
+        Raster raster = awtImage.getRaster();
+        if (awtImage.getType() == BufferedImage.TYPE_INT_ARGB && !premultiplied
+            && raster.getDataBuffer() instanceof DataBufferInt
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && raster.getParent() == null) {
+            // Copy straight into the image's raster when it stores the same format
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int imageStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, offset + y * stride, buffer.getData(), buffer.getOffset() + y * imageStride, width);
+            }
+        } else {
+            BufferedImage source = new BufferedImage(width, height, premultiplied ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, offset + y * stride, data, y * width, width);
+            }
+            awtImage.setRGB(0, 0, width, height, source.getRGB(0, 0, width, height, null, 0, width), 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Return the array containing the pixels of this region.
+     *
+     * @return the pixel array, which may contain pixels outside of this region
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Return the index of the top left pixel of this region.
+     *
+     * @return the index into the pixel array of the first pixel
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Return the difference in index between vertically adjacent pixels.
+     *
+     * @return the number of array elements per row
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Return the width of this region.
+     *
+     * @return the width, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Return the height of this region.
+     *
+     * @return the height, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Return whether the color components of this region's pixels are
+     * premultiplied by their alpha.
+     *
+     * @return true if pixels are premultiplied, false if not
+     */
+    public boolean isPremultiplied() {
+        return premultiplied;
+    }
+}
@@ -1,5 +1,3 @@
-import greenfoot.*;
-
 public class Player extends Sprack {
     private static final double ACCEL = 0.2;
     private static final double FRIC_ACCEL = 0.08;
@@ -12,16 +10,31 @@ public class Player extends Sprack {
     private double speed;
     private double rotSpeed;
 
-    public Player() {
+    /** The location and rotation before the last update, restored when it causes a collision. */
+    private double lastX;
+    private double lastY;
+    private double lastRotation;
+    /** Whether a collision has already been responded to since the last update. */
+    private boolean collisionHandled;
+    /** The camera that follows this player. */
+    private final Camera camera;
+
+    public Player(Camera camera) {
         super("car");
+        this.camera = camera;
     }
 
     @Override
     public void update() {
-        if (Greenfoot.isKeyDown("left")) {
+        lastX = getWorldX();
+        lastY = getWorldY();
+        lastRotation = getSpriteRotation();
+        collisionHandled = false;
+
+        if (Input.isKeyDown("left")) {
             rotSpeed -= ROT_ACCEL;
         }
-        if (Greenfoot.isKeyDown("right")) {
+        if (Input.isKeyDown("right")) {
             rotSpeed += ROT_ACCEL;
         }
         // Only apply rotational friction to decrease rotational speed
@@ -33,9 +46,9 @@ public class Player extends Sprack {
         rotSpeed = Math.copySign(Math.min(Math.abs(rotSpeed), MAX_ROT_SPEED), rotSpeed);
         double rotation = getSpriteRotation() + rotSpeed;
         setSpriteRotation(rotation);
-        Camera.targetRotation(rotation);
+        camera.targetRotation(rotation);
 
-        if (Greenfoot.isKeyDown("space")) {
+        if (Input.isKeyDown("space")) {
             speed += ACCEL;
         }
         speed = Math.max(Math.min(speed - FRIC_ACCEL, MAX_SPEED), 0.0);
@@ -44,6 +57,34 @@ public class Player extends Sprack {
         double x = getWorldX() + speed * Math.cos(rotation);
         double y = getWorldY() + speed * Math.sin(rotation);
         setWorldLocation(x, y);
-        Camera.targetLocation(x, y);
+        camera.targetLocation(x, y);
+    }
+
+    @Override
+    public void collided(Sprack other) {
+        if (collisionHandled) {
+            return;
+        }
+        collisionHandled = true;
+        // Undo as little of the last update as gets clear of the other sprack,
+        // so that the car can still turn away while pressed against it
+        setWorldLocation(lastX, lastY);
+        if (overlaps(other)) {
+            setSpriteRotation(lastRotation);
+        }
+        if (overlaps(other)) {
+            // Already overlapping before the update, so push away from the other sprack
+            double dx = getWorldX() - other.getWorldX();
+            double dy = getWorldY() - other.getWorldY();
+            double distance = Math.hypot(dx, dy);
+            if (distance == 0.0) {
+                dx = 0.0;
+                dy = 1.0;
+                distance = 1.0;
+            }
+            setWorldLocation(getWorldX() + dx / distance, getWorldY() + dy / distance);
+        }
+        speed = 0.0;
+        rotSpeed = 0.0;
     }
 }
@@ -0,0 +1,380 @@
+import java.util.Arrays;
+
+/**
+ * A renderer that rasterizes every sprack from the unscaled layers of its
+ * view each frame, instead of drawing images from the view's rotated image
+ * cache.
+ * <p>
+ * Each layer is drawn with an inverse affine transform: every covered screen
+ * pixel is mapped back through the sprack's rotation and scale to the pixel
+ * of the layer it shows, and layers are drawn from bottom to top, each one
+ * scaled pixel above the last. Since nothing is precomputed, spracks can be
+ * drawn at any angle and any zoom, and views built in the
+ * {@link SprackView.BuildMode#ON_DEMAND ON_DEMAND} mode that are only drawn by
+ * this renderer never build an image cache at all. While no pipeline draws
+ * with a renderer that {@link #usesImageCache uses the image cache}, the
+ * {@link ViewCacheManager} of managed views releases their cached images and
+ * builds new views in that mode. Drawing is spread across
+ * all cores one tile at a time, as with {@link FramebufferRenderer}.
+ * <p>
+ * Spracks at coarser {@link SprackView.LevelOfDetail levels of detail} skip
+ * layers, and impostors are filled with their color without reading layers.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class RasterRenderer extends TiledRenderer {
+    /**
+     * The ways in which layer pixels can be sampled.
+     */
+    public enum Filter {
+        /** Use the layer pixel nearest to each screen pixel, keeping hard pixel edges. */
+        NEAREST,
+        /** Blend the four layer pixels nearest to each screen pixel. */
+        BILINEAR,
+    }
+
+    private final Filter filter;
+
+    /** The views of the spracks drawn this frame, in draw order. */
+    private SprackView[] itemViews;
+    /** The cosine and sine of the screen rotation of each item. */
+    private double[] itemCos;
+    private double[] itemSin;
+    /** The scale factor of each item. */
+    private double[] itemScale;
+    /** The interval between the layers drawn of each item, or 0 to draw its impostor. */
+    private int[] itemLayerStep;
+    /** The screen location of the center of each item's bottom layer, one scaled pixel down. */
+    private double[] itemScreenX;
+    private double[] itemScreenY;
+
+    /**
+     * Create a new rasterizing renderer that samples layers with the nearest
+     * pixel.
+     */
+    public RasterRenderer() {
+        this(Filter.NEAREST);
+    }
+
+    /**
+     * Create a new rasterizing renderer that samples layers with the given
+     * filter.
+     *
+     * @param filter the way in which to sample layer pixels
+     */
+    public RasterRenderer(Filter filter) {
+        this.filter = filter;
+        itemViews = new SprackView[0];
+        itemCos = new double[0];
+        itemSin = new double[0];
+        itemScale = new double[0];
+        itemLayerStep = new int[0];
+        itemScreenX = new double[0];
+        itemScreenY = new double[0];
+    }
+
+    /**
+     * Return the way in which this renderer samples layer pixels.
+     *
+     * @return the filter used to sample layers
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Return the largest zoom factor that this renderer can draw, which is
+     * unlimited since layers are transformed every frame.
+     *
+     * @return positive infinity
+     */
+    @Override
+    public double getMaxZoom() {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Return false, since spracks are drawn from the layers of their views.
+     *
+     * @return false
+     */
+    @Override
+    public boolean usesImageCache() {
+        return false;
+    }
+
+    @Override
+    protected boolean prepareItem(Sprack sprack, int item) {
+        double scale = sprack.getScreenScale();
+        if (scale <= 0.0) {
+            return false;
+        }
+        SprackView view = sprack.getView();
+        itemViews[item] = view;
+        if (sprack.getDetail() == SprackView.LevelOfDetail.IMPOSTOR) {
+            setItemBounds(item, sprack.getDrawX(), sprack.getDrawY(), sprack.getDrawWidth(), sprack.getDrawHeight());
+            itemLayerStep[item] = 0;
+            return true;
+        }
+        PixelRegion layer = view.getLayerRegion(0);
+        double rad = Math.toRadians(sprack.getImageRotation());
+        double cos = Math.cos(rad);
+        double sin = Math.sin(rad);
+        double screenX = sprack.getScreenX();
+        double screenY = sprack.getScreenY();
+        // Half of the size of the bounding box of a rotated and scaled layer,
+        // grown by a pixel for the edges blended by bilinear filtering
+        double extentX = (Math.abs(cos) * layer.getWidth() + Math.abs(sin) * layer.getHeight()) / 2.0 * scale + 1.0;
+        double extentY = (Math.abs(sin) * layer.getWidth() + Math.abs(cos) * layer.getHeight()) / 2.0 * scale + 1.0;
+        int left = (int) Math.floor(screenX - extentX);
+        int top = (int) Math.floor(screenY - view.getLayerCount() * scale - extentY);
+        int right = (int) Math.ceil(screenX + extentX);
+        int bottom = (int) Math.ceil(screenY - scale + extentY);
+        setItemBounds(item, left, top, right - left, bottom - top);
+
+        itemCos[item] = cos;
+        itemSin[item] = sin;
+        itemScale[item] = scale;
+        itemLayerStep[item] = sprack.getDetail().getLayerStep(scale);
+        itemScreenX[item] = screenX;
+        itemScreenY[item] = screenY;
+        return true;
+    }
+
+    @Override
+    protected void growItems(int capacity) {
+        super.growItems(capacity);
+        itemViews = Arrays.copyOf(itemViews, capacity);
+        itemCos = Arrays.copyOf(itemCos, capacity);
+        itemSin = Arrays.copyOf(itemSin, capacity);
+        itemScale = Arrays.copyOf(itemScale, capacity);
+        itemLayerStep = Arrays.copyOf(itemLayerStep, capacity);
+        itemScreenX = Arrays.copyOf(itemScreenX, capacity);
+        itemScreenY = Arrays.copyOf(itemScreenY, capacity);
+    }
+
+    @Override
+    protected void finishFrame(int itemCount) {
+        Arrays.fill(itemViews, 0, itemCount, null);
+    }
+
+    /**
+     * Draw the layers of the given item within the given clip rectangle onto
+     * the target, from bottom to top, or fill its impostor.
+     */
+    @Override
+    protected void drawItem(int item, int x, int y, int width, int height,
+                            int clipLeft, int clipTop, int clipRight, int clipBottom) {
+        int left = Math.max(x, clipLeft);
+        int top = Math.max(y, clipTop);
+        int right = Math.min(x + width, clipRight);
+        int bottom = Math.min(y + height, clipBottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        SprackView view = itemViews[item];
+        int layerStep = itemLayerStep[item];
+        if (layerStep == 0) {
+            int pixel = view.getImpostorRegion().getPixels()[0];
+            for (int py = top; py < bottom; py++) {
+                int row = targetOffset + py * targetStride;
+                Arrays.fill(target, row + left, row + right, pixel);
+            }
+            return;
+        }
+        double scale = itemScale[item];
+        // Skipped layers are counted from the bottom so that the top layer is always drawn
+        for (int j = (view.getLayerCount() - 1) % layerStep; j < view.getLayerCount(); j += layerStep) {
+            // Each layer is one scaled pixel above the last, starting one above the sprack's location
+            drawLayer(view.getLayerRegion(j), itemScreenX[item], itemScreenY[item] - (j + 1) * scale,
+                      itemCos[item], itemSin[item], scale, left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Draw a single layer, rotated and scaled around the given screen
+     * location, within the given clip rectangle.
+     *
+     * @param layer the pixels of the layer to draw
+     * @param centerX the screen x position of the center of the layer
+     * @param centerY the screen y position of the center of the layer
+     * @param cos the cosine of the clockwise screen rotation of the layer
+     * @param sin the sine of the clockwise screen rotation of the layer
+     * @param scale the scale factor of the layer
+     * @param left the left edge of the clip rectangle, inclusive
+     * @param top the top edge of the clip rectangle, inclusive
+     * @param right the right edge of the clip rectangle, exclusive
+     * @param bottom the bottom edge of the clip rectangle, exclusive
+     */
+    private void drawLayer(PixelRegion layer, double centerX, double centerY, double cos, double sin, double scale,
+                           int left, int top, int right, int bottom) {
+        int layerWidth = layer.getWidth();
+        int layerHeight = layer.getHeight();
+        // Layer coordinates move by this much for every pixel moved to the right
+        double stepU = cos / scale;
+        double stepV = -sin / scale;
+        // ...and by this much for every pixel moved down
+        double rowStepU = sin / scale;
+        double rowStepV = cos / scale;
+        // Bilinear sampling reaches half a pixel past the edges of the layer
+        double margin = filter == Filter.BILINEAR ? 0.5 : 0.0;
+        // Only visit the rows covered by the bounding box of the layer
+        double extentY = (Math.abs(sin) * (layerWidth + margin * 2.0) + Math.abs(cos) * (layerHeight + margin * 2.0)) / 2.0 * scale;
+        int firstRow = Math.max(top, (int) Math.floor(centerY - extentY));
+        int lastRow = Math.min(bottom, (int) Math.ceil(centerY + extentY));
+        double inverseStepU = 1.0 / stepU;
+        double inverseStepV = 1.0 / stepV;
+        double startX = left + 0.5 - centerX;
+        double startY = firstRow + 0.5 - centerY;
+        // Layer coordinates of the center of the leftmost pixel in the first row
+        double rowU = (startX * cos + startY * sin) / scale + layerWidth / 2.0;
+        double rowV = (startY * cos - startX * sin) / scale + layerHeight / 2.0;
+        for (int py = firstRow; py < lastRow; py++, rowU += rowStepU, rowV += rowStepV) {
+            double u = rowU;
+            double v = rowV;
+
+            // Find the pixels of the row that fall within the layer
+            double first = 0.0;
+            double last = right - left;
+            if (stepU > 0.0) {
+                first = Math.max(first, (-margin - u) * inverseStepU);
+                last = Math.min(last, (layerWidth + margin - u) * inverseStepU);
+            } else if (stepU < 0.0) {
+                first = Math.max(first, (layerWidth + margin - u) * inverseStepU);
+                last = Math.min(last, (-margin - u) * inverseStepU);
+            } else if (u < -margin || u >= layerWidth + margin) {
+                continue;
+            }
+            if (stepV > 0.0) {
+                first = Math.max(first, (-margin - v) * inverseStepV);
+                last = Math.min(last, (layerHeight + margin - v) * inverseStepV);
+            } else if (stepV < 0.0) {
+                first = Math.max(first, (layerHeight + margin - v) * inverseStepV);
+                last = Math.min(last, (-margin - v) * inverseStepV);
+            } else if (v < -margin || v >= layerHeight + margin) {
+                continue;
+            }
+            int start = (int) Math.ceil(first);
+            int end = Math.min((int) Math.ceil(last), right - left);
+            if (start >= end) {
+                continue;
+            }
+
+            int targetRow = targetOffset + py * targetStride + left;
+            if (filter == Filter.BILINEAR) {
+                drawBilinearSpan(layer, u + start * stepU, v + start * stepV, stepU, stepV, targetRow + start, end - start);
+            } else {
+                drawNearestSpan(layer, u + start * stepU, v + start * stepV, stepU, stepV, targetRow + start, end - start);
+            }
+        }
+    }
+
+    /**
+     * Draw a horizontal span of target pixels from a layer with
+     * nearest-neighbour sampling, stepping through the layer in 16.16 fixed
+     * point.
+     */
+    private void drawNearestSpan(PixelRegion layer, double u, double v, double stepU, double stepV,
+                                 int targetIndex, int count) {
+        int[] source = layer.getPixels();
+        int sourceOffset = layer.getOffset();
+        int sourceStride = layer.getStride();
+        int layerWidth = layer.getWidth();
+        int layerHeight = layer.getHeight();
+        boolean premultiplied = layer.isPremultiplied();
+        int fixedU = (int) Math.floor(u * 65536.0);
+        int fixedV = (int) Math.floor(v * 65536.0);
+        int fixedStepU = (int) Math.round(stepU * 65536.0);
+        int fixedStepV = (int) Math.round(stepV * 65536.0);
+        for (int i = 0; i < count; i++, targetIndex++, fixedU += fixedStepU, fixedV += fixedStepV) {
+            int sourceX = fixedU >> 16;
+            int sourceY = fixedV >> 16;
+            // Rounding at the edges of the span can step just outside of the layer
+            if (sourceX < 0 || sourceX >= layerWidth || sourceY < 0 || sourceY >= layerHeight) {
+                continue;
+            }
+            int pixel = source[sourceOffset + sourceY * sourceStride + sourceX];
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            if (alpha == 255) {
+                target[targetIndex] = pixel;
+                continue;
+            }
+            target[targetIndex] = blend(pixel, target[targetIndex], alpha, premultiplied);
+        }
+    }
+
+    /**
+     * Draw a horizontal span of target pixels from a layer with bilinear
+     * sampling, treating pixels outside of the layer as transparent.
+     */
+    private void drawBilinearSpan(PixelRegion layer, double u, double v, double stepU, double stepV,
+                                  int targetIndex, int count) {
+        // Sample between pixel centers
+        u -= 0.5;
+        v -= 0.5;
+        for (int i = 0; i < count; i++, targetIndex++, u += stepU, v += stepV) {
+            int sourceX = (int) Math.floor(u);
+            int sourceY = (int) Math.floor(v);
+            int weightX = (int) ((u - sourceX) * 256.0);
+            int weightY = (int) ((v - sourceY) * 256.0);
+            int topLeft = samplePremultiplied(layer, sourceX, sourceY);
+            int topRight = samplePremultiplied(layer, sourceX + 1, sourceY);
+            int bottomLeft = samplePremultiplied(layer, sourceX, sourceY + 1);
+            int bottomRight = samplePremultiplied(layer, sourceX + 1, sourceY + 1);
+            int pixel;
+            if (topLeft == topRight && topLeft == bottomLeft && topLeft == bottomRight) {
+                // Within an area of a single color, as is most of a magnified layer
+                pixel = topLeft;
+            } else {
+                pixel = lerp(lerp(topLeft, topRight, weightX), lerp(bottomLeft, bottomRight, weightX), weightY);
+            }
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            if (alpha == 255) {
+                target[targetIndex] = pixel;
+                continue;
+            }
+            target[targetIndex] = blend(pixel, target[targetIndex], alpha, true);
+        }
+    }
+
+    /**
+     * Return the given pixel of a layer with its color components
+     * premultiplied by its alpha, or 0 if it is outside of the layer.
+     */
+    private static int samplePremultiplied(PixelRegion layer, int x, int y) {
+        if (x < 0 || x >= layer.getWidth() || y < 0 || y >= layer.getHeight()) {
+            return 0;
+        }
+        int pixel = layer.getPixels()[layer.getOffset() + y * layer.getStride() + x];
+        int alpha = pixel >>> 24;
+        if (alpha == 255 || layer.isPremultiplied()) {
+            return pixel;
+        }
+        if (alpha == 0) {
+            return 0;
+        }
+        return (alpha << 24)
+            | (div255(((pixel >> 16) & 0xFF) * alpha) << 16)
+            | (div255(((pixel >> 8) & 0xFF) * alpha) << 8)
+            | div255((pixel & 0xFF) * alpha);
+    }
+
+    /**
+     * Return the pixel between pixels a and b at the given weight out of 256,
+     * interpolating two components at a time.
+     */
+    private static int lerp(int a, int b, int weight) {
+        int inverse = 256 - weight;
+        int redBlue = (((a & 0xFF00FF) * inverse + (b & 0xFF00FF) * weight) >>> 8) & 0xFF00FF;
+        int alphaGreen = (((a >>> 8) & 0xFF00FF) * inverse + ((b >>> 8) & 0xFF00FF) * weight) & 0xFF00FF00;
+        return alphaGreen | redBlue;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * The transform from world coordinates to screen coordinates for a single
+ * frame: a translation to the camera, a rotation around it, and a scale by its
+ * zoom factor, combined into one matrix.
+ * <p>
+ * The matrix and its trigonometry are computed once per frame, and locations
+ * are then transformed in batches.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class ScreenTransform {
+    // Matrix coefficients: screenX = m00 * x + m01 * y + m02, screenY = m10 * x + m11 * y + m12
+    private double m00;
+    private double m01;
+    private double m02;
+    private double m10;
+    private double m11;
+    private double m12;
+    private double rotation;
+    private double scale;
+    private double imageScale;
+
+    /**
+     * Set this transform to view the world from the given camera state on a
+     * canvas of the given size, with the camera at the center of the canvas.
+     *
+     * @param camera the state of the camera to render from
+     * @param canvasWidth the width of the canvas that will be rendered to
+     * @param canvasHeight the height of the canvas that will be rendered to
+     */
+    public void set(CameraState camera, int canvasWidth, int canvasHeight) {
+        rotation = camera.getRotation();
+        scale = camera.getZoom();
+        // Image dimensions use the quantized scale so that they match the cached scaled image
+        imageScale = SprackView.quantizeScale(scale);
+        double screenRad = Math.toRadians(-rotation);
+        double cos = Math.cos(screenRad) * scale;
+        double sin = Math.sin(screenRad) * scale;
+        m00 = cos;
+        m01 = -sin;
+        m10 = sin;
+        m11 = cos;
+        m02 = canvasWidth / 2 - m00 * camera.getX() - m01 * camera.getY();
+        m12 = canvasHeight / 2 - m10 * camera.getX() - m11 * camera.getY();
+    }
+
+    /**
+     * Transform the given world locations to screen locations.
+     *
+     * @param worldX the x positions to transform, in world coordinates
+     * @param worldY the y positions to transform, in world coordinates
+     * @param count the number of locations to transform
+     * @param screenX the array to store the transformed x positions in, in pixels
+     * @param screenY the array to store the transformed y positions in, in pixels
+     */
+    public void transform(double[] worldX, double[] worldY, int count, double[] screenX, double[] screenY) {
+        double m00 = this.m00;
+        double m01 = this.m01;
+        double m02 = this.m02;
+        double m10 = this.m10;
+        double m11 = this.m11;
+        double m12 = this.m12;
+        for (int i = 0; i < count; i++) {
+            double x = worldX[i];
+            double y = worldY[i];
+            screenX[i] = m00 * x + m01 * y + m02;
+            screenY[i] = m10 * x + m11 * y + m12;
+        }
+    }
+
+    /**
+     * Return the screen x position of the given world location.
+     *
+     * @param worldX the x position to transform, in world coordinates
+     * @param worldY the y position to transform, in world coordinates
+     * @return the x position on the screen, in pixels
+     */
+    public double getScreenX(double worldX, double worldY) {
+        return m00 * worldX + m01 * worldY + m02;
+    }
+
+    /**
+     * Return the screen y position of the given world location.
+     *
+     * @param worldX the x position to transform, in world coordinates
+     * @param worldY the y position to transform, in world coordinates
+     * @return the y position on the screen, in pixels
+     */
+    public double getScreenY(double worldX, double worldY) {
+        return m10 * worldX + m11 * worldY + m12;
+    }
+
+    /**
+     * Return the rotation of the camera, which is subtracted from the
+     * rotation of everything drawn on the screen.
+     *
+     * @return the rotation angle of the camera, in degrees
+     */
+    public double getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Return the exact scale factor from world units to pixels.
+     *
+     * @return the zoom factor of the camera
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Return the scale factor from world units to pixels, {@link SprackView#quantizeScale quantized}
+     * for use with cached images.
+     *
+     * @return the quantized zoom factor of the camera
+     */
+    public double getImageScale() {
+        return imageScale;
+    }
+}
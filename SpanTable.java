@@ -0,0 +1,119 @@
+/**
+ * The runs of visible pixels in each row of a region of pixels, used to skip
+ * transparent pixels when drawing the region.
+ * <p>
+ * A span is a run of horizontally adjacent pixels that are not fully
+ * transparent. The spans of every row are stored in one array, ordered from
+ * left to right and row by row, with each row's spans found through a table
+ * of row starts.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class SpanTable {
+    /** The index of the first span of each row, followed by the total number of spans. */
+    private final int[] rowStarts;
+    /** The first and one past the last column of each span, in pairs. */
+    private final int[] spans;
+
+    private SpanTable(int[] rowStarts, int[] spans) {
+        this.rowStarts = rowStarts;
+        this.spans = spans;
+    }
+
+    /**
+     * Return the spans of the pixels of the given region that are not fully
+     * transparent.
+     *
+     * @param region the pixels to find the spans of
+     * @return a new table of the spans of the region
+     */
+    public static SpanTable of(PixelRegion region) {
+        int[] pixels = region.getPixels();
+        int width = region.getWidth();
+        int height = region.getHeight();
+        int[] rowStarts = new int[height + 1];
+        // Count the spans first so that they can be stored in an array of the right size
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            rowStarts[y] = count;
+            int row = region.getOffset() + y * region.getStride();
+            boolean inSpan = false;
+            for (int x = 0; x < width; x++) {
+                boolean visible = (pixels[row + x] >>> 24) != 0;
+                if (visible && !inSpan) {
+                    count++;
+                }
+                inSpan = visible;
+            }
+        }
+        rowStarts[height] = count;
+
+        int[] spans = new int[count * 2];
+        int span = 0;
+        for (int y = 0; y < height; y++) {
+            int row = region.getOffset() + y * region.getStride();
+            int start = -1;
+            for (int x = 0; x <= width; x++) {
+                boolean visible = x < width && (pixels[row + x] >>> 24) != 0;
+                if (visible && start < 0) {
+                    start = x;
+                } else if (!visible && start >= 0) {
+                    spans[span++] = start;
+                    spans[span++] = x;
+                    start = -1;
+                }
+            }
+        }
+        return new SpanTable(rowStarts, spans);
+    }
+
+    /**
+     * Return the index of the first span in the given row.
+     *
+     * @param row the row to get the spans of
+     * @return the index of the row's first span
+     */
+    public int getRowStart(int row) {
+        return rowStarts[row];
+    }
+
+    /**
+     * Return one past the index of the last span in the given row.
+     *
+     * @param row the row to get the spans of
+     * @return the index after the row's last span
+     */
+    public int getRowEnd(int row) {
+        return rowStarts[row + 1];
+    }
+
+    /**
+     * Return the first column of the given span.
+     *
+     * @param span the index of the span
+     * @return the column of the span's first pixel
+     */
+    public int getSpanStart(int span) {
+        return spans[span * 2];
+    }
+
+    /**
+     * Return one past the last column of the given span.
+     *
+     * @param span the index of the span
+     * @return the column after the span's last pixel
+     */
+    public int getSpanEnd(int span) {
+        return spans[span * 2 + 1];
+    }
+
+    /**
+     * Return the number of bytes used by this table.
+     *
+     * @return the size of the table's arrays, in bytes
+     */
+    public long getBytes() {
+        return ((long) rowStarts.length + spans.length) * 4;
+    }
+}
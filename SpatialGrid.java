@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A spatial index of spracks by world location, used to find the spracks that
+ * may be visible without visiting every sprack in the world.
+ * <p>
+ * The world is divided into square cells, and each cell is hashed into one of
+ * a fixed number of buckets, so the world does not need to be bounded. Several
+ * cells may share a bucket, so spracks found in a bucket are always checked
+ * against the queried area before being returned.
+ * <p>
+ * Spracks may be added, removed, and moved from several threads at once, but
+ * queries must not run at the same time as any of those.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class SpatialGrid {
+    /** The width and height of a cell, in world units. */
+    private final double cellSize;
+
+    /** The spracks within each bucket, indexed by bucket number. */
+    private final List<List<Sprack>> buckets;
+    /** The bit mask used to wrap cell hashes into bucket numbers. */
+    private final int bucketMask;
+
+    /**
+     * The query number during which each bucket was last visited, used to
+     * avoid visiting a bucket twice when several queried cells share it.
+     */
+    private final int[] bucketVisits;
+    private int queryNumber;
+
+    /** The largest {@link SprackView#getBoundingRadius bounding radius} of any sprack added so far. */
+    private double maxRadius;
+    private int size;
+
+    /**
+     * Create a new empty spatial grid.
+     *
+     * @param cellSize the width and height of a cell, in world units
+     * @param bucketCount the number of buckets to hash cells into, rounded up to a power of 2
+     */
+    public SpatialGrid(double cellSize, int bucketCount) {
+        if (cellSize <= 0.0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive");
+        }
+        this.cellSize = cellSize;
+        bucketCount = Integer.highestOneBit(bucketCount - 1) << 1;
+        if (bucketCount == 0) {
+            bucketCount = 1;
+        }
+        buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<Sprack>());
+        }
+        bucketMask = bucketCount - 1;
+        bucketVisits = new int[bucketCount];
+    }
+
+    /**
+     * Return a key that identifies the given cell, for maps of cells such as
+     * chunks. Every cell has a different key.
+     *
+     * @param cellX the x cell
+     * @param cellY the y cell
+     * @return the key of the cell
+     */
+    public static long getCellKey(int cellX, int cellY) {
+        // Long hash codes XOR the two halves, so scramble each half to keep
+        // nearby cells from sharing hash codes. Multiplying by an odd number
+        // keeps every key unique.
+        return ((long) (cellX * 73856093) << 32) | ((cellY * 19349663) & 0xFFFFFFFFL);
+    }
+
+    private int getCell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private int getBucket(int cellX, int cellY) {
+        return ((cellX * 73856093) ^ (cellY * 19349663)) & bucketMask;
+    }
+
+    private List<Sprack> getBucketAt(double x, double y) {
+        return buckets.get(getBucket(getCell(x), getCell(y)));
+    }
+
+    /**
+     * Add a sprack to this grid at its current world location.
+     *
+     * @param sprack the sprack to add
+     */
+    public synchronized void add(Sprack sprack) {
+        getBucketAt(sprack.getWorldX(), sprack.getWorldY()).add(sprack);
+        maxRadius = Math.max(maxRadius, sprack.getBoundingRadius());
+        size++;
+    }
+
+    /**
+     * Remove a sprack from this grid, given the world location at which it
+     * was last added or moved to.
+     *
+     * @param sprack the sprack to remove
+     * @param x the x position at which the sprack is indexed
+     * @param y the y position at which the sprack is indexed
+     */
+    public synchronized void remove(Sprack sprack, double x, double y) {
+        List<Sprack> bucket = getBucketAt(x, y);
+        int index = bucket.indexOf(sprack);
+        if (index < 0) {
+            return;
+        }
+        // Order within a bucket does not matter, so fill the gap with the last element
+        int last = bucket.size() - 1;
+        bucket.set(index, bucket.get(last));
+        bucket.remove(last);
+        size--;
+    }
+
+    /**
+     * Update the location of a sprack within this grid after it has moved to
+     * its current world location.
+     *
+     * @param sprack the sprack that moved
+     * @param oldX the x position at which the sprack was previously indexed
+     * @param oldY the y position at which the sprack was previously indexed
+     */
+    public synchronized void move(Sprack sprack, double oldX, double oldY) {
+        double x = sprack.getWorldX();
+        double y = sprack.getWorldY();
+        if (getCell(x) == getCell(oldX) && getCell(y) == getCell(oldY)) {
+            return;
+        }
+        remove(sprack, oldX, oldY);
+        add(sprack);
+    }
+
+    /**
+     * Return the number of spracks in this grid.
+     *
+     * @return the number of indexed spracks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add every sprack in this grid whose bounds may intersect the given
+     * rectangle to the given list. Each sprack is added at most once.
+     *
+     * @param minX the left edge of the rectangle, in world units
+     * @param minY the top edge of the rectangle, in world units
+     * @param maxX the right edge of the rectangle, in world units
+     * @param maxY the bottom edge of the rectangle, in world units
+     * @param result the list to add found spracks to
+     */
+    public void query(double minX, double minY, double maxX, double maxY, List<Sprack> result) {
+        // Spracks are indexed by location, so grow the rectangle to include
+        // every sprack whose bounds could reach into it
+        minX -= maxRadius;
+        minY -= maxRadius;
+        maxX += maxRadius;
+        maxY += maxRadius;
+        queryNumber++;
+
+        double cellsX = Math.floor(maxX / cellSize) - Math.floor(minX / cellSize) + 1.0;
+        double cellsY = Math.floor(maxY / cellSize) - Math.floor(minY / cellSize) + 1.0;
+        if (cellsX * cellsY >= buckets.size()) {
+            // Every bucket would be visited anyway
+            for (int i = 0; i < buckets.size(); i++) {
+                collect(i, minX, minY, maxX, maxY, result);
+            }
+            return;
+        }
+        int maxCellX = getCell(maxX);
+        int maxCellY = getCell(maxY);
+        for (int cellY = getCell(minY); cellY <= maxCellY; cellY++) {
+            for (int cellX = getCell(minX); cellX <= maxCellX; cellX++) {
+                collect(getBucket(cellX, cellY), minX, minY, maxX, maxY, result);
+            }
+        }
+    }
+
+    /**
+     * Add every sprack in the given bucket located within the given rectangle
+     * to the given list, unless the bucket has already been visited during the
+     * current query.
+     */
+    private void collect(int bucketNumber, double minX, double minY, double maxX, double maxY, List<Sprack> result) {
+        if (bucketVisits[bucketNumber] == queryNumber) {
+            return;
+        }
+        bucketVisits[bucketNumber] = queryNumber;
+        List<Sprack> bucket = buckets.get(bucketNumber);
+        for (int i = 0; i < bucket.size(); i++) {
+            Sprack sprack = bucket.get(i);
+            double x = sprack.getWorldX();
+            double y = sprack.getWorldY();
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                result.add(sprack);
+            }
+        }
+    }
+}
@@ -1,81 +1,622 @@
 import greenfoot.*;
-import java.util.Map;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public abstract class Sprack extends Sprite {
-    private static final Map<String, SprackView> viewMap;
-    static {
-        Map<String, Integer> sheetInfo = new HashMap<>();
-        sheetInfo.put("car", 9);
-        sheetInfo.put("crate", 16);
+    /**
+     * The way in which the image caches of loaded views are built. Lazily
+     * built views render only the angles needed for the first frames as they
+     * are loaded, and finish the rest in the background, unless no pipeline
+     * draws cached images.
+     */
+    private static final SprackView.BuildMode VIEW_BUILD_MODE = SprackView.BuildMode.LAZY;
+    /** The directory in which rendered view caches are saved between runs. */
+    private static final Path VIEW_CACHE_DIRECTORY = Paths.get("cache");
+
+    /** The manifest of every sheet that spracks can be made of. */
+    private static final Path SHEET_MANIFEST = Paths.get("sheets.txt");
 
-        viewMap = new HashMap<>();
-        for (Map.Entry<String, Integer> entry : sheetInfo.entrySet()) {
-            viewMap.put(entry.getKey(), new SprackView(new GreenfootImage(entry.getKey() + ".png"), entry.getValue()));
+    /** The manager of the loaded view of every sheet and the memory of their caches. */
+    private static final ViewCacheManager viewManager;
+    /** The sheets declared in the manifest, which are loaded when first used. */
+    private static final AssetRegistry assets;
+    static {
+        viewManager = new ViewCacheManager(ViewCacheManager.DEFAULT_BUDGET, VIEW_BUILD_MODE, VIEW_CACHE_DIRECTORY);
+        assets = new AssetRegistry(viewManager);
+        try {
+            assets.readManifest(SHEET_MANIFEST);
+        } catch (IOException e) {
+            System.err.println("Could not read sheet manifest: " + e);
         }
     }
 
-    private final SprackView view;
+    /**
+     * Return the manager of the loaded view of every sheet.
+     *
+     * @return the shared view cache manager
+     */
+    public static ViewCacheManager getViewManager() {
+        return viewManager;
+    }
 
+    /**
+     * Return the registry of the sheets that spracks can be made of, through
+     * which the sheets of a level can be loaded before its spracks are made.
+     *
+     * @return the shared asset registry
+     */
+    public static AssetRegistry getAssets() {
+        return assets;
+    }
+
+    /**
+     * Return a report of the memory used by the caches of the loaded views
+     * against their budget, and the size of the cache of each view, one line
+     * per sheet.
+     *
+     * @return the cache report of every loaded sheet
+     */
+    public static String getCacheReport() {
+        return viewManager.getReport();
+    }
+
+    /** The view of this sprack's sheet, or its placeholder while the sheet is loading. */
+    private SprackView view;
+    /** The view of this sprack's sheet while it is loading, or null once it replaces the placeholder. */
+    private CompletableFuture<SprackView> loadingView;
+
+    /**
+     * The store holding the world location and rotation of this sprack once
+     * it moves within a pipeline, or null while they are kept in the fields
+     * below. Static spracks never move, so they always keep their state in
+     * fields, without a store or an extra pointer to follow.
+     */
+    private EntityStore entities;
+    /** The index of this sprack within its entity store. */
+    private int entityIndex;
+    /** The world location and rotation of this sprack while it has no entity store. */
     private double worldX;
     private double worldY;
-    private double rotation;
+    private double spriteRotation;
+
+    /** The spatial index that this sprack is kept up to date in, if any. */
+    private SpatialGrid grid;
+    /** The state of this sprack in the draw order of a {@link DepthSorter}. */
+    private int depthSortMark;
+    /** The number of the last frame in which this static sprack was collected to be drawn. */
+    private int collectMark;
+    /** Whether this sprack already appears in a tile drawn this frame. */
+    private boolean drawnInTile;
+    /** The index of this moving sprack within the sorted bounds of a {@link SweepAndPrune}. */
+    private int collisionSlot;
+
+    /** The rotation of the image to draw, relative to the camera, set by {@link #setScreenState}. */
+    private double imageRotation;
+    /** The exact scale factor to draw at, set by {@link #setScreenState}. */
+    private double screenScale;
+    /** The quantized scale factor of the image to draw, set by {@link #setScreenState}. */
+    private double imageScale;
+    /** The level of detail to draw at, set by {@link #setScreenState}. */
+    private SprackView.LevelOfDetail detail;
+    /** Whether the draw rectangle is up to date with the last call to {@link #setScreenState}. */
+    private boolean drawRectValid;
+    /** The screen rectangle to draw the cached image in, computed when first needed. */
+    private int drawX;
+    private int drawY;
+    private int drawWidth;
+    private int drawHeight;
 
     public Sprack(String sheetName) {
-        view = viewMap.get(sheetName);
+        if (!assets.isDeclared(sheetName)) {
+            throw new IllegalArgumentException("No sheet \"" + sheetName + "\" is declared in the sheet manifest");
+        }
+        view = assets.getLoadedView(sheetName);
         if (view == null) {
-            throw new IllegalArgumentException("No preloaded SprackView for sheet \"" + sheetName + "\" exists");
+            // Draw a placeholder until a pipeline swaps in the loaded view
+            view = assets.getPlaceholder(sheetName);
+            loadingView = assets.request(sheetName);
         }
+        detail = SprackView.LevelOfDetail.FULL;
     }
 
     public void setSpriteRotation(double rotation) {
-        this.rotation = Vector2.normalizeAngle(rotation);
+        if (entities == null) {
+            spriteRotation = Vector2.normalizeAngle(rotation);
+        } else {
+            entities.setRotation(entityIndex, Vector2.normalizeAngle(rotation));
+        }
     }
 
     public double getSpriteRotation() {
-        return rotation;
+        return entities == null ? spriteRotation : entities.getRotation(entityIndex);
     }
 
     public void setWorldLocation(double x, double y) {
-        worldX = x;
-        worldY = y;
+        if (entities == null) {
+            worldX = x;
+            worldY = y;
+            return;
+        }
+        double oldX = entities.getX(entityIndex);
+        double oldY = entities.getY(entityIndex);
+        entities.setLocation(entityIndex, x, y);
+        if (grid != null) {
+            grid.move(this, oldX, oldY);
+        }
+    }
+
+    /**
+     * Move the state of this sprack to the given entity in the given store,
+     * for a sprack that moves within a pipeline. The entity must already hold
+     * the state of this sprack.
+     *
+     * @param entities the store holding the state of this sprack
+     * @param index the index of this sprack within the store
+     */
+    void setEntity(EntityStore entities, int index) {
+        this.entities = entities;
+        entityIndex = index;
+    }
+
+    /**
+     * Return the index of this sprack within its entity store.
+     */
+    int getEntityIndex() {
+        return entityIndex;
+    }
+
+    /**
+     * Return whether this sprack never moves or rotates once added to a
+     * world. Static spracks are composited into the tiles of
+     * {@link StaticChunks} instead of being drawn one by one, and are never
+     * {@link #update updated}.
+     *
+     * @return true if this sprack is static
+     */
+    public boolean isStatic() {
+        return false;
+    }
+
+    /**
+     * Return the footprint of this sprack at its current rotation, for
+     * collision tests.
+     *
+     * @return the collision mask of this sprack
+     */
+    public CollisionMask getCollisionMask() {
+        return view.getCollisionMask(getSpriteRotation());
+    }
+
+    /**
+     * Return whether the footprint of this sprack at its current location and
+     * rotation overlaps that of the given sprack.
+     *
+     * @param other the sprack to test against
+     * @return true if the collision masks of the spracks overlap
+     */
+    public boolean overlaps(Sprack other) {
+        CollisionMask mask = getCollisionMask();
+        CollisionMask otherMask = other.getCollisionMask();
+        return CollisionMask.overlaps(mask, (int) Math.round(getWorldX()) + mask.getOffsetX(),
+                                      (int) Math.round(getWorldY()) + mask.getOffsetY(),
+                                      otherMask, (int) Math.round(other.getWorldX()) + otherMask.getOffsetX(),
+                                      (int) Math.round(other.getWorldY()) + otherMask.getOffsetY());
     }
 
+    /**
+     * Respond to the footprint of this sprack overlapping that of another
+     * sprack. This runs on the simulation thread after every sprite has been
+     * updated for the tick, once for each overlapping sprack, and does
+     * nothing by default.
+     *
+     * @param other the sprack that this sprack collided with
+     */
+    public void collided(Sprack other) {}
+
+    /**
+     * Set the spatial index that this sprack should keep its location up to
+     * date in. The sprack must already have been added to the given grid at
+     * its current location.
+     *
+     * @param grid the grid to update when this sprack moves, or null to stop updating
+     */
+    public void setSpatialGrid(SpatialGrid grid) {
+        this.grid = grid;
+    }
+
+    /**
+     * Return the distance from this sprack's world location within which its
+     * image can be drawn, in world units.
+     *
+     * @return the bounding radius of this sprack, in world units
+     */
+    public double getBoundingRadius() {
+        return view.getBoundingRadius();
+    }
+
+    /**
+     * Set the screen location and image transform of this sprack for the
+     * frame about to be drawn. This also chooses the level of detail to draw
+     * at from the scale factor alone, and rounds the rotation to the angles
+     * available at that level.
+     *
+     * @param screenX the x position of this sprack on the screen, in pixels
+     * @param screenY the y position of this sprack on the screen, in pixels
+     * @param imageRotation the rotation of this sprack relative to the camera, in degrees
+     * @param scale the scale factor to draw this sprack at
+     * @param imageScale the scale factor {@link SprackView#quantizeScale quantized} for cached images
+     */
+    public void setScreenState(double screenX, double screenY, double imageRotation, double scale, double imageScale) {
+        setScreenState(screenX, screenY, imageRotation, scale, imageScale, view.selectDetail(scale));
+    }
+
+    /**
+     * Set the screen location, rotation and scale factor of this sprack for the
+     * frame about to be drawn at the given level of detail, such as one chosen
+     * with hysteresis by a viewport that keeps the level between frames. The
+     * rotation is rounded to the angles available at that level.
+     *
+     * @param screenX the x position of this sprack on the screen, in pixels
+     * @param screenY the y position of this sprack on the screen, in pixels
+     * @param imageRotation the rotation of this sprack relative to the camera, in degrees
+     * @param scale the scale factor to draw this sprack at
+     * @param imageScale the scale factor {@link SprackView#quantizeScale quantized} for cached images
+     * @param detail the level of detail to draw this sprack at
+     */
+    public void setScreenState(double screenX, double screenY, double imageRotation, double scale, double imageScale,
+                               SprackView.LevelOfDetail detail) {
+        setScreenLocation(screenX, screenY);
+        this.detail = detail;
+        this.imageRotation = view.snapRotation(imageRotation, detail);
+        screenScale = scale;
+        this.imageScale = imageScale;
+        drawRectValid = false;
+    }
+
+    /**
+     * Compute the screen rectangle of the cached image to draw, if it has not
+     * been computed since the last call to {@link #setScreenState}.
+     * This is left until the rectangle is needed so that renderers that do
+     * not draw cached images never make the view render them.
+     */
+    private void updateDrawRect() {
+        if (drawRectValid) {
+            return;
+        }
+        if (detail == SprackView.LevelOfDetail.IMPOSTOR) {
+            int size = view.getImpostorSize(imageScale);
+            drawX = (int) getScreenX() - size / 2;
+            drawY = (int) getScreenY() + view.getImpostorOffsetY(imageScale) - size / 2;
+            drawWidth = size;
+            drawHeight = size;
+            drawRectValid = true;
+            return;
+        }
+        // Screen location at center of bottom layer
+        drawX = (int) getScreenX() - view.getCenterX(imageRotation, imageScale);
+        drawY = (int) getScreenY() - view.getCenterY(imageRotation, imageScale);
+        drawWidth = view.getTransformedWidth(imageRotation, imageScale);
+        drawHeight = view.getTransformedHeight(imageRotation, imageScale);
+        drawRectValid = true;
+    }
+
+    /**
+     * Draw this sprack onto the given canvas at the screen location set by the
+     * last call to {@link #setScreenState}.
+     *
+     * @param canvas the image to draw onto
+     */
     @Override
     public void render(GreenfootImage canvas) {
-        // Update screen location, rotated around zoomed camera position
-        double scale = Camera.getZoom();
-        double offsetX = (worldX - Camera.getX()) * scale;
-        double offsetY = (worldY - Camera.getY()) * scale;
-        double screenRad = Math.toRadians(-Camera.getRotation());
-        double screenX = getWorld().getWidth() / 2 + offsetX * Math.cos(screenRad) - offsetY * Math.sin(screenRad);
-        double screenY = getWorld().getHeight() / 2 + offsetX * Math.sin(screenRad) + offsetY * Math.cos(screenRad);
-        setScreenLocation(screenX, screenY);
+        render(canvas, 0, 0);
+    }
 
+    /**
+     * Draw this sprack onto the given canvas at the screen location set by the
+     * last call to {@link #setScreenState}, offset by the given amount.
+     *
+     * @param canvas the image to draw onto
+     * @param offsetX the amount to add to the x position to draw at, in pixels
+     * @param offsetY the amount to add to the y position to draw at, in pixels
+     */
+    public void render(GreenfootImage canvas, int offsetX, int offsetY) {
+        updateDrawRect();
+        int x = drawX + offsetX;
+        int y = drawY + offsetY;
         // Don't render if offscreen
-        double imageRotation = rotation - Camera.getRotation();
-        int centerX = view.getCenterX(imageRotation, scale);
-        int centerY = view.getCenterY(imageRotation, scale);
-        if (screenX + centerX < 0
-            || screenX - centerX >= getWorld().getWidth()
-            || screenY + (view.getTransformedHeight(imageRotation, scale) - centerY) < 0
-            || screenY - centerY >= getWorld().getHeight()) {
+        if (x + drawWidth <= 0 || x >= canvas.getWidth()
+            || y + drawHeight <= 0 || y >= canvas.getHeight()) {
+            FrameProfiler.count(FrameProfiler.Counter.OFFSCREEN_CULLED, 1);
             return;
         }
 
-        // Draw image, screen location at center of bottom layer
-        GreenfootImage image = view.getTransformedImage(imageRotation, Camera.getZoom());
+        long start;
+        if (detail == SprackView.LevelOfDetail.IMPOSTOR) {
+            start = FrameProfiler.start();
+            canvas.setColor(view.getImpostorColor());
+            canvas.fillRect(x, y, drawWidth, drawHeight);
+            FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+            FrameProfiler.count(FrameProfiler.Counter.DRAWN, 1);
+            return;
+        }
+        start = FrameProfiler.start();
+        GreenfootImage image = view.getTransformedImage(imageRotation, imageScale);
+        FrameProfiler.stop(FrameProfiler.Phase.SCALE, start);
         if (image == null) {
             return;
         }
-        canvas.drawImage(image, (int) screenX - centerX, (int) screenY - centerY);
+        start = FrameProfiler.start();
+        canvas.drawImage(image, x, y);
+        FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+        FrameProfiler.count(FrameProfiler.Counter.DRAWN, 1);
+    }
+
+    /**
+     * Draw this sprack straight into the given pixels at the screen location
+     * set by the last call to {@link #setScreenState}, scaling its cached
+     * image as it is drawn. Once the cached image is in the view's cache,
+     * this allocates nothing, unlike drawing onto a GreenfootImage, which
+     * goes through a scaled copy of the cached image.
+     *
+     * @param target the opaque pixels to draw into
+     */
+    @Override
+    public void render(PixelRegion target) {
+        render(target, 0, 0);
+    }
+
+    /**
+     * Draw this sprack straight into the given pixels at the screen location
+     * set by the last call to {@link #setScreenState}, offset by the given
+     * amount.
+     *
+     * @param target the opaque pixels to draw into
+     * @param offsetX the amount to add to the x position to draw at, in pixels
+     * @param offsetY the amount to add to the y position to draw at, in pixels
+     */
+    public void render(PixelRegion target, int offsetX, int offsetY) {
+        updateDrawRect();
+        int x = drawX + offsetX;
+        int y = drawY + offsetY;
+        // Don't render if offscreen
+        if (x + drawWidth <= 0 || x >= target.getWidth()
+            || y + drawHeight <= 0 || y >= target.getHeight()) {
+            FrameProfiler.count(FrameProfiler.Counter.OFFSCREEN_CULLED, 1);
+            return;
+        }
+        long start = FrameProfiler.start();
+        getImageRegion().drawScaled(target, getImageSpans(), x, y, drawWidth, drawHeight);
+        FrameProfiler.stop(FrameProfiler.Phase.DRAW, start);
+        FrameProfiler.count(FrameProfiler.Counter.DRAWN, 1);
+    }
+
+    /**
+     * Return the screen x position of the left edge of this sprack's image,
+     * as of the last call to {@link #setScreenState}.
+     *
+     * @return the x position to draw the image at, in pixels
+     */
+    public int getDrawX() {
+        updateDrawRect();
+        return drawX;
+    }
+
+    /**
+     * Return the screen y position of the top edge of this sprack's image,
+     * as of the last call to {@link #setScreenState}.
+     *
+     * @return the y position to draw the image at, in pixels
+     */
+    public int getDrawY() {
+        updateDrawRect();
+        return drawY;
+    }
+
+    /**
+     * Return the width of this sprack's image on the screen, as of the last
+     * call to {@link #setScreenState}.
+     *
+     * @return the width to draw the image at, in pixels
+     */
+    public int getDrawWidth() {
+        updateDrawRect();
+        return drawWidth;
+    }
+
+    /**
+     * Return the height of this sprack's image on the screen, as of the last
+     * call to {@link #setScreenState}.
+     *
+     * @return the height to draw the image at, in pixels
+     */
+    public int getDrawHeight() {
+        updateDrawRect();
+        return drawHeight;
+    }
+
+    /**
+     * Return the pixels of the unscaled cached image to draw for this sprack,
+     * as of the last call to {@link #setScreenState}, to be scaled to
+     * the size given by {@link #getDrawWidth} and {@link #getDrawHeight}.
+     * At the impostor level of detail, this is a single pixel of the
+     * impostor color.
+     *
+     * @return the region of the cached image to draw
+     */
+    public PixelRegion getImageRegion() {
+        if (detail == SprackView.LevelOfDetail.IMPOSTOR) {
+            return view.getImpostorRegion();
+        }
+        return view.getCachedRegion(imageRotation);
+    }
+
+    /**
+     * Return the runs of visible pixels in each row of the image returned by
+     * {@link #getImageRegion}.
+     *
+     * @return the spans of the cached image of this sprack
+     */
+    public SpanTable getImageSpans() {
+        if (detail == SprackView.LevelOfDetail.IMPOSTOR) {
+            return view.getImpostorSpans();
+        }
+        return view.getCachedSpans(imageRotation);
+    }
+
+    /**
+     * Return whether this sprack is drawn with a placeholder because its
+     * sheet has not finished loading.
+     *
+     * @return true if this sprack's view is a placeholder
+     */
+    public boolean isPlaceholder() {
+        return loadingView != null;
+    }
+
+    /**
+     * Return whether the sheet of this placeholder sprack has finished
+     * loading, successfully or not, so its view can be swapped in.
+     */
+    boolean isViewLoaded() {
+        return loadingView != null && loadingView.isDone();
+    }
+
+    /**
+     * Replace the placeholder of this sprack with the loaded view of its
+     * sheet. A {@link FramePipeline} does this when the sprack is out of
+     * every index that depends on its view. If the sheet failed to load,
+     * the placeholder is kept.
+     */
+    void swapLoadedView() {
+        try {
+            view = loadingView.join();
+            detail = SprackView.LevelOfDetail.FULL;
+            drawRectValid = false;
+        } catch (CompletionException e) {
+            System.err.println("Could not load sheet: " + e.getCause());
+        }
+        loadingView = null;
+    }
+
+    /**
+     * Return the view holding the layers and cached images of this sprack.
+     *
+     * @return the view of this sprack
+     */
+    public SprackView getView() {
+        return view;
+    }
+
+    /**
+     * Return the level of detail at which to draw this sprack, as of the last
+     * call to {@link #setScreenState}.
+     *
+     * @return the level of detail of this sprack
+     */
+    public SprackView.LevelOfDetail getDetail() {
+        return detail;
+    }
+
+    /**
+     * Return the rotation at which to draw this sprack relative to the camera,
+     * as of the last call to {@link #setScreenState}.
+     *
+     * @return the rotation of this sprack on the screen, in degrees
+     */
+    public double getImageRotation() {
+        return imageRotation;
+    }
+
+    /**
+     * Return the unquantized scale factor at which to draw this sprack, as of
+     * the last call to {@link #setScreenState}.
+     *
+     * @return the scale factor of this sprack on the screen
+     */
+    public double getScreenScale() {
+        return screenScale;
+    }
+
+    /**
+     * Return the {@link SprackView#quantizeScale quantized} scale factor of
+     * the cached image to draw for this sprack, as of the last call to
+     * {@link #setScreenState}.
+     *
+     * @return the scale factor of this sprack's image
+     */
+    public double getImageScale() {
+        return imageScale;
+    }
+
+    /**
+     * Return the mark last set by {@link DepthSorter}.
+     */
+    int getDepthSortMark() {
+        return depthSortMark;
+    }
+
+    /**
+     * Set the mark used by {@link DepthSorter} to track whether this sprack
+     * is visible and already placed in the draw order.
+     */
+    void setDepthSortMark(int mark) {
+        depthSortMark = mark;
+    }
+
+    /**
+     * Return the index of this sprack within the sorted bounds of its
+     * {@link SweepAndPrune}.
+     */
+    int getCollisionSlot() {
+        return collisionSlot;
+    }
+
+    /**
+     * Set the index of this sprack within the sorted bounds of its
+     * {@link SweepAndPrune}.
+     */
+    void setCollisionSlot(int slot) {
+        collisionSlot = slot;
+    }
+
+    /**
+     * Return the mark last set by {@link #setCollectMark}.
+     */
+    int getCollectMark() {
+        return collectMark;
+    }
+
+    /**
+     * Set the mark used by {@link FramePipeline} to collect each static
+     * sprack at most once per frame.
+     */
+    void setCollectMark(int mark) {
+        collectMark = mark;
+    }
+
+    /**
+     * Return whether this sprack already appears in a tile drawn this frame,
+     * and only needs to be drawn again if something drawn before it covers it.
+     */
+    boolean isDrawnInTile() {
+        return drawnInTile;
+    }
+
+    /**
+     * Set whether this sprack already appears in a tile drawn this frame.
+     */
+    void setDrawnInTile(boolean drawnInTile) {
+        this.drawnInTile = drawnInTile;
     }
 
     public double getWorldX() {
-        return worldX;
+        return entities == null ? worldX : entities.getX(entityIndex);
     }
 
     public double getWorldY() {
-        return worldY;
+        return entities == null ? worldY : entities.getY(entityIndex);
     }
 }
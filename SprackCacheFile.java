@@ -0,0 +1,283 @@
+import greenfoot.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A file of pre-rendered SprackView cache images, read through a memory map.
+ * <p>
+ * Rendering a SprackView cache is deterministic, so the rendered images of a
+ * sprite stack sheet only need to be created once. A cache file is identified
+ * by a key made up of a hash of the source sheet's pixels, the number of
+ * layers, the number of angles, and the cache scale factor, all of which are
+ * stored in the header and checked when the file is opened.
+ * <p>
+ * All values are stored big-endian, laid out as follows:
+ * <pre>
+ * int     magic number, "SPRK"
+ * int     format version
+ * byte[32] SHA-256 hash of the source sheet
+ * int     layer count
+ * int     angle count
+ * double  cache scale factor
+ * for each angle:
+ *     int  image width, trimmed to its visible pixels
+ *     int  image height, trimmed to its visible pixels
+ *     int  horizontal center, relative to the trimmed image
+ *     int  vertical center, relative to the trimmed image
+ *     long offset of the image's pixels from the start of the file
+ * for each angle:
+ *     int[width * height] non-premultiplied ARGB pixels, row by row
+ * </pre>
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class SprackCacheFile {
+    private static final int MAGIC = 0x5350524B;
+    /**
+     * The version of the file format and of the rendering that produced it.
+     * This must be incremented whenever either changes.
+     */
+    private static final int FORMAT_VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_SIZE = 4 + 4 + HASH_LENGTH + 4 + 4 + 8;
+    private static final int ENTRY_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    /** The mapped contents of the file. Readers must use duplicates, since its position is shared. */
+    private final MappedByteBuffer buffer;
+    private final int angleCount;
+
+    private SprackCacheFile(MappedByteBuffer buffer, int angleCount) {
+        this.buffer = buffer;
+        this.angleCount = angleCount;
+    }
+
+    /**
+     * Return the SHA-256 hash of the dimensions and pixels of the given image.
+     *
+     * @param image the image to hash
+     * @return the 32-byte hash of the image
+     */
+    public static byte[] hashImage(GreenfootImage image) {
+        BufferedImage awtImage = image.getAwtImage();
+        int width = awtImage.getWidth();
+        int height = awtImage.getHeight();
+        int[] pixels = awtImage.getRGB(0, 0, width, height, null, 0, width);
+        ByteBuffer bytes = ByteBuffer.allocate(8 + pixels.length * 4);
+        bytes.putInt(width).putInt(height);
+        bytes.asIntBuffer().put(pixels);
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes.array());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the path of the cache file with the given key within the given directory.
+     *
+     * @param directory the directory containing cache files
+     * @param sourceHash the hash of the source sheet, as returned by {@link #hashImage}
+     * @param layerCount the number of layers in the sprite stack
+     * @param angleCount the number of cached angles
+     * @param scale the scale factor of the cached images
+     * @return the path of the corresponding cache file
+     */
+    public static Path getPath(Path directory, byte[] sourceHash, int layerCount, int angleCount, double scale) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            name.append(String.format("%02x", sourceHash[i]));
+        }
+        name.append('-').append(layerCount).append('-').append(angleCount).append('-').append(scale).append(".sprk");
+        return directory.resolve(name.toString());
+    }
+
+    /**
+     * Open and map the cache file with the given key, or return null if it
+     * does not exist or does not match the key.
+     *
+     * @param directory the directory containing cache files
+     * @param sourceHash the hash of the source sheet, as returned by {@link #hashImage}
+     * @param layerCount the number of layers in the sprite stack
+     * @param angleCount the number of cached angles
+     * @param scale the scale factor of the cached images
+     * @return the opened cache file, or null if no valid cache file exists
+     * @throws IOException if the file exists but could not be read
+     */
+    public static SprackCacheFile open(Path directory, byte[] sourceHash, int layerCount, int angleCount, double scale) throws IOException {
+        Path path = getPath(directory, sourceHash, layerCount, angleCount, scale);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE + (long) angleCount * ENTRY_SIZE
+            || buffer.getInt(0) != MAGIC
+            || buffer.getInt(4) != FORMAT_VERSION) {
+            return null;
+        }
+        byte[] fileHash = new byte[HASH_LENGTH];
+        ByteBuffer header = buffer.duplicate();
+        header.position(8);
+        header.get(fileHash);
+        if (!Arrays.equals(fileHash, sourceHash)
+            || header.getInt() != layerCount
+            || header.getInt() != angleCount
+            || header.getDouble() != scale) {
+            return null;
+        }
+        // Make sure every image lies within the file so that reading one later cannot fail
+        for (int i = 0; i < angleCount; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            long end = buffer.getLong(entry + 16) + 4L * buffer.getInt(entry) * buffer.getInt(entry + 4);
+            if (end > buffer.capacity()) {
+                return null;
+            }
+        }
+        return new SprackCacheFile(buffer, angleCount);
+    }
+
+    /**
+     * Write a new cache file with the given key and contents. The file is
+     * written under a temporary name and then moved into place, so a partially
+     * written file is never opened.
+     *
+     * @param directory the directory containing cache files, created if it does not exist
+     * @param sourceHash the hash of the source sheet, as returned by {@link #hashImage}
+     * @param layerCount the number of layers in the sprite stack
+     * @param scale the scale factor of the cached images
+     * @param images the pixels of the cached images, one per angle, not premultiplied
+     * @param centerX the horizontal centers of the cached images
+     * @param centerY the vertical centers of the cached images
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path directory, byte[] sourceHash, int layerCount, double scale,
+                             PixelRegion[] images, int[] centerX, int[] centerY) throws IOException {
+        Files.createDirectories(directory);
+        Path path = getPath(directory, sourceHash, layerCount, images.length, scale);
+        Path tempPath = Files.createTempFile(directory, "sprk", ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + images.length * ENTRY_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).put(sourceHash);
+            header.putInt(layerCount).putInt(images.length).putDouble(scale);
+            long offset = header.capacity();
+            for (int i = 0; i < images.length; i++) {
+                int width = images[i].getWidth();
+                int height = images[i].getHeight();
+                header.putInt(width).putInt(height).putInt(centerX[i]).putInt(centerY[i]).putLong(offset);
+                offset += 4L * width * height;
+            }
+            header.flip();
+            writeFully(channel, header);
+            for (PixelRegion image : images) {
+                int width = image.getWidth();
+                int height = image.getHeight();
+                ByteBuffer pixels = ByteBuffer.allocate(4 * width * height);
+                IntBuffer pixelInts = pixels.asIntBuffer();
+                for (int y = 0; y < height; y++) {
+                    pixelInts.put(image.getPixels(), image.getOffset() + y * image.getStride(), width);
+                }
+                writeFully(channel, pixels);
+            }
+        }
+        try {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Return the number of angles stored in this cache file.
+     *
+     * @return the number of cached angles
+     */
+    public int getAngleCount() {
+        return angleCount;
+    }
+
+    /**
+     * Return the width of the cached image at the given index.
+     *
+     * @param index the index of the angle
+     * @return the width of the image, in pixels
+     */
+    public int getWidth(int index) {
+        return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE);
+    }
+
+    /**
+     * Return the height of the cached image at the given index.
+     *
+     * @param index the index of the angle
+     * @return the height of the image, in pixels
+     */
+    public int getHeight(int index) {
+        return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Return the horizontal center of the cached image at the given index.
+     *
+     * @param index the index of the angle
+     * @return the horizontal center of the image, in pixels
+     */
+    public int getCenterX(int index) {
+        return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Return the vertical center of the cached image at the given index.
+     *
+     * @param index the index of the angle
+     * @return the vertical center of the image, in pixels
+     */
+    public int getCenterY(int index) {
+        return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 12);
+    }
+
+    /**
+     * Copy the cached pixels at the given index into the given region, which
+     * must have the same size as the cached image and must not be
+     * premultiplied. This method may be called from multiple threads at once.
+     *
+     * @param index the index of the angle
+     * @param destination the region to copy the cached image into
+     */
+    public void readPixels(int index, PixelRegion destination) {
+        int entry = HEADER_SIZE + index * ENTRY_SIZE;
+        int width = buffer.getInt(entry);
+        int height = buffer.getInt(entry + 4);
+        if (destination.getWidth() != width || destination.getHeight() != height || destination.isPremultiplied()) {
+            throw new IllegalArgumentException("Destination region does not match cached image");
+        }
+        ByteBuffer pixelBytes = buffer.duplicate();
+        pixelBytes.position((int) buffer.getLong(entry + 16));
+        IntBuffer pixels = pixelBytes.asIntBuffer();
+        for (int y = 0; y < height; y++) {
+            pixels.get(destination.getPixels(), destination.getOffset() + y * destination.getStride(), width);
+        }
+    }
+}
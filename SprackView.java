@@ -1,126 +1,1111 @@
 import greenfoot.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A container of cached sprite stack images pre-rendered from many angles for
- * efficient use with the Sprack class. SprackView objects are immutable, and
- * only one object per sprite stack sheet should be created, since a new cache
- * of images will be created for each instance.
+ * efficient use with the Sprack class. The sprite stack a view draws never
+ * changes, but its caches fill and, for managed views, empty again as angles
+ * are used and evicted. Only one object per sprite stack sheet should be
+ * created, since a new cache of images will be created for each instance.
+ * <p>
+ * Each cached image is trimmed to the bounds of its visible pixels, and comes
+ * with a {@link SpanTable} of the runs of visible pixels in each row so that
+ * drawing it can skip transparent pixels. The cached images of views created
+ * without a manager are packed together into a shared {@link TextureAtlas},
+ * instead of each being stored as a separate image. Images cannot be removed
+ * from an atlas, so views created by a {@link ViewCacheManager}, which include
+ * every view that spracks are loaded with, bypass the atlas entirely.
+ * <p>
+ * The image cache can be built in the constructor on the calling thread, built
+ * in the constructor using all available cores, or built lazily, rendering
+ * each angle when it is first needed while the rest are rendered in the
+ * background. See {@link BuildMode}. Rendered caches can also be saved to and
+ * loaded from a directory of {@link SprackCacheFile cache files}, in which case
+ * angles are read from a memory-mapped file instead of being rendered.
+ * <p>
+ * Sprite stacks that are small on the screen can be drawn at a coarser
+ * {@link LevelOfDetail level of detail}, using fewer cached angles and fewer
+ * layers, down to a flat square of the stack's average color.
+ * <p>
+ * Every method of a view may be called from several threads at once, so
+ * several viewports can be drawn from the same views at the same time.
+ * <p>
+ * Each view also holds a {@link CollisionMask} of its bottom layer at every
+ * cached angle, for pixel-accurate collision tests in world units.
+ * <p>
+ * The number of cached angles and the scale factor of cached images can be
+ * chosen per view. Views created by a {@link ViewCacheManager} have them
+ * chosen from the size of the sprite stack, and store each cached angle in
+ * an array of its own instead of an atlas, so that the manager can evict
+ * angles that have not been used recently to keep every view within one
+ * memory budget. Evicted angles are read or rendered again when next needed.
  *
  * @author Martin Baldwin
  * @version May 2024
  */
 public class SprackView {
-    /** The scale factor of the images within a SprackView object's cache. */
+    /**
+     * The largest scale factor of the images within a SprackView object's
+     * cache, and the scale factor used unless another is given.
+     */
     public static final double IMAGE_CACHE_SCALE = 8.0;
-    /** The number of different rotation angles, evenly spaced, to make available in the cache. */
-    private static final int IMAGE_CACHE_ANGLE_COUNT = 140;
+    /** The number of different rotation angles, evenly spaced, to make available in a cache unless another is given. */
+    public static final int DEFAULT_ANGLE_COUNT = 140;
+    /**
+     * The number of zoom buckets per doubling of scale factor. Scale factors
+     * are quantized to these buckets before images are scaled and cached.
+     */
+    private static final int ZOOM_BUCKETS_PER_OCTAVE = 32;
+    /** The maximum number of scaled images to keep in the scaled image cache of a SprackView object without a manager. */
+    private static final int SCALED_CACHE_CAPACITY = 280;
+
+    /** The number of cache angles below which a cache building task is not split further. */
+    private static final int BUILD_TASK_ANGLE_THRESHOLD = 4;
+
+    /** The width and height of a page of the shared atlas, in pixels. */
+    public static final int ATLAS_PAGE_SIZE = 2048;
+    /** The atlas that the cached images of SprackViews without a manager are packed into unless they are given another. */
+    private static final TextureAtlas ATLAS = new TextureAtlas(ATLAS_PAGE_SIZE);
+
+    /**
+     * The fraction by which the screen size of a sprite stack must pass the
+     * threshold of a level of detail before the level changes, so that sizes
+     * near a threshold do not switch back and forth between levels.
+     */
+    private static final double DETAIL_HYSTERESIS = 0.2;
+
+    /**
+     * The levels of detail at which a sprite stack can be drawn, from finest
+     * to coarsest, chosen by {@link #selectDetail} from the size of the
+     * stack's layers on the screen.
+     */
+    public enum LevelOfDetail {
+        /** Every cached angle and every layer. */
+        FULL(12.0, 1, 1),
+        /** Every second cached angle, and every second layer where layers are drawn. */
+        REDUCED(6.0, 2, 2),
+        /** Every fourth cached angle, and every fourth layer where layers are drawn. */
+        COARSE(3.0, 4, 4),
+        /** A flat square of the sprite stack's average color, the same at every angle. */
+        IMPOSTOR(0.0, 0, 0);
+
+        /** The smallest screen size of a layer at which this level is used, in pixels. */
+        private final double minSize;
+        private final int angleStep;
+        private final int layerStep;
+
+        LevelOfDetail(double minSize, int angleStep, int layerStep) {
+            this.minSize = minSize;
+            this.angleStep = angleStep;
+            this.layerStep = layerStep;
+        }
+
+        /**
+         * Return the number of layers from which one is drawn at this level
+         * when drawing from layers at the given scale factor. Layers are
+         * only skipped while the gaps left between drawn layers stay within
+         * a pixel.
+         *
+         * @param scale the scale factor the sprite stack is drawn at
+         * @return the interval between drawn layers, at least 1
+         */
+        public int getLayerStep(double scale) {
+            return Math.max(1, Math.min(layerStep, (int) (1.0 / scale)));
+        }
+    }
+
+    private static final LevelOfDetail[] DETAIL_LEVELS = LevelOfDetail.values();
+
+    /**
+     * The ways in which the rotated image cache of a SprackView can be built.
+     */
+    public enum BuildMode {
+        /** Render every angle in the constructor, on the calling thread. */
+        SERIAL,
+        /** Render every angle in the constructor, spread across all cores. */
+        PARALLEL,
+        /**
+         * Render each angle the first time it is requested, and render the
+         * remaining angles in the background.
+         */
+        LAZY,
+        /**
+         * Render each angle the first time it is requested, and never render
+         * angles in the background. Views only drawn from their layers, such
+         * as by a {@link RasterRenderer}, then never build a cache at all.
+         */
+        ON_DEMAND,
+    }
+
+    /** The number of different rotation angles, evenly spaced, available in the cache. */
+    private final int angleCount;
+    /** The scale factor of the images within the cache. */
+    private final double cacheScale;
 
     /** The width of an untransformed layer, in pixels. */
     private final int layerWidth;
     /** The height of an untransformed layer, in pixels. */
     private final int layerHeight;
 
+    /** Individual unscaled layer images, ordered from bottom to top. */
+    private final GreenfootImage[] layers;
+    /** Regions covering the pixels of corresponding images in layers. */
+    private final PixelRegion[] layerRegions;
+
     /**
-     * Images of the sprite stack at different rotation angles. rotCache[i]
-     * contains the image representing the sprite stack at an angle of
-     * i / IMAGE_CACHE_ANGLE_COUNT * 360, scaled by a factor of IMAGE_CACHE_SCALE.
+     * The sprite stack at different rotation angles. angles[i] contains the
+     * sprite stack at an angle of i / angleCount * 360, scaled by a factor
+     * of cacheScale, or null if that angle has not been rendered yet or has
+     * been evicted.
      */
-    private final GreenfootImage[] rotCache;
+    private final AtomicReferenceArray<CachedAngle> angles;
 
     /**
-     * The positional horizontal screen centers of corresponding transformed
-     * sprite stack images in rotCache, in pixels.
+     * Images from angles scaled down to quantized scale factors, keyed by
+     * cache index and zoom bucket as combined by {@link #getScaledCacheKey},
+     * or null if this view is managed, in which case its scaled images are
+     * kept by the manager within its budget. Viewports may be drawn on
+     * several threads at once, so this is only used while holding its lock.
      */
-    private final int[] rotCacheCenterX;
+    private final LruCache<GreenfootImage> scaledCache;
+    /** The number that the manager tells this view's scaled images apart by, or 0 if this view is not managed. */
+    private final int viewNumber;
+    /** Uses of the scaled images of this view, counted only while the {@link FrameProfiler} is enabled. */
+    private final AtomicLong scaledCacheHits;
+    private final AtomicLong scaledCacheMisses;
+
+    /** The directory to save rendered caches to, or null if caches are not saved. */
+    private final Path cacheDirectory;
+    /** The hash of the layer sheet, or null if caches are not saved. */
+    private final byte[] sheetHash;
+    /** The cache file to read angles from, or null if angles must be rendered. */
+    private final SprackCacheFile cacheFile;
+    /** The atlas that the cached images of this SprackView are packed into, or null to give each its own array. */
+    private final TextureAtlas atlas;
+    /** The manager that keeps this SprackView's cache within a memory budget, or null if it is unbounded. */
+    private final ViewCacheManager manager;
+
+    /** The average color of the visible pixels of every layer, drawn at the impostor level of detail. */
+    private final Color impostorColor;
+    /** A single pixel of the impostor color, scaled to draw the impostor without Java2D. */
+    private final PixelRegion impostorRegion;
+    private final SpanTable impostorSpans;
+
+    /** The footprint of the bottom layer at each cached angle, in world units. */
+    private final CollisionMask[] collisionMasks;
 
     /**
-     * The positional vertical screen centers of corresponding transformed
-     * sprite stack images in rotCache, in pixels.
+     * Create a new cache for a sprite stack created by layering the specified
+     * number of layers from the given layer sheet image, rendering every angle
+     * on the calling thread.
+     *
+     * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
+     * @param layerCount the number of layers to extract from the given layer sheet
      */
-    private final int[] rotCacheCenterY;
+    public SprackView(GreenfootImage layerSheet, int layerCount) {
+        this(layerSheet, layerCount, BuildMode.SERIAL);
+    }
 
     /**
      * Create a new cache for a sprite stack created by layering the specified
-     * number of layers from the given layer sheet image.
+     * number of layers from the given layer sheet image, building the cache
+     * using the specified build mode.
      *
      * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
      * @param layerCount the number of layers to extract from the given layer sheet
+     * @param mode the way in which to build the rotated image cache
      */
-    public SprackView(GreenfootImage layerSheet, int layerCount) {
+    public SprackView(GreenfootImage layerSheet, int layerCount, BuildMode mode) {
+        this(layerSheet, layerCount, mode, null);
+    }
+
+    /**
+     * Create a new cache for a sprite stack created by layering the specified
+     * number of layers from the given layer sheet image, building the cache
+     * using the specified build mode.
+     * <p>
+     * If a cache directory is given and it contains a cache file for the same
+     * layer sheet and cache parameters, angles are read from that file instead
+     * of being rendered. Otherwise, once every angle has been rendered, a new
+     * cache file is written to the directory for the next time.
+     *
+     * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
+     * @param layerCount the number of layers to extract from the given layer sheet
+     * @param mode the way in which to build the rotated image cache
+     * @param cacheDirectory the directory to load and save cache files in, or null to always render
+     */
+    public SprackView(GreenfootImage layerSheet, int layerCount, BuildMode mode, Path cacheDirectory) {
+        this(layerSheet, layerCount, mode, cacheDirectory, ATLAS);
+    }
+
+    /**
+     * Create a new cache for a sprite stack created by layering the specified
+     * number of layers from the given layer sheet image, building the cache
+     * using the specified build mode and packing it into the given atlas
+     * instead of the shared one. The pixels of the cache are freed along with
+     * the atlas, which allows short-lived views to be created repeatedly.
+     *
+     * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
+     * @param layerCount the number of layers to extract from the given layer sheet
+     * @param mode the way in which to build the rotated image cache
+     * @param cacheDirectory the directory to load and save cache files in, or null to always render
+     * @param atlas the atlas to pack cached images into
+     */
+    public SprackView(GreenfootImage layerSheet, int layerCount, BuildMode mode, Path cacheDirectory, TextureAtlas atlas) {
+        this(layerSheet, layerCount, DEFAULT_ANGLE_COUNT, IMAGE_CACHE_SCALE, mode, cacheDirectory, atlas, null);
+    }
+
+    /**
+     * Create a new cache for a sprite stack created by layering the specified
+     * number of layers from the given layer sheet image, with the given
+     * number of angles and scale factor, for the given manager.
+     *
+     * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
+     * @param layerCount the number of layers to extract from the given layer sheet
+     * @param angleCount the number of rotation angles to cache, a multiple of 4
+     * @param cacheScale the scale factor of cached images, at most {@link #IMAGE_CACHE_SCALE}
+     * @param mode the way in which to build the rotated image cache
+     * @param cacheDirectory the directory to load and save cache files in, or null to always render
+     * @param atlas the atlas to pack cached images into, or null to store each in its own array
+     * @param manager the manager of the memory used by cached angles, or null if it is unbounded
+     */
+    SprackView(GreenfootImage layerSheet, int layerCount, int angleCount, double cacheScale, BuildMode mode,
+               Path cacheDirectory, TextureAtlas atlas, ViewCacheManager manager) {
+        if (cacheScale > IMAGE_CACHE_SCALE) {
+            throw new IllegalArgumentException("Cache scale " + cacheScale + " is larger than " + IMAGE_CACHE_SCALE);
+        }
+        this.angleCount = angleCount;
+        this.cacheScale = cacheScale;
+        this.atlas = atlas;
+        this.manager = manager;
         // Create individual layer images from sheet
         layerWidth = layerSheet.getWidth();
         layerHeight = layerSheet.getHeight() / layerCount;
-        GreenfootImage[] layers = new GreenfootImage[layerCount];
+        layers = new GreenfootImage[layerCount];
         for (int i = 0; i < layers.length; i++) {
             layers[i] = new GreenfootImage(layerWidth, layerHeight);
             layers[i].drawImage(layerSheet, 0, -layerHeight * (layerCount - 1 - i));
         }
+        layerRegions = new PixelRegion[layerCount];
+        for (int i = 0; i < layers.length; i++) {
+            layerRegions[i] = PixelRegion.of(layers[i]);
+        }
+        int impostorPixel = getAverageColor(layers);
+        impostorColor = new Color((impostorPixel >> 16) & 0xFF, (impostorPixel >> 8) & 0xFF, impostorPixel & 0xFF);
+        impostorRegion = new PixelRegion(new int[] {impostorPixel}, 0, 1, 1, 1, false);
+        impostorSpans = SpanTable.of(impostorRegion);
+        collisionMasks = new CollisionMask[angleCount];
+        for (int i = 0; i < collisionMasks.length; i++) {
+            collisionMasks[i] = CollisionMask.of(layerRegions[0], i * 360.0 / angleCount);
+        }
 
         // Create rotated image cache
-        rotCache = new GreenfootImage[IMAGE_CACHE_ANGLE_COUNT];
-        rotCacheCenterX = new int[IMAGE_CACHE_ANGLE_COUNT];
-        rotCacheCenterY = new int[IMAGE_CACHE_ANGLE_COUNT];
-        for (int i = 0; i < IMAGE_CACHE_ANGLE_COUNT; i++) {
-            double imageDegrees = 360.0 / IMAGE_CACHE_ANGLE_COUNT * i;
-            double imageRad = Math.toRadians(imageDegrees);
-            // Get scaled dimensions of layers
-            int width = (int) (layerWidth * IMAGE_CACHE_SCALE);
-            int height = (int) (layerHeight * IMAGE_CACHE_SCALE);
-            // Get rotated and scaled dimensions of layer images
-            int rotWidth = (int) (Math.abs(width * Math.cos(imageRad)) + Math.abs(height * Math.sin(imageRad)));
-            int rotHeight = (int) (Math.abs(width * Math.sin(imageRad)) + Math.abs(height * Math.cos(imageRad)));
-            // Draw layers onto an image
-            GreenfootImage image = new GreenfootImage(rotWidth, rotHeight + (int) (layers.length * IMAGE_CACHE_SCALE));
-            for (int j = 0; j < layers.length; j++) {
-                GreenfootImage layer = new GreenfootImage(layers[j]);
-                layer.scale(width, height);
-                GreenfootImage rotLayer = new GreenfootImage(rotWidth, rotHeight);
-                rotLayer.drawImage(layer, (rotWidth - width) / 2, (rotHeight - height) / 2);
-                rotLayer.rotate((int) imageDegrees);
-                image.drawImage(rotLayer, 0, (int) (IMAGE_CACHE_SCALE * (layers.length - 1 - j)));
+        angles = new AtomicReferenceArray<>(angleCount);
+        scaledCache = manager == null ? new LruCache<>(SCALED_CACHE_CAPACITY) : null;
+        viewNumber = manager == null ? 0 : manager.nextViewNumber();
+        scaledCacheHits = new AtomicLong();
+        scaledCacheMisses = new AtomicLong();
+
+        // Look for a previously saved cache
+        this.cacheDirectory = cacheDirectory;
+        SprackCacheFile file = null;
+        if (cacheDirectory != null) {
+            sheetHash = SprackCacheFile.hashImage(layerSheet);
+            try {
+                file = SprackCacheFile.open(cacheDirectory, sheetHash, layerCount, angleCount, cacheScale);
+            } catch (IOException e) {
+                System.err.println("Could not read sprite stack cache file, rendering instead: " + e);
+            }
+        } else {
+            sheetHash = null;
+        }
+        cacheFile = file;
+
+        switch (mode) {
+            case SERIAL:
+                for (int i = 0; i < angleCount; i++) {
+                    getCachedAngle(i);
+                }
+                saveCacheFile();
+                break;
+            case PARALLEL:
+                ForkJoinPool.commonPool().invoke(new RenderAnglesTask(0, angleCount));
+                saveCacheFile();
+                break;
+            case LAZY:
+                ForkJoinPool.commonPool().execute(() -> {
+                    new RenderAnglesTask(0, angleCount).invoke();
+                    saveCacheFile();
+                });
+                break;
+            case ON_DEMAND:
+                break;
+        }
+    }
+
+    /**
+     * Return the opaque average color of the pixels of the given images that
+     * are not fully transparent, weighted by their alpha, as a packed ARGB
+     * pixel.
+     */
+    private static int getAverageColor(GreenfootImage[] images) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long weight = 0;
+        for (GreenfootImage image : images) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            for (int pixel : image.getAwtImage().getRGB(0, 0, width, height, null, 0, width)) {
+                int alpha = pixel >>> 24;
+                red += ((pixel >> 16) & 0xFF) * alpha;
+                green += ((pixel >> 8) & 0xFF) * alpha;
+                blue += (pixel & 0xFF) * alpha;
+                weight += alpha;
             }
-            rotCache[i] = image;
-            rotCacheCenterX[i] = rotWidth / 2;
-            rotCacheCenterY[i] = image.getHeight() - rotHeight / 2;
         }
+        if (weight == 0) {
+            return 0xFF000000;
+        }
+        return 0xFF000000 | (int) (red / weight) << 16 | (int) (green / weight) << 8 | (int) (blue / weight);
     }
 
     /**
-     * Return the index into a SprackView object's cache arrays that corresponds
-     * to the given rotation angle.
+     * Write every cached angle to a new cache file, if a cache directory was
+     * given and the angles were not read from an existing cache file. Nothing
+     * is written unless every angle is in the cache, which it may not be if
+     * the manager of this view evicted some.
+     */
+    private void saveCacheFile() {
+        if (cacheDirectory == null || cacheFile != null) {
+            return;
+        }
+        PixelRegion[] images = new PixelRegion[angleCount];
+        int[] centerX = new int[angleCount];
+        int[] centerY = new int[angleCount];
+        for (int i = 0; i < images.length; i++) {
+            CachedAngle angle = angles.get(i);
+            if (angle == null) {
+                return;
+            }
+            images[i] = angle.region;
+            centerX[i] = angle.centerX;
+            centerY[i] = angle.centerY;
+        }
+        try {
+            SprackCacheFile.write(cacheDirectory, sheetHash, layers.length, cacheScale, images, centerX, centerY);
+        } catch (IOException e) {
+            System.err.println("Could not write sprite stack cache file: " + e);
+        }
+    }
+
+    /**
+     * Store the given angle in the cache at the given index, unless another
+     * thread stores it first. A managed view tells its manager about the
+     * new angle, which may evict others to stay within its budget.
+     *
+     * @param index the index into the cache of the angle
+     * @param angle the sprite stack at the corresponding angle
+     * @return the angle stored in the cache at the given index
+     */
+    private CachedAngle storeAngle(int index, CachedAngle angle) {
+        if (manager != null) {
+            angle.lastUsed = manager.getEpoch();
+        }
+        // Angles are deterministic, so if two threads produce the same angle
+        // at once, either one can be kept. The other's atlas space is wasted.
+        if (!angles.compareAndSet(index, null, angle)) {
+            CachedAngle stored = angles.get(index);
+            // The stored angle may already have been evicted again
+            return stored != null ? stored : angle;
+        }
+        if (manager != null) {
+            // The new angle is passed along so that the eviction it may cause keeps it
+            manager.angleStored(angle.bytes, this, index);
+        }
+        return angle;
+    }
+
+    /**
+     * Return a new region of the given size to hold the pixels of a cached
+     * angle: within the atlas if this view has one, or otherwise in an array
+     * of its own that is freed when the angle is evicted.
+     */
+    private PixelRegion allocateRegion(int width, int height) {
+        if (atlas == null) {
+            return new PixelRegion(new int[width * height], 0, width, width, height, false);
+        }
+        return atlas.allocate(width, height);
+    }
+
+    /**
+     * Read the sprite stack at the angle corresponding to the given cache
+     * index from the cache file and store it in the cache.
+     *
+     * @param index the index into the cache of the angle to read
+     * @return the angle stored in the cache at the given index
+     */
+    private CachedAngle readAngle(int index) {
+        PixelRegion region = allocateRegion(cacheFile.getWidth(index), cacheFile.getHeight(index));
+        cacheFile.readPixels(index, region);
+        return storeAngle(index, new CachedAngle(region, SpanTable.of(region), cacheFile.getCenterX(index), cacheFile.getCenterY(index)));
+    }
+
+    /**
+     * Return the width of a single layer rotated by the angle corresponding to
+     * the given cache index and scaled by cacheScale, which is also
+     * the width of the untrimmed image of the sprite stack at that angle.
+     */
+    private int getRotatedLayerWidth(int index) {
+        double imageRad = Math.toRadians(360.0 / angleCount * index);
+        int width = (int) (layerWidth * cacheScale);
+        int height = (int) (layerHeight * cacheScale);
+        return (int) (Math.abs(width * Math.cos(imageRad)) + Math.abs(height * Math.sin(imageRad)));
+    }
+
+    /**
+     * Return the height of a single layer rotated by the angle corresponding
+     * to the given cache index and scaled by cacheScale.
+     */
+    private int getRotatedLayerHeight(int index) {
+        double imageRad = Math.toRadians(360.0 / angleCount * index);
+        int width = (int) (layerWidth * cacheScale);
+        int height = (int) (layerHeight * cacheScale);
+        return (int) (Math.abs(width * Math.sin(imageRad)) + Math.abs(height * Math.cos(imageRad)));
+    }
+
+    /**
+     * Return the height of the untrimmed image of the sprite stack at the
+     * angle corresponding to the given cache index, with room for every layer.
+     */
+    private int getStackHeight(int index) {
+        return getRotatedLayerHeight(index) + (int) (layers.length * cacheScale);
+    }
+
+    /**
+     * Render the sprite stack at the angle corresponding to the given cache
+     * index, trim it to its visible pixels, and store it in the cache.
+     *
+     * @param index the index into the cache of the angle to render
+     * @return the angle stored in the cache at the given index
+     */
+    private CachedAngle renderAngle(int index) {
+        double imageDegrees = 360.0 / angleCount * index;
+        // Get scaled dimensions of layers
+        int width = (int) (layerWidth * cacheScale);
+        int height = (int) (layerHeight * cacheScale);
+        // Get rotated and scaled dimensions of layer images
+        int rotWidth = getRotatedLayerWidth(index);
+        int rotHeight = getRotatedLayerHeight(index);
+        // Draw layers onto an image
+        GreenfootImage image = new GreenfootImage(rotWidth, getStackHeight(index));
+        for (int j = 0; j < layers.length; j++) {
+            GreenfootImage layer = new GreenfootImage(layers[j]);
+            layer.scale(width, height);
+            GreenfootImage rotLayer = new GreenfootImage(rotWidth, rotHeight);
+            rotLayer.drawImage(layer, (rotWidth - width) / 2, (rotHeight - height) / 2);
+            rotLayer.rotate((int) imageDegrees);
+            image.drawImage(rotLayer, 0, (int) (cacheScale * (layers.length - 1 - j)));
+        }
+
+        // Trim the image to its visible pixels, keeping the centers at the same pixels
+        PixelRegion pixels = PixelRegion.of(image);
+        int left = pixels.getWidth();
+        int top = pixels.getHeight();
+        int right = 0;
+        int bottom = 0;
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            int row = pixels.getOffset() + y * pixels.getStride();
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                if ((pixels.getPixels()[row + x] >>> 24) != 0) {
+                    left = Math.min(left, x);
+                    right = Math.max(right, x + 1);
+                    top = Math.min(top, y);
+                    bottom = Math.max(bottom, y + 1);
+                }
+            }
+        }
+        if (left >= right) {
+            // Keep a single transparent pixel of an invisible sprite stack
+            left = 0;
+            top = 0;
+            right = 1;
+            bottom = 1;
+        }
+        PixelRegion region;
+        if (atlas == null) {
+            region = allocateRegion(right - left, bottom - top);
+            image.getAwtImage().getRGB(left, top, right - left, bottom - top, region.getPixels(), 0, right - left);
+        } else {
+            region = atlas.add(image, left, top, right - left, bottom - top);
+        }
+        return storeAngle(index, new CachedAngle(region, SpanTable.of(region),
+                                                 rotWidth / 2 - left, image.getHeight() - rotHeight / 2 - top));
+    }
+
+    /**
+     * Return the cached angle at the given cache index, reading or rendering
+     * it first if it is not in the cache yet. A managed view marks the angle
+     * as used, so that it is among the last to be evicted.
+     *
+     * @param index the index into the cache of the angle to get
+     * @return the sprite stack at the corresponding angle
+     */
+    private CachedAngle getCachedAngle(int index) {
+        CachedAngle angle = angles.get(index);
+        if (angle == null) {
+            angle = cacheFile != null ? readAngle(index) : renderAngle(index);
+        } else if (manager != null) {
+            // Only write when the epoch has moved on, so that the many threads
+            // using an angle in the same frame do not contend for its field
+            long epoch = manager.getEpoch();
+            if (angle.lastUsed != epoch) {
+                angle.lastUsed = epoch;
+            }
+        }
+        return angle;
+    }
+
+    /**
+     * Remove the angle at the given cache index from the cache, if it is
+     * there, so that it is read or rendered again when next needed. This is
+     * only safe for views whose angles are not packed into an atlas.
+     *
+     * @param index the index into the cache of the angle to evict
+     * @return the number of bytes freed, or 0 if the angle was not cached
+     */
+    long evictAngle(int index) {
+        CachedAngle angle = angles.get(index);
+        if (angle == null || !angles.compareAndSet(index, angle, null)) {
+            return 0;
+        }
+        return angle.bytes;
+    }
+
+    /**
+     * Return the epoch of this view's manager in which the angle at the given
+     * cache index was last used, or -1 if it is not cached.
+     *
+     * @param index the index into the cache of the angle
+     * @return the epoch in which the angle was last used, or -1
+     */
+    long getAngleLastUsed(int index) {
+        CachedAngle angle = angles.get(index);
+        return angle != null ? angle.lastUsed : -1;
+    }
+
+    /**
+     * An image of the sprite stack at one cached angle, trimmed to its
+     * visible pixels and stored in the atlas or an array of its own.
+     */
+    private static class CachedAngle {
+        /** The pixels of the image within the atlas. */
+        private final PixelRegion region;
+        /** The runs of visible pixels in each row of the image. */
+        private final SpanTable spans;
+        /** The positional horizontal screen center of the image, in pixels, which may lie outside it. */
+        private final int centerX;
+        /** The positional vertical screen center of the image, in pixels, which may lie outside it. */
+        private final int centerY;
+        /** The number of bytes held by the pixels and spans of the image. */
+        private final long bytes;
+        /**
+         * The epoch of the view's manager in which this angle was last used.
+         * Lost updates from racing threads only make eviction slightly less
+         * exact, so this is not synchronized.
+         */
+        private long lastUsed;
+
+        CachedAngle(PixelRegion region, SpanTable spans, int centerX, int centerY) {
+            this.region = region;
+            this.spans = spans;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            bytes = (long) region.getWidth() * region.getHeight() * 4 + spans.getBytes();
+        }
+    }
+
+    /**
+     * A fork-join task that reads or renders a range of cache angles that are
+     * not already in the cache, splitting the range across worker threads.
+     */
+    @SuppressWarnings("serial")
+    private class RenderAnglesTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+
+        RenderAnglesTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= BUILD_TASK_ANGLE_THRESHOLD) {
+                for (int i = start; i < end; i++) {
+                    // Stop rendering ahead once a managed cache is nearly full, rather than evict angles in use
+                    if (manager != null && !manager.hasRoom()) {
+                        return;
+                    }
+                    getCachedAngle(i);
+                    // Nothing draws an angle finished after the manager released every image
+                    if (manager != null && !manager.isCacheUsed()) {
+                        manager.releaseAngle(SprackView.this, i);
+                        return;
+                    }
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new RenderAnglesTask(start, middle), new RenderAnglesTask(middle, end));
+        }
+    }
+
+    /**
+     * Return the index into this SprackView's cache that corresponds to the
+     * given rotation angle.
      *
      * @param rotation the rotation angle of the sprite stack, in degrees
-     * @return the index into cache arrays to access the data corresponding to the given angle
+     * @return the index into the cache of the angle nearest below the given angle
      */
-    private static int getCacheIndex(double rotation) {
-        return (int) (Vector2.normalizeAngle(rotation) / 360.0 * IMAGE_CACHE_ANGLE_COUNT);
+    private int getCacheIndex(double rotation) {
+        return (int) (Vector2.normalizeAngle(rotation) / 360.0 * angleCount);
+    }
+
+    /**
+     * Return the level of detail at which to draw this sprite stack at the
+     * given scale factor, given the level it was last drawn at. The level
+     * only changes once the screen size of a layer is past the threshold
+     * between levels by a margin, so it does not flicker while the scale
+     * factor hovers around a threshold.
+     *
+     * @param scale the scale factor the sprite stack is drawn at
+     * @param current the level of detail the sprite stack was last drawn at
+     * @return the level of detail to draw the sprite stack at
+     */
+    public LevelOfDetail selectDetail(double scale, LevelOfDetail current) {
+        LevelOfDetail[] levels = DETAIL_LEVELS;
+        double size = Math.max(layerWidth, layerHeight) * scale;
+        int level = current.ordinal();
+        while (level < levels.length - 1 && size < levels[level].minSize * (1.0 - DETAIL_HYSTERESIS)) {
+            level++;
+        }
+        while (level > 0 && size >= levels[level - 1].minSize * (1.0 + DETAIL_HYSTERESIS)) {
+            level--;
+        }
+        return levels[level];
+    }
+
+    /**
+     * Return the level of detail at which to draw this sprite stack at the
+     * given scale factor, without hysteresis, for drawing that keeps no
+     * level from one frame to the next.
+     *
+     * @param scale the scale factor the sprite stack is drawn at
+     * @return the level of detail to draw the sprite stack at
+     */
+    public LevelOfDetail selectDetail(double scale) {
+        LevelOfDetail[] levels = DETAIL_LEVELS;
+        double size = Math.max(layerWidth, layerHeight) * scale;
+        int level = 0;
+        while (level < levels.length - 1 && size < levels[level].minSize) {
+            level++;
+        }
+        return levels[level];
+    }
+
+    /**
+     * Return the number that tells this view apart from the other views of
+     * its manager.
+     *
+     * @return the number of this view, or 0 if it is not managed
+     */
+    int getViewNumber() {
+        return viewNumber;
+    }
+
+    /**
+     * Return the given rotation rounded down to an angle available at the
+     * given level of detail, so that sprite stacks drawn at coarser levels
+     * share fewer cached and scaled images. At the impostor level, the
+     * rotation is returned unchanged.
+     *
+     * @param rotation the rotation angle of the sprite stack, in degrees
+     * @param detail the level of detail the sprite stack is drawn at
+     * @return the rotation to look images up with, in degrees
+     */
+    public double snapRotation(double rotation, LevelOfDetail detail) {
+        if (detail.angleStep <= 1) {
+            return rotation;
+        }
+        int index = getCacheIndex(rotation) / detail.angleStep * detail.angleStep;
+        // The middle of the angle's interval, so that getCacheIndex returns the index back
+        return (index + 0.5) * 360.0 / angleCount;
+    }
+
+    /**
+     * Return the zoom bucket that the given scale factor falls into.
+     *
+     * @param scale the scale factor to quantize, greater than 0.0
+     * @return the zoom bucket nearest to the given scale factor
+     */
+    public static int getZoomBucket(double scale) {
+        return (int) Math.round(Math.log(scale) / Math.log(2.0) * ZOOM_BUCKETS_PER_OCTAVE);
+    }
+
+    /**
+     * Return the given scale factor rounded to the nearest zoom bucket.
+     * <p>
+     * Images returned by {@link #getTransformedImage} are scaled by quantized
+     * scale factors so that they can be reused while the scale factor changes
+     * by small amounts. Passing the same quantized scale factor to the other
+     * methods of this class keeps their results consistent with the image.
+     * Quantizing an already quantized scale factor returns it unchanged.
+     *
+     * @param scale the scale factor to quantize
+     * @return the quantized scale factor, or 0.0 if the given scale factor is not positive
+     */
+    public static double quantizeScale(double scale) {
+        if (scale <= 0.0) {
+            return 0.0;
+        }
+        return Math.pow(2.0, (double) getZoomBucket(scale) / ZOOM_BUCKETS_PER_OCTAVE);
+    }
+
+    /**
+     * Return the key of the image at the given cache index scaled to the
+     * given zoom bucket, which is unique among the scaled images of every
+     * view of the same manager.
+     */
+    private long getScaledCacheKey(int index, int zoomBucket) {
+        return ((long) viewNumber << 48) | ((long) (zoomBucket & 0xFFFF) << 32) | index;
     }
 
     /**
      * Return a GreenfootImage representing the sprite stack of this SprackView
      * rotated and scaled by the specified amounts, or null if the image would
      * be empty.
+     * <p>
+     * The scale factor is {@link #quantizeScale quantized} before scaling.
+     * Scaled images are kept in a bounded cache, which for a managed view is
+     * shared by every view of its manager and counted towards its budget, so
+     * repeated calls with the same rotation and quantized scale return the
+     * same image without copying or rescaling, unless it was evicted. The
+     * returned image is shared and must not be modified.
+     * <p>
+     * A managed view may cache its images at a smaller scale factor than
+     * {@link #IMAGE_CACHE_SCALE}. Scale factors between the two are reached by
+     * enlarging the cached image, but larger scale factors are not supported.
      *
      * @param rotation the rotation angle of the sprite stack, in degrees
      * @param scale the scale factor of the sprite stack
-     * @return a new GreenfootImage representing the sprite stack, or null if the image would be empty
-     * @throws UnsupportedOperationException if the given scale factor is larger than the scale factor of the image cache
+     * @return a GreenfootImage representing the sprite stack, or null if the image would be empty
+     * @throws UnsupportedOperationException if the given scale factor is larger than {@link #IMAGE_CACHE_SCALE}
      */
     public GreenfootImage getTransformedImage(double rotation, double scale) {
         if (scale > IMAGE_CACHE_SCALE) {
             throw new UnsupportedOperationException("Cannot scale stacked sprite larger than cached image scale (got " + scale + ", max in cache " + IMAGE_CACHE_SCALE + ")");
         }
-        GreenfootImage cachedImage = rotCache[getCacheIndex(rotation)];
-        int scaledWidth = (int) (cachedImage.getWidth() / IMAGE_CACHE_SCALE * scale);
-        int scaledHeight = (int) (cachedImage.getHeight() / IMAGE_CACHE_SCALE * scale);
+        scale = quantizeScale(scale);
+        int index = getCacheIndex(rotation);
+        PixelRegion region = getCachedAngle(index).region;
+        int scaledWidth = (int) (region.getWidth() / cacheScale * scale);
+        int scaledHeight = (int) (region.getHeight() / cacheScale * scale);
         if (scaledWidth <= 0 || scaledHeight <= 0) {
             return null;
         }
-        GreenfootImage image = new GreenfootImage(cachedImage);
-        image.scale(scaledWidth, scaledHeight);
+        long key = getScaledCacheKey(index, getZoomBucket(scale));
+        GreenfootImage image;
+        if (manager != null) {
+            image = manager.getScaledImage(key);
+        } else {
+            synchronized (scaledCache) {
+                image = scaledCache.get(key);
+            }
+        }
+        if (image == null) {
+            // Scale outside the lock so that other threads can use the cache meanwhile.
+            // Two threads may scale the same image at once, in which case either is kept.
+            image = region.toImage();
+            image.scale(scaledWidth, scaledHeight);
+            if (manager != null) {
+                manager.putScaledImage(key, image);
+            } else {
+                synchronized (scaledCache) {
+                    scaledCache.put(key, image);
+                }
+            }
+            if (FrameProfiler.isEnabled()) {
+                scaledCacheMisses.incrementAndGet();
+                FrameProfiler.count(FrameProfiler.Counter.IMAGES_CREATED, 1);
+            }
+        } else if (FrameProfiler.isEnabled()) {
+            scaledCacheHits.incrementAndGet();
+            FrameProfiler.count(FrameProfiler.Counter.CACHE_HITS, 1);
+        }
         return image;
     }
 
+    /**
+     * Return the pixels of the cached image of the sprite stack of this
+     * SprackView rotated by the specified amount, at a scale factor of
+     * {@link #getCacheScale}.
+     * <p>
+     * This allows the cached image to be scaled and drawn without going
+     * through Java2D. Unless this view is managed, the region lies within a
+     * page of an atlas, so the regions of many angles and views share the
+     * same pixel array. Dividing the size of the region by {@link #getCacheScale}
+     * and multiplying it by a scale factor gives the values returned by
+     * {@link #getTransformedWidth} and {@link #getTransformedHeight}.
+     *
+     * @param rotation the rotation angle of the sprite stack, in degrees
+     * @return the region of pixels making up the cached image
+     */
+    public PixelRegion getCachedRegion(double rotation) {
+        return getCachedAngle(getCacheIndex(rotation)).region;
+    }
+
+    /**
+     * Return the runs of visible pixels in each row of the region returned by
+     * {@link #getCachedRegion} for the same rotation.
+     *
+     * @param rotation the rotation angle of the sprite stack, in degrees
+     * @return the spans of the cached image
+     */
+    public SpanTable getCachedSpans(double rotation) {
+        return getCachedAngle(getCacheIndex(rotation)).spans;
+    }
+
+    /**
+     * Return the footprint of the bottom layer of this sprite stack at the
+     * cached angle nearest to the given rotation, at one bit per world unit.
+     *
+     * @param rotation the world rotation angle of the sprite stack, in degrees
+     * @return the collision mask of the sprite stack at the given rotation
+     */
+    public CollisionMask getCollisionMask(double rotation) {
+        int index = (int) Math.round(Vector2.normalizeAngle(rotation) / 360.0 * angleCount);
+        return collisionMasks[index % angleCount];
+    }
+
+    /**
+     * Return the average color of this sprite stack, drawn as a flat square
+     * at the {@link LevelOfDetail#IMPOSTOR impostor} level of detail.
+     *
+     * @return the opaque impostor color
+     */
+    public Color getImpostorColor() {
+        return impostorColor;
+    }
+
+    /**
+     * Return a single pixel of the impostor color, to be scaled to the size
+     * of the impostor when drawing without Java2D.
+     *
+     * @return a one-pixel region of the impostor color
+     */
+    public PixelRegion getImpostorRegion() {
+        return impostorRegion;
+    }
+
+    /**
+     * Return the spans of the region returned by {@link #getImpostorRegion}.
+     *
+     * @return the spans of the impostor pixel
+     */
+    public SpanTable getImpostorSpans() {
+        return impostorSpans;
+    }
+
+    /**
+     * Return the width and height of the impostor of this sprite stack at the
+     * given scale factor: the average size of a layer, at least one pixel.
+     *
+     * @param scale the scale factor of the sprite stack
+     * @return the side length of the impostor, in pixels
+     */
+    public int getImpostorSize(double scale) {
+        return Math.max(1, (int) Math.round((layerWidth + layerHeight) / 2.0 * scale));
+    }
+
+    /**
+     * Return the vertical offset from the location of this sprite stack to
+     * the center of its impostor at the given scale factor, which is halfway
+     * up the stack.
+     *
+     * @param scale the scale factor of the sprite stack
+     * @return the screen y offset of the impostor's center, negative for above
+     */
+    public int getImpostorOffsetY(double scale) {
+        return -(int) Math.round(layers.length * scale / 2.0);
+    }
+
+    /**
+     * Return the number of calls to {@link #getTransformedImage} that were
+     * answered from the scaled image cache while the {@link FrameProfiler}
+     * was enabled.
+     *
+     * @return the number of scaled image cache hits
+     */
+    public long getScaledCacheHits() {
+        return scaledCacheHits.get();
+    }
+
+    /**
+     * Return the number of calls to {@link #getTransformedImage} that had to
+     * create and scale a new image while the {@link FrameProfiler} was
+     * enabled.
+     *
+     * @return the number of scaled image cache misses
+     */
+    public long getScaledCacheMisses() {
+        return scaledCacheMisses.get();
+    }
+
+    /**
+     * Return the number of layers in the sprite stack of this SprackView.
+     *
+     * @return the number of layers
+     */
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    /**
+     * Return the pixels of the given unscaled layer of the sprite stack of
+     * this SprackView, for drawing the sprite stack without its image cache.
+     * The returned region is shared and must not be modified.
+     *
+     * @param layer the index of the layer, with 0 being the bottom layer
+     * @return the region of pixels making up the layer
+     */
+    public PixelRegion getLayerRegion(int layer) {
+        return layerRegions[layer];
+    }
+
+    /**
+     * Return the number of bytes of pixels held by the unscaled layers of
+     * this SprackView.
+     *
+     * @return the size of the layer images, in bytes
+     */
+    public long getLayerBytes() {
+        return (long) layerWidth * layerHeight * layers.length * 4;
+    }
+
+    /**
+     * Return the number of bytes held by the trimmed images and span tables
+     * of the angles cached by this SprackView so far, not counting the scaled
+     * image cache or space left unused by packing the atlas.
+     *
+     * @return the size of the cached angles, in bytes
+     */
+    public long getCacheBytes() {
+        long bytes = 0;
+        for (int i = 0; i < angleCount; i++) {
+            CachedAngle angle = angles.get(i);
+            if (angle != null) {
+                bytes += (long) angle.region.getWidth() * angle.region.getHeight() * 4 + angle.spans.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes that the angles cached by this SprackView so
+     * far would hold if their images were not trimmed, for comparison with
+     * {@link #getCacheBytes}.
+     *
+     * @return the size of the cached angles without trimming, in bytes
+     */
+    public long getUntrimmedCacheBytes() {
+        long bytes = 0;
+        for (int i = 0; i < angleCount; i++) {
+            if (angles.get(i) != null) {
+                bytes += (long) getRotatedLayerWidth(i) * getStackHeight(i) * 4;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of angles cached by this SprackView so far.
+     *
+     * @return the number of cached angles
+     */
+    public int getCachedAngleCount() {
+        int count = 0;
+        for (int i = 0; i < angleCount; i++) {
+            if (angles.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return a one-line summary of the angles cached by this SprackView so
+     * far and the number of bytes saved by trimming them.
+     *
+     * @return a description of the size of this view's cache
+     */
+    public String getCacheReport() {
+        long bytes = getCacheBytes();
+        long untrimmedBytes = getUntrimmedCacheBytes();
+        long saved = untrimmedBytes - bytes;
+        return String.format("%d/%d angles, %d bytes untrimmed, %d bytes trimmed with spans, %d bytes saved (%.1f%%)",
+                             getCachedAngleCount(), angleCount, untrimmedBytes, bytes, saved,
+                             untrimmedBytes == 0 ? 0.0 : 100.0 * saved / untrimmedBytes);
+    }
+
+    /**
+     * Return the total number of angles in the cache of this SprackView.
+     *
+     * @return the number of angles that can be cached
+     */
+    public int getAngleCount() {
+        return angleCount;
+    }
+
+    /**
+     * Return the scale factor of the images in the cache of this SprackView.
+     *
+     * @return the scale factor of cached images
+     */
+    public double getCacheScale() {
+        return cacheScale;
+    }
+
+    /**
+     * Return the atlas that the cached images of SprackViews without a
+     * manager are packed into unless they are given another. Managed views
+     * never add to it.
+     *
+     * @return the shared atlas
+     */
+    public static TextureAtlas getAtlas() {
+        return ATLAS;
+    }
+
+    /**
+     * Return the radius of a circle around the center of the bottom layer that
+     * contains the whole sprite stack at any rotation, in unscaled pixels.
+     * <p>
+     * Since sprite stacks are drawn with one unscaled pixel between layers,
+     * this is also the distance in world units within which the sprite stack
+     * can appear from its location.
+     *
+     * @return the bounding radius of the sprite stack, in unscaled pixels
+     */
+    public double getBoundingRadius() {
+        return Math.hypot(layerWidth, layerHeight) / 2.0 + layers.length;
+    }
+
     /**
      * Return the screen width of the sprite stack of this SprackView rotated
      * and scaled by the specified amounts.
@@ -133,7 +1118,7 @@ public class SprackView {
      * @return the width of the image that would be used if the same parameters were passed to {@link #getTransformedImage}
      */
     public int getTransformedWidth(double rotation, double scale) {
-        return (int) (rotCache[getCacheIndex(rotation)].getWidth() / IMAGE_CACHE_SCALE * scale);
+        return (int) (getCachedAngle(getCacheIndex(rotation)).region.getWidth() / cacheScale * scale);
     }
 
     /**
@@ -148,7 +1133,7 @@ public class SprackView {
      * @return the height of the image that would be used if the same parameters were passed to {@link #getTransformedImage}
      */
     public int getTransformedHeight(double rotation, double scale) {
-        return (int) (rotCache[getCacheIndex(rotation)].getHeight() / IMAGE_CACHE_SCALE * scale);
+        return (int) (getCachedAngle(getCacheIndex(rotation)).region.getHeight() / cacheScale * scale);
     }
 
     /**
@@ -162,7 +1147,7 @@ public class SprackView {
      * @return the screen x offset of the sprite stack's center, relative to the image that would be used if the same parameters were passed to {@link #getTransformedImage}
      */
     public int getCenterX(double rotation, double scale) {
-        return (int) (rotCacheCenterX[getCacheIndex(rotation)] / IMAGE_CACHE_SCALE * scale);
+        return (int) (getCachedAngle(getCacheIndex(rotation)).centerX / cacheScale * scale);
     }
 
     /**
@@ -177,6 +1162,6 @@ public class SprackView {
      * @return the screen y offset of the sprite stack's center, relative to the image that would be used if the same parameters were passed to {@link #getTransformedImage}
      */
     public int getCenterY(double rotation, double scale) {
-        return (int) (rotCacheCenterY[getCacheIndex(rotation)] / IMAGE_CACHE_SCALE * scale);
+        return (int) (getCachedAngle(getCacheIndex(rotation)).centerY / cacheScale * scale);
     }
 }
@@ -4,6 +4,9 @@ public abstract class Sprite {
     private double x;
     private double y;
     private GreenfootImage image;
+    /** The pixels of the image and their visible runs, read when the image is first drawn directly. */
+    private PixelRegion imageRegion;
+    private SpanTable imageSpans;
     private World world;
 
     public Sprite() {
@@ -13,8 +16,17 @@ public abstract class Sprite {
         world = null;
     }
 
+    /**
+     * Set the image of this sprite. The image is kept rather than copied, so
+     * one image can be shared by many sprites, and must not be changed while
+     * they are drawn with it.
+     *
+     * @param image the image to draw this sprite with
+     */
     public void setImage(GreenfootImage image) {
-        this.image = new GreenfootImage(image);
+        this.image = image;
+        imageRegion = null;
+        imageSpans = null;
     }
 
     public GreenfootImage getImage() {
@@ -26,10 +38,41 @@ public abstract class Sprite {
         this.y = y;
     }
 
+    public double getScreenX() {
+        return x;
+    }
+
+    public double getScreenY() {
+        return y;
+    }
+
     public void render(GreenfootImage canvas) {
         canvas.drawImage(image, (int) x - image.getWidth() / 2, (int) y - image.getHeight() / 2);
     }
 
+    /**
+     * Draw this sprite straight into the given pixels, such as those of a
+     * canvas {@link PixelRegion#wrap wrapped} once and reused every frame.
+     * Unlike drawing onto a GreenfootImage, this allocates nothing once the
+     * pixels of the image have been read on the first call.
+     *
+     * @param target the opaque pixels to draw into
+     */
+    public void render(PixelRegion target) {
+        if (imageRegion == null) {
+            imageRegion = PixelRegion.of(image);
+            imageSpans = SpanTable.of(imageRegion);
+        }
+        int width = imageRegion.getWidth();
+        int height = imageRegion.getHeight();
+        imageRegion.drawScaled(target, imageSpans, (int) x - width / 2, (int) y - height / 2, width, height);
+    }
+
+    /**
+     * Update the state of this sprite for one simulation tick. This runs on
+     * the simulation thread, possibly at the same time as the updates of other
+     * sprites, so it should only change the state of this sprite.
+     */
     public void update() {}
 
     public void setWorld(World world) {
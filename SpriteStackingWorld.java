@@ -1,48 +1,168 @@
 import greenfoot.*;
-import java.util.List;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 public class SpriteStackingWorld extends World {
-    private List<Sprite> sprites;
+    /** The file of crates to stream around the camera, written by {@link WorldGenerator#main}, if it exists. */
+    private static final Path STREAMED_WORLD = Paths.get("world.gfsw");
+    /** The size of the minimap in the top right corner of the world, and its zoom factor. */
+    private static final int MINIMAP_WIDTH = 150;
+    private static final int MINIMAP_HEIGHT = 100;
+    private static final double MINIMAP_ZOOM = 0.5;
+
+    private FramePipeline pipeline;
+    /** The camera that follows the player. */
+    private final Camera camera;
+    /** The minimap drawn over the main view, or null if it is hidden. */
+    private Viewport minimap;
+    /** The camera of the minimap, which stays north-up over the main camera. */
+    private final Camera minimapCamera;
+    /** The loader of the static spracks of the streamed world, or null if there is none. */
+    private WorldStreamer streamer;
+    /** The recording of every frame's input since the world was created, or null if this world is not recorded. */
+    private InputRecorder recorder;
 
     public SpriteStackingWorld() {
-        super(600, 400, 1, false);
+        this(false);
+    }
 
-        Camera.resetTo(0, 0, 0, 3);
-        Camera.setCloseness(0.2);
+    /**
+     * Create a new world, optionally recording every frame's input so that
+     * the session can be saved and replayed by {@link ReplayRunner}.
+     * Recordings grow by a frame for every frame drawn, so worlds are only
+     * recorded when asked to.
+     *
+     * @param record whether to record the input of every frame
+     */
+    public SpriteStackingWorld(boolean record) {
+        super(600, 400, 1, false);
 
-        sprites = new ArrayList<>();
-        addObject(new Player(), 0, 0);
-        for (int i = 0; i < 100; i++) {
-            addObject(new Crate(), Greenfoot.getRandomNumber(1000) - 500, Greenfoot.getRandomNumber(1000) - 500);
+        // Start loading every sheet of the world, which is drawn with placeholders until they are ready
+        CompletableFuture<Void> sheets = Sprack.getAssets().load(WorldGenerator.SHEETS);
+        if (record) {
+            // Placeholders are swapped out whenever loading finishes, which a replay could not reproduce
+            sheets.join();
         }
+        WorldGenerator generator = new WorldGenerator(WorldGenerator.DEFAULT_SEED);
+        camera = new Camera();
+        minimapCamera = new Camera();
+        pipeline = new FramePipeline(camera, () -> {
+            tick(camera);
+            minimapCamera.targetLocation(camera.getX(), camera.getY());
+        });
+        if (Files.isRegularFile(STREAMED_WORLD)) {
+            try {
+                streamer = new WorldStreamer(WorldFile.open(STREAMED_WORLD), WorldGenerator::createStatic);
+                // Recorded chunks must be added in the same frames as when they are replayed
+                streamer.setSynchronous(record);
+                pipeline.setStreamer(streamer);
+            } catch (IOException e) {
+                System.err.println("Could not open streamed world: " + e);
+            }
+        }
+        if (record) {
+            // Record input from the start so that the session can be replayed from the generated world
+            recorder = new InputRecorder(new LiveInput(),
+                                         new InputTrace(generator.getSeed(), streamer != null ? STREAMED_WORLD : null));
+            pipeline.setInputSource(recorder);
+        } else {
+            pipeline.setInputSource(new LiveInput());
+        }
+        generator.generate(camera, this::addObject);
+        minimapCamera.resetTo(camera.getX(), camera.getY(), 0, MINIMAP_ZOOM);
 
-        render();
+        pipeline.frame(getBackground());
     }
 
     public void act() {
-        if (Greenfoot.isKeyDown("w")) {
-            Camera.setZoom(Camera.getZoom() * 1.01);
+        pipeline.frame(getBackground());
+        if (FrameProfiler.isEnabled()) {
+            FrameProfiler.drawOverlay(getBackground());
         }
-        if (Greenfoot.isKeyDown("s")) {
-            Camera.setZoom(Camera.getZoom() * 0.99);
+
+        // Keys typed before this frame take effect from the next one
+        String key = pipeline.getFrameInput().getKey();
+        if ("p".equals(key)) {
+            // Toggle the profiler overlay, saving the recorded frames when it is turned off
+            if (FrameProfiler.isEnabled()) {
+                FrameProfiler.setEnabled(false);
+                try {
+                    FrameProfiler.writeCsv(Paths.get("profile.csv"));
+                } catch (IOException e) {
+                    System.err.println("Could not write profile: " + e);
+                }
+            } else {
+                FrameProfiler.setEnabled(true);
+            }
+        }
+        if ("t".equals(key)) {
+            if (recorder != null) {
+                // Save the session so far, to be replayed by ReplayRunner, and stop recording
+                try {
+                    recorder.getTrace().save(Paths.get("session.trace"));
+                } catch (IOException e) {
+                    System.err.println("Could not write input trace: " + e);
+                }
+                recorder = null;
+                pipeline.setInputSource(new LiveInput());
+                if (streamer != null) {
+                    streamer.setSynchronous(false);
+                }
+            } else {
+                // Replays start from a newly generated world, so start over with a recorded one
+                Greenfoot.setWorld(new SpriteStackingWorld(true));
+            }
+        }
+        if ("r".equals(key)) {
+            // Cycle between drawing through Greenfoot, compositing cached
+            // images directly, and rasterizing layers directly
+            FrameRenderer renderer = pipeline.getRenderer();
+            if (renderer instanceof RasterRenderer) {
+                pipeline.setRenderer(new GreenfootRenderer());
+            } else if (renderer instanceof FramebufferRenderer) {
+                pipeline.setRenderer(new RasterRenderer());
+            } else {
+                pipeline.setRenderer(new FramebufferRenderer());
+            }
+        }
+        if ("m".equals(key)) {
+            // Toggle the minimap, drawn at the same time as the main view
+            if (minimap == null) {
+                minimap = new Viewport(minimapCamera, new FramebufferRenderer(),
+                                       getWidth() - MINIMAP_WIDTH - 10, 10, MINIMAP_WIDTH, MINIMAP_HEIGHT);
+                pipeline.addViewport(minimap);
+            } else {
+                pipeline.removeViewport(minimap);
+                minimap = null;
+            }
         }
-        render();
     }
 
-    private void render() {
-        GreenfootImage background = getBackground();
-        background.setColor(new Color(56, 56, 56));
-        background.fill();
-        for (Sprite sprite : sprites) {
-            sprite.update();
-            sprite.render(background);
+    public void started() {
+        pipeline.resetClock();
+    }
+
+    /**
+     * Update world state once per simulation tick. This runs on the
+     * simulation thread, before sprites are updated, and is also run by
+     * {@link ReplayRunner} when replaying a session without a world.
+     *
+     * @param camera the camera that follows the player
+     */
+    public static void tick(Camera camera) {
+        if (Input.isKeyDown("w")) {
+            camera.setZoom(camera.getZoom() * 1.01);
+        }
+        if (Input.isKeyDown("s")) {
+            camera.setZoom(camera.getZoom() * 0.99);
         }
     }
 
     public void addObject(Sprack sprack, double x, double y) {
-        sprites.add(sprack);
-        sprack.setWorldLocation(x, y);
+        pipeline.add(sprack, x, y);
         sprack.setWorld(this);
         sprack.addedToWorld(this);
     }
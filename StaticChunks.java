@@ -0,0 +1,515 @@
+import greenfoot.*;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The spracks that never move, grouped into square chunks of world, with the
+ * spracks of each chunk composited into a single tile image.
+ * <p>
+ * A tile is composited for one of the camera rotations that the views of the
+ * static spracks have cached angles for, which the camera is
+ * {@link #snapRotation snapped} to while tiles are drawn, and for a zoom
+ * bucket. Once the zoom factor holds steady, tiles are composited again at the
+ * exact zoom factor, so that they are drawn without resampling. While it
+ * changes, tiles are scaled by the difference instead. Tiles are kept in a
+ * least-recently-used cache with a memory budget, so drawing the static
+ * spracks on the screen costs a handful of tile draws, however many spracks
+ * there are. The tiles can be charged to a {@link ViewCacheManager}, so that
+ * they count towards the same budget as the images of views.
+ * <p>
+ * Only the spracks whose images stay within their chunk are composited, so
+ * tiles never overlap each other. Spracks on the borders of chunks, and the
+ * spracks of chunks whose tiles would be larger than {@link #MAX_TILE_SIZE},
+ * which happens when zoomed far in, are drawn individually instead, in depth
+ * order with the moving spracks.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class StaticChunks {
+    /** The width and height of a chunk, in world units. */
+    public static final double CHUNK_SIZE = 128.0;
+    /** The largest width or height of a tile, in pixels. */
+    public static final int MAX_TILE_SIZE = 1024;
+    /** The default total size of the tiles kept in the tile cache, in bytes. */
+    public static final long DEFAULT_TILE_BUDGET = 64L << 20;
+    /** The fraction of a view cache manager's budget that tiles charged to it may hold. */
+    private static final double MANAGED_TILE_SHARE = 0.25;
+    /** The maximum number of tiles kept in the tile cache. */
+    private static final int TILE_CACHE_CAPACITY = 4096;
+    /** The width and height of a cell of the spatial index, in world units. */
+    private static final double GRID_CELL_SIZE = 64.0;
+    /** The number of buckets in the spatial index. */
+    private static final int GRID_BUCKET_COUNT = 4096;
+
+    private static final Comparator<Sprack> BY_DEPTH = new Comparator<Sprack>() {
+        @Override
+        public int compare(Sprack a, Sprack b) {
+            return Double.compare(a.getScreenY(), b.getScreenY());
+        }
+    };
+
+    /**
+     * A chunk of world and the static spracks located within it.
+     */
+    private static class Chunk {
+        /**
+         * The number of this chunk's current contents, unique within its
+         * StaticChunks, which changes whenever the chunk's spracks change so
+         * that tiles of its old contents are never found in the tile cache.
+         */
+        private int id;
+        private final int cellX;
+        private final int cellY;
+        /** The world location of the center of this chunk, which tiles are drawn relative to. */
+        private final double anchorX;
+        private final double anchorY;
+        /** The spracks whose images lie within this chunk, which are composited into its tiles. */
+        private final List<Sprack> spracks;
+        /** The spracks whose images may reach into neighbouring chunks, which are always drawn individually. */
+        private final List<Sprack> borderSpracks;
+
+        Chunk(int id, int cellX, int cellY) {
+            this.id = id;
+            this.cellX = cellX;
+            this.cellY = cellY;
+            anchorX = (cellX + 0.5) * CHUNK_SIZE;
+            anchorY = (cellY + 0.5) * CHUNK_SIZE;
+            spracks = new ArrayList<>();
+            borderSpracks = new ArrayList<>();
+        }
+
+        /**
+         * Return the list of this chunk's spracks that the given sprack
+         * belongs in, by whether its image may reach past the chunk.
+         */
+        List<Sprack> getList(Sprack sprack) {
+            double radius = sprack.getBoundingRadius();
+            double left = cellX * CHUNK_SIZE;
+            double top = cellY * CHUNK_SIZE;
+            double x = sprack.getWorldX();
+            double y = sprack.getWorldY();
+            if (x - radius < left || x + radius > left + CHUNK_SIZE || y - radius < top || y + radius > top + CHUNK_SIZE) {
+                return borderSpracks;
+            }
+            return spracks;
+        }
+    }
+
+    /**
+     * The spracks of a chunk composited at one rotation and zoom bucket.
+     */
+    private static class Tile {
+        /** The composited spracks, or null if the tile would be empty or too large. */
+        private final GreenfootImage image;
+        /** The position of the top left corner of the image relative to the chunk's anchor, in pixels. */
+        private final int originX;
+        private final int originY;
+        /** Whether the chunk's spracks must be drawn individually because the tile would be too large. */
+        private final boolean oversized;
+        /** The exact scale factor that the spracks were composited at. */
+        private final double scale;
+
+        Tile(GreenfootImage image, int originX, int originY, boolean oversized, double scale) {
+            this.image = image;
+            this.originX = originX;
+            this.originY = originY;
+            this.oversized = oversized;
+            this.scale = scale;
+        }
+    }
+
+    /** Every chunk with at least one sprack, keyed by cell. */
+    private final Map<Long, Chunk> chunks;
+    private final List<Chunk> chunkList;
+    /** Spatial index of every static sprack. */
+    private final SpatialGrid grid;
+    private final LruCache<Tile> tiles;
+    /** The manager that tiles are charged to, or null if they are not. */
+    private final ViewCacheManager manager;
+    /** The byte count that tiles are charged to the manager through, or null if they are not. */
+    private final AtomicLong tileCharge;
+    /** The largest bounding radius of any static sprack, in world units. */
+    private double maxRadius;
+    /** The number to give to the next chunk whose contents change. */
+    private int nextChunkId;
+    /** The number of camera rotations that tiles are composited for, the most angles of any static sprack's view. */
+    private int rotationBuckets;
+    /** The scale factor of the last frame, to tell when the zoom factor holds steady. */
+    private double lastScale;
+
+    /** The tiles to draw in the current frame, which never overlap. */
+    private Tile[] visibleTiles;
+    /** The screen location of the anchor of the chunk of each visible tile. */
+    private double[] tileScreenX;
+    private double[] tileScreenY;
+    private int visibleTileCount;
+    /** The transforms to draw visible tiles with, reused between frames. */
+    private AffineTransform[] tileTransforms;
+    /** Space for sorting the spracks of a chunk when compositing it. */
+    private Sprack[] sortScratch;
+
+    /**
+     * Create a new empty set of chunks with the default tile budget.
+     */
+    public StaticChunks() {
+        this(DEFAULT_TILE_BUDGET);
+    }
+
+    /**
+     * Create a new empty set of chunks.
+     *
+     * @param tileBudget the maximum total size of cached tiles, in bytes
+     */
+    public StaticChunks(long tileBudget) {
+        this(tileBudget, null);
+    }
+
+    /**
+     * Create a new empty set of chunks whose tiles are charged to the budget
+     * of the given manager, and may hold up to {@link #MANAGED_TILE_SHARE}
+     * of it.
+     *
+     * @param manager the manager to charge tiles to
+     */
+    public StaticChunks(ViewCacheManager manager) {
+        this(Math.max(1, (long) (manager.getBudget() * MANAGED_TILE_SHARE)), manager);
+    }
+
+    private StaticChunks(long tileBudget, ViewCacheManager manager) {
+        this.manager = manager;
+        tileCharge = manager == null ? null : manager.newCharge();
+        chunks = new HashMap<>();
+        chunkList = new ArrayList<>();
+        grid = new SpatialGrid(GRID_CELL_SIZE, GRID_BUCKET_COUNT);
+        tiles = new LruCache<>(TILE_CACHE_CAPACITY, tileBudget);
+        visibleTiles = new Tile[0];
+        tileScreenX = new double[0];
+        tileScreenY = new double[0];
+        tileTransforms = new AffineTransform[0];
+        sortScratch = new Sprack[0];
+    }
+
+    private static int getCell(double coordinate) {
+        return (int) Math.floor(coordinate / CHUNK_SIZE);
+    }
+
+    /**
+     * Add a static sprack at its current world location. The sprack must not
+     * move or rotate afterwards, since the tiles of its chunk would not be
+     * updated.
+     *
+     * @param sprack the sprack to add
+     */
+    public void add(Sprack sprack) {
+        int cellX = getCell(sprack.getWorldX());
+        int cellY = getCell(sprack.getWorldY());
+        long key = SpatialGrid.getCellKey(cellX, cellY);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk(nextChunkId++, cellX, cellY);
+            chunks.put(key, chunk);
+            chunkList.add(chunk);
+        } else {
+            // Cached tiles of the chunk no longer show all of its spracks
+            chunk.id = nextChunkId++;
+        }
+        chunk.getList(sprack).add(sprack);
+        maxRadius = Math.max(maxRadius, sprack.getBoundingRadius());
+        int angleCount = sprack.getView().getAngleCount();
+        if (angleCount > rotationBuckets) {
+            // Cached tiles were composited for rotations that are no longer buckets
+            rotationBuckets = angleCount;
+            tiles.clear();
+            if (manager != null) {
+                manager.charge(tileCharge, 0);
+            }
+        }
+        grid.add(sprack);
+        sprack.setSpatialGrid(grid);
+    }
+
+    /**
+     * Remove a static sprack. Removing the spracks of a chunk in the reverse
+     * of the order they were added in takes constant time per sprack.
+     *
+     * @param sprack the sprack to remove
+     */
+    public void remove(Sprack sprack) {
+        long key = SpatialGrid.getCellKey(getCell(sprack.getWorldX()), getCell(sprack.getWorldY()));
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            return;
+        }
+        List<Sprack> spracks = chunk.getList(sprack);
+        int index = spracks.lastIndexOf(sprack);
+        if (index < 0) {
+            return;
+        }
+        // Order within a chunk does not matter, so fill the gap with the last element
+        int last = spracks.size() - 1;
+        spracks.set(index, spracks.get(last));
+        spracks.remove(last);
+        grid.remove(sprack, sprack.getWorldX(), sprack.getWorldY());
+        sprack.setSpatialGrid(null);
+        if (chunk.spracks.isEmpty() && chunk.borderSpracks.isEmpty()) {
+            chunks.remove(key);
+            chunkList.remove(chunk);
+        } else {
+            chunk.id = nextChunkId++;
+        }
+    }
+
+    /**
+     * Add every static sprack whose bounds may intersect the given rectangle
+     * to the given list. Each sprack is added at most once.
+     *
+     * @param minX the left edge of the rectangle, in world units
+     * @param minY the top edge of the rectangle, in world units
+     * @param maxX the right edge of the rectangle, in world units
+     * @param maxY the bottom edge of the rectangle, in world units
+     * @param result the list to add found spracks to
+     */
+    public void query(double minX, double minY, double maxX, double maxY, List<Sprack> result) {
+        grid.query(minX, minY, maxX, maxY, result);
+    }
+
+    /**
+     * Return the given camera rotation rounded to the nearest rotation that
+     * tiles are composited for. These are evenly spaced by the angle step of
+     * the view of a static sprack with the most cached angles. A frame drawn
+     * from tiles with its camera rotation snapped by this draws them without
+     * rotating them.
+     *
+     * @param rotation the rotation of the camera, in degrees
+     * @return the nearest rotation of tiles, in degrees, or the given rotation if there are no static spracks
+     */
+    public double snapRotation(double rotation) {
+        if (rotationBuckets == 0) {
+            return rotation;
+        }
+        return 360.0 * getRotationBucket(rotation) / rotationBuckets;
+    }
+
+    private int getRotationBucket(double rotation) {
+        return Math.floorMod((int) Math.round(rotation / 360.0 * rotationBuckets), rotationBuckets);
+    }
+
+    /**
+     * Find the tiles to draw in a frame covering the given rectangle of
+     * world, compositing any that are not cached, and compute the transforms
+     * to draw them with. The spracks on the borders of visible chunks, and
+     * the spracks of visible chunks that are too large to tile, are added to
+     * the given list to be drawn individually.
+     * <p>
+     * Compositing a tile sets the screen state of its spracks, so this must
+     * run before the screen states of the frame's spracks are set.
+     *
+     * @param transform the world to screen transform of the frame
+     * @param minX the left edge of the visible rectangle, in world units
+     * @param minY the top edge of the visible rectangle, in world units
+     * @param maxX the right edge of the visible rectangle, in world units
+     * @param maxY the bottom edge of the visible rectangle, in world units
+     * @param untiled the list to add the spracks of visible chunks that are not tiled to
+     */
+    public void prepareTiles(ScreenTransform transform, double minX, double minY, double maxX, double maxY, List<Sprack> untiled) {
+        visibleTileCount = 0;
+        double scale = transform.getScale();
+        boolean steady = scale == lastScale;
+        lastScale = scale;
+        if (scale <= 0.0 || chunkList.isEmpty()) {
+            return;
+        }
+        int rotationBucket = getRotationBucket(transform.getRotation());
+        double rotation = 360.0 * rotationBucket / rotationBuckets;
+        int zoomBucket = SprackView.getZoomBucket(scale);
+
+        // A chunk's spracks lie within its cell, but their images reach past it
+        int minCellX = getCell(minX - maxRadius);
+        int minCellY = getCell(minY - maxRadius);
+        int maxCellX = getCell(maxX + maxRadius);
+        int maxCellY = getCell(maxY + maxRadius);
+        if ((double) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) >= chunkList.size()) {
+            // Looking up every cell would take longer than checking every chunk
+            for (int i = 0; i < chunkList.size(); i++) {
+                Chunk chunk = chunkList.get(i);
+                if (chunk.cellX >= minCellX && chunk.cellX <= maxCellX && chunk.cellY >= minCellY && chunk.cellY <= maxCellY) {
+                    prepareChunk(chunk, transform, rotationBucket, rotation, zoomBucket, steady, untiled);
+                }
+            }
+        } else {
+            for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                    Chunk chunk = chunks.get(SpatialGrid.getCellKey(cellX, cellY));
+                    if (chunk != null) {
+                        prepareChunk(chunk, transform, rotationBucket, rotation, zoomBucket, steady, untiled);
+                    }
+                }
+            }
+        }
+
+        // Tiles never overlap, so they can be drawn in any order. A tile
+        // composited at the exact scale is only moved, by whole pixels as its
+        // spracks would be, and any other is scaled by the difference.
+        double residualRotation = Math.toRadians(rotation - transform.getRotation());
+        for (int i = 0; i < visibleTileCount; i++) {
+            Tile tile = visibleTiles[i];
+            AffineTransform tileTransform = tileTransforms[i];
+            if (tile.scale == scale && residualRotation == 0.0) {
+                tileTransform.setToTranslation((int) tileScreenX[i] + tile.originX, (int) tileScreenY[i] + tile.originY);
+                continue;
+            }
+            double residualScale = scale / tile.scale;
+            tileTransform.setToTranslation(tileScreenX[i], tileScreenY[i]);
+            tileTransform.rotate(residualRotation);
+            tileTransform.scale(residualScale, residualScale);
+            tileTransform.translate(tile.originX, tile.originY);
+        }
+        FrameProfiler.count(FrameProfiler.Counter.TILES_DRAWN, visibleTileCount);
+    }
+
+    /**
+     * Add the tile of the given chunk at the given buckets to the visible
+     * tiles, compositing it if it is not cached, or if the zoom factor holds
+     * steady at another scale than the cached tile's. The chunk's border
+     * spracks are added to the untiled list, as are all of its spracks if it
+     * is too large to tile.
+     */
+    private void prepareChunk(Chunk chunk, ScreenTransform transform, int rotationBucket, double rotation,
+                              int zoomBucket, boolean steady, List<Sprack> untiled) {
+        untiled.addAll(chunk.borderSpracks);
+        long key = ((long) chunk.id << 32) | ((long) rotationBucket << 16) | (zoomBucket & 0xFFFF);
+        Tile tile = tiles.get(key);
+        if (tile == null || (steady && tile.scale != transform.getScale())) {
+            tile = composite(chunk, rotation, transform.getScale(), transform.getImageScale());
+            tiles.put(key, tile, tile.image == null ? 0 : 4L * tile.image.getWidth() * tile.image.getHeight());
+            if (manager != null) {
+                manager.charge(tileCharge, tiles.getWeight());
+            }
+        }
+        if (tile.oversized) {
+            untiled.addAll(chunk.spracks);
+            return;
+        }
+        if (tile.image == null) {
+            return;
+        }
+        if (visibleTileCount == visibleTiles.length) {
+            int capacity = Math.max(16, visibleTileCount * 2);
+            visibleTiles = Arrays.copyOf(visibleTiles, capacity);
+            tileScreenX = Arrays.copyOf(tileScreenX, capacity);
+            tileScreenY = Arrays.copyOf(tileScreenY, capacity);
+            tileTransforms = Arrays.copyOf(tileTransforms, capacity);
+            for (int i = visibleTileCount; i < capacity; i++) {
+                tileTransforms[i] = new AffineTransform();
+            }
+        }
+        visibleTiles[visibleTileCount] = tile;
+        tileScreenX[visibleTileCount] = transform.getScreenX(chunk.anchorX, chunk.anchorY);
+        tileScreenY[visibleTileCount] = transform.getScreenY(chunk.anchorX, chunk.anchorY);
+        visibleTileCount++;
+    }
+
+    /**
+     * Composite the interior spracks of the given chunk as seen by a camera
+     * with the given rotation and scale factor, relative to the chunk's
+     * anchor, drawing their images at the given quantized scale factor as
+     * they would be when drawn individually.
+     */
+    private Tile composite(Chunk chunk, double rotation, double scale, double imageScale) {
+        FrameProfiler.count(FrameProfiler.Counter.TILES_COMPOSITED, 1);
+        double rad = Math.toRadians(-rotation);
+        double cos = Math.cos(rad) * scale;
+        double sin = Math.sin(rad) * scale;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        List<Sprack> spracks = chunk.spracks;
+        for (int i = 0; i < spracks.size(); i++) {
+            Sprack sprack = spracks.get(i);
+            double x = sprack.getWorldX() - chunk.anchorX;
+            double y = sprack.getWorldY() - chunk.anchorY;
+            sprack.setScreenState(cos * x - sin * y, sin * x + cos * y, sprack.getSpriteRotation() - rotation, scale, imageScale);
+            if (sprack.getDrawWidth() <= 0 || sprack.getDrawHeight() <= 0) {
+                continue;
+            }
+            minX = Math.min(minX, sprack.getDrawX());
+            minY = Math.min(minY, sprack.getDrawY());
+            maxX = Math.max(maxX, sprack.getDrawX() + sprack.getDrawWidth());
+            maxY = Math.max(maxY, sprack.getDrawY() + sprack.getDrawHeight());
+        }
+        if (minX >= maxX || minY >= maxY) {
+            return new Tile(null, 0, 0, false, scale);
+        }
+        if (maxX - minX > MAX_TILE_SIZE || maxY - minY > MAX_TILE_SIZE) {
+            return new Tile(null, 0, 0, true, scale);
+        }
+
+        if (sortScratch.length < spracks.size()) {
+            sortScratch = new Sprack[Math.max(spracks.size(), sortScratch.length * 2)];
+        }
+        Sprack[] order = spracks.toArray(sortScratch);
+        Arrays.sort(order, 0, spracks.size(), BY_DEPTH);
+        GreenfootImage image = new GreenfootImage(maxX - minX, maxY - minY);
+        for (int i = 0; i < spracks.size(); i++) {
+            order[i].render(image, -minX, -minY);
+            order[i] = null;
+        }
+        return new Tile(image, minX, minY, false, scale);
+    }
+
+    /**
+     * Return the number of tiles to draw in the current frame.
+     *
+     * @return the number of visible tiles
+     */
+    public int getVisibleTileCount() {
+        return visibleTileCount;
+    }
+
+    /**
+     * Return the image of a tile to draw in the current frame.
+     *
+     * @param index the index of the tile, less than {@link #getVisibleTileCount}
+     * @return the composited image of the tile
+     */
+    public GreenfootImage getVisibleTileImage(int index) {
+        return visibleTiles[index].image;
+    }
+
+    /**
+     * Return the transform from the image of a tile to draw in the current
+     * frame to the screen. The transform is reused between frames.
+     *
+     * @param index the index of the tile, less than {@link #getVisibleTileCount}
+     * @return the transform to draw the tile with
+     */
+    public AffineTransform getVisibleTileTransform(int index) {
+        return tileTransforms[index];
+    }
+
+    /**
+     * Return the number of bytes of pixels held by cached tiles.
+     *
+     * @return the total size of cached tiles, in bytes
+     */
+    public long getTileBytes() {
+        return tiles.getWeight();
+    }
+
+    /**
+     * Return the number of static spracks.
+     *
+     * @return the number of spracks in every chunk
+     */
+    public int size() {
+        return grid.size();
+    }
+}
@@ -0,0 +1,367 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collision detection between spracks: a sweep-and-prune broadphase over the
+ * world bounds of their collision masks, followed by a pixel-accurate test of
+ * the masks of each pair whose bounds overlap.
+ * <p>
+ * Every sprack's bounds are kept in one array sorted by their left edges.
+ * {@link Sprack#isStatic Static} spracks never move, so only moving spracks
+ * have their bounds updated, and each is moved through the array by swapping
+ * it with its neighbours until the order is restored, which costs little
+ * since spracks move only a short distance per tick. Candidate pairs are then
+ * found by sweeping outwards from each moving sprack along the array only as
+ * far as bounds can still overlap, so pairs of static spracks are never
+ * visited and the cost per tick depends on the number of moving spracks and
+ * their neighbours rather than on the size of the world. Spracks added in
+ * batches, as when the chunks of a streamed world load, are merged into the
+ * array in a single pass, and removed spracks leave empty slots behind that
+ * are compacted away together once there are many of them.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class SweepAndPrune {
+    /** The spracks in order of the left edges of their bounds. */
+    private Sprack[] entries;
+    /** The collision masks of the spracks, in the same order. */
+    private CollisionMask[] masks;
+    /** The world bounds of the masks of the spracks, in the same order, right and bottom exclusive. */
+    private int[] minX;
+    private int[] minY;
+    private int[] maxX;
+    private int[] maxY;
+    private boolean[] isStatic;
+    private int size;
+    /** The number of slots left by removed spracks, which are skipped until they are compacted away. */
+    private int removedCount;
+    /** The widest bounds of any sprack, which limits how far back a sweep must look. */
+    private int maxWidth;
+
+    /** The moving spracks, whose bounds are updated every time collisions are detected. */
+    private final List<Sprack> moving;
+
+    /**
+     * Create a new broadphase with no spracks.
+     */
+    public SweepAndPrune() {
+        entries = new Sprack[0];
+        masks = new CollisionMask[0];
+        minX = new int[0];
+        minY = new int[0];
+        maxX = new int[0];
+        maxY = new int[0];
+        isStatic = new boolean[0];
+        moving = new ArrayList<>();
+    }
+
+    /**
+     * Add a sprack at its current world location and rotation.
+     *
+     * @param sprack the sprack to add
+     */
+    public void add(Sprack sprack) {
+        ensureCapacity(size + 1);
+        int slot = size++;
+        entries[slot] = sprack;
+        isStatic[slot] = sprack.isStatic();
+        sprack.setCollisionSlot(slot);
+        updateBounds(slot);
+        restoreOrder(slot);
+        if (!sprack.isStatic()) {
+            moving.add(sprack);
+        }
+    }
+
+    /**
+     * Add several spracks at their current world locations and rotations.
+     * This merges the spracks into the sorted array in one pass, shifting
+     * the entries between them in blocks, so it costs far less than adding
+     * them one at a time.
+     *
+     * @param added the spracks to add
+     */
+    public void addAll(List<Sprack> added) {
+        int count = added.size();
+        if (count == 0) {
+            return;
+        }
+        // Compute the bounds of the new spracks past the end of the array, then sort them by left edge
+        int start = size + count;
+        ensureCapacity(start + count);
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            entries[start + i] = added.get(i);
+            isStatic[start + i] = added.get(i).isStatic();
+            updateBounds(start + i);
+            order[i] = ((long) minX[start + i] << 32) | i;
+        }
+        Arrays.sort(order);
+        // Merge from the back, into slots below the new spracks, so that no entry is overwritten before it is moved
+        int old = size;
+        int slot = start;
+        for (int next = count - 1; next >= 0; next--) {
+            int from = start + (int) order[next];
+            int insert = findAfter(minX[from], old);
+            copy(insert, slot - (old - insert), old - insert);
+            slot -= old - insert;
+            old = insert;
+            copy(from, --slot, 1);
+        }
+        for (int i = start; i < start + count; i++) {
+            entries[i] = null;
+            masks[i] = null;
+        }
+        size += count;
+        for (int i = 0; i < count; i++) {
+            if (!added.get(i).isStatic()) {
+                moving.add(added.get(i));
+            }
+        }
+        updateMovingSlots();
+    }
+
+    /**
+     * Remove several spracks. Their slots are left in the array, with bounds
+     * that overlap nothing, until removed slots make up half of the array,
+     * when they are compacted away in one pass.
+     *
+     * @param removed the spracks to remove
+     */
+    public void removeAll(List<Sprack> removed) {
+        for (int i = 0; i < removed.size(); i++) {
+            Sprack sprack = removed.get(i);
+            int slot = findSlot(sprack);
+            if (slot < 0) {
+                continue;
+            }
+            entries[slot] = null;
+            masks[slot] = null;
+            // Keep the left edge so the array stays sorted, but fail every vertical overlap test
+            minY[slot] = Integer.MAX_VALUE;
+            maxY[slot] = Integer.MIN_VALUE;
+            isStatic[slot] = true;
+            removedCount++;
+            if (!sprack.isStatic()) {
+                moving.remove(sprack);
+            }
+        }
+        if (removedCount * 2 > size) {
+            compact();
+        }
+    }
+
+    /**
+     * Return the slot of the given sprack, or -1 if it is not in the array.
+     * Batches move static spracks without telling them, but their bounds
+     * never change, so they are found by searching for their left edge.
+     */
+    private int findSlot(Sprack sprack) {
+        if (!sprack.isStatic()) {
+            int slot = sprack.getCollisionSlot();
+            return slot >= 0 && slot < size && entries[slot] == sprack ? slot : -1;
+        }
+        CollisionMask mask = sprack.getCollisionMask();
+        int left = (int) Math.round(sprack.getWorldX()) + mask.getOffsetX();
+        for (int slot = findAfter(left - 1, size); slot < size && minX[slot] == left; slot++) {
+            if (entries[slot] == sprack) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the first of the given number of slots whose left edge is
+     * greater than the given position, or the number of slots if there is
+     * none.
+     */
+    private int findAfter(int position, int end) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (minX[middle] > position) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Remove the slots of removed spracks from the array.
+     */
+    private void compact() {
+        int kept = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (entries[slot] != null) {
+                copy(slot, kept++, 1);
+            }
+        }
+        for (int slot = kept; slot < size; slot++) {
+            entries[slot] = null;
+            masks[slot] = null;
+        }
+        size = kept;
+        removedCount = 0;
+        updateMovingSlots();
+    }
+
+    /**
+     * Copy a run of slots to another position, which may overlap it.
+     */
+    private void copy(int from, int to, int length) {
+        if (from == to || length == 0) {
+            return;
+        }
+        System.arraycopy(entries, from, entries, to, length);
+        System.arraycopy(masks, from, masks, to, length);
+        System.arraycopy(minX, from, minX, to, length);
+        System.arraycopy(minY, from, minY, to, length);
+        System.arraycopy(maxX, from, maxX, to, length);
+        System.arraycopy(maxY, from, maxY, to, length);
+        System.arraycopy(isStatic, from, isStatic, to, length);
+    }
+
+    /**
+     * Tell every moving sprack its slot again after slots were copied.
+     */
+    private void updateMovingSlots() {
+        for (int slot = 0; slot < size; slot++) {
+            if (!isStatic[slot]) {
+                entries[slot].setCollisionSlot(slot);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > entries.length) {
+            capacity = Math.max(capacity, Math.max(16, entries.length * 2));
+            entries = Arrays.copyOf(entries, capacity);
+            masks = Arrays.copyOf(masks, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            isStatic = Arrays.copyOf(isStatic, capacity);
+        }
+    }
+
+    /**
+     * Return the number of spracks tested for collisions.
+     *
+     * @return the number of spracks
+     */
+    public int size() {
+        return size - removedCount;
+    }
+
+    /**
+     * Recompute the collision mask and bounds of the sprack in the given slot
+     * from its current location and rotation.
+     */
+    private void updateBounds(int slot) {
+        Sprack sprack = entries[slot];
+        CollisionMask mask = sprack.getCollisionMask();
+        masks[slot] = mask;
+        minX[slot] = (int) Math.round(sprack.getWorldX()) + mask.getOffsetX();
+        minY[slot] = (int) Math.round(sprack.getWorldY()) + mask.getOffsetY();
+        maxX[slot] = minX[slot] + mask.getWidth();
+        maxY[slot] = minY[slot] + mask.getHeight();
+        maxWidth = Math.max(maxWidth, mask.getWidth());
+    }
+
+    /**
+     * Move the sprack in the given slot through the array until the bounds
+     * are sorted by their left edges again.
+     */
+    private void restoreOrder(int slot) {
+        while (slot > 0 && minX[slot - 1] > minX[slot]) {
+            swap(slot - 1, slot);
+            slot--;
+        }
+        while (slot < size - 1 && minX[slot + 1] < minX[slot]) {
+            swap(slot, slot + 1);
+            slot++;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Sprack sprack = entries[i];
+        entries[i] = entries[j];
+        entries[j] = sprack;
+        CollisionMask mask = masks[i];
+        masks[i] = masks[j];
+        masks[j] = mask;
+        int swap = minX[i];
+        minX[i] = minX[j];
+        minX[j] = swap;
+        swap = minY[i];
+        minY[i] = minY[j];
+        minY[j] = swap;
+        swap = maxX[i];
+        maxX[i] = maxX[j];
+        maxX[j] = swap;
+        swap = maxY[i];
+        maxY[i] = maxY[j];
+        maxY[j] = swap;
+        boolean swapStatic = isStatic[i];
+        isStatic[i] = isStatic[j];
+        isStatic[j] = swapStatic;
+        if (entries[i] != null) {
+            entries[i].setCollisionSlot(i);
+        }
+        if (entries[j] != null) {
+            entries[j].setCollisionSlot(j);
+        }
+    }
+
+    /**
+     * Update the bounds of every moving sprack, then find every pair of
+     * spracks, at least one of them moving, whose collision masks overlap,
+     * and notify both spracks of each pair through {@link Sprack#collided}.
+     * Spracks that move in response are not tested again until the next call.
+     */
+    public void detect() {
+        for (int i = 0; i < moving.size(); i++) {
+            int slot = moving.get(i).getCollisionSlot();
+            updateBounds(slot);
+            restoreOrder(slot);
+        }
+        for (int i = 0; i < moving.size(); i++) {
+            int slot = moving.get(i).getCollisionSlot();
+            int left = minX[slot];
+            int right = maxX[slot];
+            // Everything after this sprack starts to its right, so stop at the first that starts past its right edge
+            for (int j = slot + 1; j < size && minX[j] < right; j++) {
+                testPair(slot, j);
+            }
+            // Moving spracks before this one were already paired with it by their own forward sweeps
+            for (int j = slot - 1; j >= 0 && minX[j] > left - maxWidth; j--) {
+                if (isStatic[j] && maxX[j] > left) {
+                    testPair(slot, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test the spracks in the given slots for overlap, notifying both of a
+     * collision if their masks overlap.
+     */
+    private void testPair(int a, int b) {
+        if (minY[a] >= maxY[b] || minY[b] >= maxY[a]) {
+            return;
+        }
+        if (CollisionMask.overlaps(masks[a], minX[a], minY[a], masks[b], minX[b], minY[b])) {
+            Sprack first = entries[a];
+            Sprack second = entries[b];
+            first.collided(second);
+            second.collided(first);
+        }
+    }
+}
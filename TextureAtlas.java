@@ -0,0 +1,238 @@
+import greenfoot.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of large pixel pages that many small images are packed into, so that
+ * they are stored in a few big arrays instead of as many separate images.
+ * <p>
+ * Images are packed with a skyline: each page tracks the lowest free row
+ * along its width, and each image is placed wherever its bottom edge would be
+ * highest, searching the existing pages before opening a new one. Images
+ * cannot be removed once added, so only the cached angles of
+ * {@link SprackView}s created without a manager are packed into an atlas. A
+ * {@link ViewCacheManager} evicts angles to stay within its budget, so its
+ * views store each angle in an array of its own instead. Pixels are stored as
+ * non-premultiplied ARGB.
+ * <p>
+ * Images can be added from multiple threads at once.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class TextureAtlas {
+    /** The width and height of a page, in pixels. */
+    private final int pageSize;
+    private final List<Page> pages;
+    /** The number of pixels covered by added images. */
+    private long usedPixels;
+
+    /**
+     * Create a new empty atlas.
+     *
+     * @param pageSize the width and height of each page, in pixels
+     */
+    public TextureAtlas(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.pageSize = pageSize;
+        pages = new ArrayList<>();
+    }
+
+    /**
+     * Reserve a rectangle of the given size in this atlas. The pixels of the
+     * returned region are transparent, and are not used by any other region.
+     * Images larger than a page are given a page of their own.
+     *
+     * @param width the width of the rectangle, in pixels
+     * @param height the height of the rectangle, in pixels
+     * @return a region covering the reserved rectangle
+     */
+    public synchronized PixelRegion allocate(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Atlas images must not be empty");
+        }
+        usedPixels += (long) width * height;
+        if (width > pageSize || height > pageSize) {
+            Page page = new Page(width, height);
+            pages.add(page);
+            return page.place(width, height);
+        }
+        for (Page page : pages) {
+            PixelRegion region = page.place(width, height);
+            if (region != null) {
+                return region;
+            }
+        }
+        Page page = new Page(pageSize, pageSize);
+        pages.add(page);
+        return page.place(width, height);
+    }
+
+    /**
+     * Copy the given image into a newly reserved rectangle of this atlas.
+     *
+     * @param image the image to add
+     * @return a region covering the copy of the image
+     */
+    public PixelRegion add(GreenfootImage image) {
+        return add(image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Copy a rectangle of the given image into a newly reserved rectangle of
+     * this atlas.
+     *
+     * @param image the image to copy from
+     * @param x the left edge of the rectangle to copy
+     * @param y the top edge of the rectangle to copy
+     * @param width the width of the rectangle to copy
+     * @param height the height of the rectangle to copy
+     * @return a region covering the copy of the rectangle
+     */
+    public PixelRegion add(GreenfootImage image, int x, int y, int width, int height) {
+        PixelRegion region = allocate(width, height);
+        PixelRegion source = PixelRegion.of(image);
+        if (!source.isPremultiplied()) {
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(source.getPixels(), source.getOffset() + (y + row) * source.getStride() + x,
+                                 region.getPixels(), region.getOffset() + row * region.getStride(), width);
+            }
+        } else {
+            image.getAwtImage().getRGB(x, y, width, height, region.getPixels(), region.getOffset(), region.getStride());
+        }
+        return region;
+    }
+
+    /**
+     * Return the number of pages in this atlas.
+     *
+     * @return the number of pages
+     */
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Return the number of bytes of pixels held by the pages of this atlas.
+     *
+     * @return the size of all pages, in bytes
+     */
+    public synchronized long getPageBytes() {
+        long bytes = 0;
+        for (Page page : pages) {
+            bytes += (long) page.pixels.length * 4;
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes of pixels covered by images added to this
+     * atlas, not counting space left unused by packing.
+     *
+     * @return the size of all added images, in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedPixels * 4;
+    }
+
+    /**
+     * A single page of pixels and the skyline of the images packed onto it.
+     */
+    private static class Page {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        /**
+         * The segments of the skyline from left to right: each covers the
+         * columns starting at its x position, up to the next segment, and
+         * has no images at or below its y position.
+         */
+        private int[] skylineX;
+        private int[] skylineY;
+        private int skylineCount;
+
+        Page(int width, int height) {
+            this.width = width;
+            this.height = height;
+            pixels = new int[width * height];
+            skylineX = new int[16];
+            skylineY = new int[16];
+            skylineCount = 1;
+        }
+
+        /**
+         * Place an image of the given size where its bottom edge is highest,
+         * and return a region covering it, or return null if it does not fit.
+         */
+        PixelRegion place(int imageWidth, int imageHeight) {
+            int bestSegment = -1;
+            int bestTop = 0;
+            for (int i = 0; i < skylineCount && skylineX[i] + imageWidth <= width; i++) {
+                // The image rests on the highest segment beneath it
+                int top = 0;
+                for (int j = i; j < skylineCount && skylineX[j] < skylineX[i] + imageWidth; j++) {
+                    top = Math.max(top, skylineY[j]);
+                }
+                if (top + imageHeight <= height && (bestSegment < 0 || top < bestTop)) {
+                    bestSegment = i;
+                    bestTop = top;
+                }
+            }
+            if (bestSegment < 0) {
+                return null;
+            }
+            int x = skylineX[bestSegment];
+            raise(x, x + imageWidth, bestTop + imageHeight);
+            return new PixelRegion(pixels, bestTop * width + x, width, imageWidth, imageHeight, false);
+        }
+
+        /**
+         * Replace the skyline segments covering the given columns with a
+         * single segment at the given y position.
+         */
+        private void raise(int left, int right, int y) {
+            // Find the segments overlapping the columns, and the part of the
+            // last one that continues to the right of them
+            int first = 0;
+            while (first + 1 < skylineCount && skylineX[first + 1] <= left) {
+                first++;
+            }
+            int last = first;
+            while (last + 1 < skylineCount && skylineX[last + 1] < right) {
+                last++;
+            }
+            int lastEnd = last + 1 < skylineCount ? skylineX[last + 1] : width;
+            int remainderY = skylineY[last];
+
+            // The segments become [first's left part], [raised], [remainder]
+            int[] newX = new int[3];
+            int[] newY = new int[3];
+            int count = 0;
+            if (skylineX[first] < left) {
+                newX[count] = skylineX[first];
+                newY[count++] = skylineY[first];
+            }
+            newX[count] = left;
+            newY[count++] = y;
+            if (right < lastEnd) {
+                newX[count] = right;
+                newY[count++] = remainderY;
+            }
+
+            int removed = last - first + 1;
+            int newCount = skylineCount - removed + count;
+            if (newCount > skylineX.length) {
+                skylineX = Arrays.copyOf(skylineX, newCount * 2);
+                skylineY = Arrays.copyOf(skylineY, newCount * 2);
+            }
+            System.arraycopy(skylineX, last + 1, skylineX, first + count, skylineCount - last - 1);
+            System.arraycopy(skylineY, last + 1, skylineY, first + count, skylineCount - last - 1);
+            System.arraycopy(newX, 0, skylineX, first, count);
+            System.arraycopy(newY, 0, skylineY, first, count);
+            skylineCount = newCount;
+        }
+    }
+}
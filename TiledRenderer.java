@@ -0,0 +1,343 @@
+import greenfoot.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A renderer that draws spracks straight into the pixel array of the canvas,
+ * dividing the canvas into tiles that are drawn in parallel.
+ * <p>
+ * Each frame, subclasses describe the screen rectangle covered by each sprack
+ * to draw. Every sprack is then assigned to the tiles it overlaps, and tiles
+ * are filled and drawn independently of each other across all cores, with
+ * subclasses drawing the part of each sprack within a tile. Once the buffers
+ * used for this have grown to fit the number of spracks drawn, rendering a
+ * frame does not allocate.
+ * <p>
+ * If the canvas does not store its pixels in a packed int array, frames are
+ * drawn by a {@link GreenfootRenderer} instead.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public abstract class TiledRenderer implements FrameRenderer {
+    /** The width and height of a tile, in pixels. */
+    private static final int TILE_SIZE = 64;
+    /** The number of tiles below which a drawing task is not split further. */
+    private static final int TASK_TILE_THRESHOLD = 2;
+
+    private final FrameRenderer fallback;
+    /** Whether the canvas of the frame being rendered is drawn by the fallback renderer. */
+    private boolean usingFallback;
+
+    /** The pixels of the canvas being rendered to, valid during a frame. */
+    protected int[] target;
+    /** The index in target of the top left pixel of the canvas. */
+    protected int targetOffset;
+    /** The difference in index in target between vertically adjacent pixels. */
+    protected int targetStride;
+    private int targetWidth;
+    private int targetHeight;
+    /** The image that the target pixels belong to, used to notice when the canvas changes. */
+    private BufferedImage targetImage;
+    private int backgroundPixel;
+
+    /** The screen rectangles of the spracks drawn this frame, in draw order. */
+    private int[] itemX;
+    private int[] itemY;
+    private int[] itemWidth;
+    private int[] itemHeight;
+    private int itemCount;
+
+    private int tilesX;
+    private int tilesY;
+    /** The indices of the items overlapping each tile, in draw order. */
+    private int[][] tileItems;
+    private int[] tileItemCounts;
+    /** The drawing tasks covering every tile, reused across frames, with the root first. */
+    private DrawTask[] tasks;
+
+    /**
+     * Create a new tiled renderer.
+     */
+    protected TiledRenderer() {
+        // Static spracks are not tiled for this renderer, so the fallback must draw them all
+        fallback = new GreenfootRenderer(false);
+        itemX = new int[0];
+        itemY = new int[0];
+        itemWidth = new int[0];
+        itemHeight = new int[0];
+    }
+
+    @Override
+    public void prepare(GreenfootImage canvas, DepthSorter order, StaticChunks statics) {
+        usingFallback = !bindTarget(canvas);
+        if (usingFallback) {
+            fallback.prepare(canvas, order, statics);
+            return;
+        }
+
+        // Collect the spracks that overlap the canvas
+        itemCount = 0;
+        for (int i = 0; i < order.size(); i++) {
+            if (itemCount == itemX.length) {
+                growItems(Math.max(64, itemCount * 2));
+            }
+            if (!prepareItem(order.get(i), itemCount)) {
+                continue;
+            }
+            int x = itemX[itemCount];
+            int y = itemY[itemCount];
+            int width = itemWidth[itemCount];
+            int height = itemHeight[itemCount];
+            if (width <= 0 || height <= 0 || x + width <= 0 || x >= targetWidth || y + height <= 0 || y >= targetHeight) {
+                FrameProfiler.count(FrameProfiler.Counter.OFFSCREEN_CULLED, 1);
+                continue;
+            }
+            itemCount++;
+        }
+        FrameProfiler.count(FrameProfiler.Counter.DRAWN, itemCount);
+
+        // Assign each item to the tiles it overlaps, keeping draw order within each tile
+        Arrays.fill(tileItemCounts, 0);
+        for (int i = 0; i < itemCount; i++) {
+            int firstTileX = Math.max(itemX[i], 0) / TILE_SIZE;
+            int lastTileX = (Math.min(itemX[i] + itemWidth[i], targetWidth) - 1) / TILE_SIZE;
+            int firstTileY = Math.max(itemY[i], 0) / TILE_SIZE;
+            int lastTileY = (Math.min(itemY[i] + itemHeight[i], targetHeight) - 1) / TILE_SIZE;
+            for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+                for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                    int tile = tileY * tilesX + tileX;
+                    if (tileItemCounts[tile] == tileItems[tile].length) {
+                        tileItems[tile] = Arrays.copyOf(tileItems[tile], tileItems[tile].length * 2);
+                    }
+                    tileItems[tile][tileItemCounts[tile]++] = i;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void draw(GreenfootImage canvas, Color background) {
+        if (usingFallback) {
+            fallback.draw(canvas, background);
+            return;
+        }
+        backgroundPixel = 0xFF000000 | (background.getRed() << 16) | (background.getGreen() << 8) | background.getBlue();
+        for (DrawTask task : tasks) {
+            task.reinitialize();
+        }
+        ForkJoinPool.commonPool().invoke(tasks[0]);
+        finishFrame(itemCount);
+    }
+
+    /**
+     * Prepare to draw the given sprack as the given item this frame, and set
+     * the screen rectangle it covers with {@link #setItemBounds}. Anything
+     * needed from the sprack to draw the item must be kept here, since the
+     * sprack may change before the item is drawn.
+     *
+     * @param sprack the sprack to draw
+     * @param item the index of the item, less than the last capacity passed to {@link #growItems}
+     * @return true if the sprack should be drawn, false to skip it
+     */
+    protected abstract boolean prepareItem(Sprack sprack, int item);
+
+    /**
+     * Draw the part of the given item within the given clip rectangle onto
+     * the target pixels, compositing it over what is already there. Different
+     * tiles may be drawn at the same time, but never with overlapping clip
+     * rectangles. Items may also be drawn at the same time as the items of
+     * other renderers.
+     *
+     * @param item the index of the item to draw
+     * @param x the left edge of the item's screen rectangle
+     * @param y the top edge of the item's screen rectangle
+     * @param width the width of the item's screen rectangle
+     * @param height the height of the item's screen rectangle
+     * @param clipLeft the left edge of the clip rectangle, inclusive
+     * @param clipTop the top edge of the clip rectangle, inclusive
+     * @param clipRight the right edge of the clip rectangle, exclusive
+     * @param clipBottom the bottom edge of the clip rectangle, exclusive
+     */
+    protected abstract void drawItem(int item, int x, int y, int width, int height,
+                                     int clipLeft, int clipTop, int clipRight, int clipBottom);
+
+    /**
+     * Release any per-item data kept for the frame that was just drawn.
+     *
+     * @param itemCount the number of items that were drawn
+     */
+    protected void finishFrame(int itemCount) {}
+
+    /**
+     * Grow the per-item storage to hold at least the given number of items.
+     * Subclasses keeping their own per-item data should grow it as well.
+     *
+     * @param capacity the number of items to make room for
+     */
+    protected void growItems(int capacity) {
+        itemX = Arrays.copyOf(itemX, capacity);
+        itemY = Arrays.copyOf(itemY, capacity);
+        itemWidth = Arrays.copyOf(itemWidth, capacity);
+        itemHeight = Arrays.copyOf(itemHeight, capacity);
+    }
+
+    /**
+     * Set the screen rectangle covered by the given item.
+     *
+     * @param item the index of the item
+     * @param x the left edge of the rectangle
+     * @param y the top edge of the rectangle
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     */
+    protected void setItemBounds(int item, int x, int y, int width, int height) {
+        itemX[item] = x;
+        itemY[item] = y;
+        itemWidth[item] = width;
+        itemHeight[item] = height;
+    }
+
+    /**
+     * Point the target pixel fields at the pixels of the given canvas, and
+     * resize the tile grid if the canvas size changed.
+     *
+     * @param canvas the image to render onto
+     * @return true if the canvas stores its pixels in a packed int array, false otherwise
+     */
+    private boolean bindTarget(GreenfootImage canvas) {
+        BufferedImage image = canvas.getAwtImage();
+        if (image == targetImage) {
+            return true;
+        }
+        PixelRegion region = PixelRegion.wrap(canvas);
+        if (region == null) {
+            targetImage = null;
+            return false;
+        }
+        target = region.getPixels();
+        targetOffset = region.getOffset();
+        targetStride = region.getStride();
+        targetImage = image;
+        if (image.getWidth() != targetWidth || image.getHeight() != targetHeight || tasks == null) {
+            targetWidth = image.getWidth();
+            targetHeight = image.getHeight();
+            createTiles();
+        }
+        return true;
+    }
+
+    /**
+     * Create the tile lists and drawing tasks for the current target size.
+     */
+    private void createTiles() {
+        tilesX = (targetWidth + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (targetHeight + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesX * tilesY;
+        tileItems = new int[tileCount][];
+        for (int i = 0; i < tileCount; i++) {
+            tileItems[i] = new int[16];
+        }
+        tileItemCounts = new int[tileCount];
+        // Build a binary tree of tasks over the tiles, listing the root first
+        int taskCount = 0;
+        DrawTask[] built = new DrawTask[tileCount * 2];
+        built[taskCount++] = new DrawTask(0, tileCount);
+        for (int i = 0; i < taskCount; i++) {
+            DrawTask task = built[i];
+            if (task.end - task.start > TASK_TILE_THRESHOLD) {
+                int middle = (task.start + task.end) >>> 1;
+                task.left = built[taskCount++] = new DrawTask(task.start, middle);
+                task.right = built[taskCount++] = new DrawTask(middle, task.end);
+            }
+        }
+        tasks = Arrays.copyOf(built, taskCount);
+    }
+
+    /**
+     * Fill the given tile with the background color and draw every item
+     * overlapping it, in draw order.
+     *
+     * @param tile the index of the tile, in row-major order
+     */
+    private void drawTile(int tile) {
+        int left = (tile % tilesX) * TILE_SIZE;
+        int top = (tile / tilesX) * TILE_SIZE;
+        int right = Math.min(left + TILE_SIZE, targetWidth);
+        int bottom = Math.min(top + TILE_SIZE, targetHeight);
+        for (int y = top; y < bottom; y++) {
+            int row = targetOffset + y * targetStride;
+            Arrays.fill(target, row + left, row + right, backgroundPixel);
+        }
+        int[] items = tileItems[tile];
+        for (int i = 0; i < tileItemCounts[tile]; i++) {
+            int item = items[i];
+            drawItem(item, itemX[item], itemY[item], itemWidth[item], itemHeight[item], left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Return the result of compositing a translucent pixel over an opaque pixel.
+     *
+     * @param source the pixel to composite, in ARGB format
+     * @param destination the opaque pixel to composite over, in ARGB format
+     * @param alpha the alpha of the source pixel
+     * @param premultiplied whether the color components of the source pixel are premultiplied by its alpha
+     * @return the opaque composited pixel, in ARGB format
+     */
+    protected static int blend(int source, int destination, int alpha, boolean premultiplied) {
+        int inverse = 255 - alpha;
+        int red = div255(((destination >> 16) & 0xFF) * inverse);
+        int green = div255(((destination >> 8) & 0xFF) * inverse);
+        int blue = div255((destination & 0xFF) * inverse);
+        if (premultiplied) {
+            red += (source >> 16) & 0xFF;
+            green += (source >> 8) & 0xFF;
+            blue += source & 0xFF;
+        } else {
+            red += div255(((source >> 16) & 0xFF) * alpha);
+            green += div255(((source >> 8) & 0xFF) * alpha);
+            blue += div255((source & 0xFF) * alpha);
+        }
+        return 0xFF000000 | (Math.min(red, 255) << 16) | (Math.min(green, 255) << 8) | Math.min(blue, 255);
+    }
+
+    /**
+     * Return the given value divided by 255, rounded to the nearest integer,
+     * for values in the range [0, 65025].
+     */
+    protected static int div255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+
+    /**
+     * A fork-join task that draws a range of tiles. Tasks are created once
+     * per tile grid and reinitialized every frame.
+     */
+    @SuppressWarnings("serial")
+    private class DrawTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+        private DrawTask left;
+        private DrawTask right;
+
+        DrawTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (left == null) {
+                for (int tile = start; tile < end; tile++) {
+                    drawTile(tile);
+                }
+                return;
+            }
+            invokeAll(left, right);
+        }
+    }
+}
@@ -15,4 +15,21 @@ public class Vector2 {
         angle %= 360.0;
         return angle;
     }
+
+    /**
+     * Return the angle a given fraction of the way from one angle to another,
+     * moving in whichever direction is shorter.
+     *
+     * @param from the angle to interpolate from, in degrees
+     * @param to the angle to interpolate towards, in degrees
+     * @param alpha the interpolation factor, where 0.0 corresponds to from and 1.0 corresponds to to
+     * @return the interpolated angle in degrees, within the range [0.0, 360.0)
+     */
+    public static double interpolateAngle(double from, double to, double alpha) {
+        double diff = normalizeAngle(to - from);
+        if (diff > 180.0) {
+            diff -= 360.0;
+        }
+        return normalizeAngle(from + diff * alpha);
+    }
 }
@@ -0,0 +1,568 @@
+import greenfoot.*;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The owner of the {@link SprackView} of every sprite stack sheet, which
+ * chooses the number of cached angles and the scale factor of cached images
+ * for each sheet from its size, and keeps the cached images of all of its
+ * views within one memory budget.
+ * <p>
+ * A sheet gets enough angles that neighbouring angles move the outermost
+ * pixel of a layer by about half a pixel, so small sheets are not given more
+ * angles than can be told apart and large sheets do not visibly snap between
+ * angles. Cached images are scaled so that the largest side of a stack is
+ * about {@link #MAX_CACHED_SIZE} pixels, which keeps the images of large
+ * sheets from growing with the square of their size.
+ * <p>
+ * The budget covers three kinds of image:
+ * <ul>
+ * <li>the cached angles of every view,</li>
+ * <li>the scaled images of every view, which the manager keeps in
+ * least-recently-used caches of at most {@link #SCALED_IMAGE_SHARE} of the
+ * budget in total, however many views there are, and</li>
+ * <li>the images of other caches that are {@link #newCharge charged} to the
+ * manager, such as the tiles of {@link StaticChunks}, which bound their own
+ * size.</li>
+ * </ul>
+ * The manager's epoch is {@link #advanceEpoch advanced} once per frame, and
+ * every time a view caches or uses an angle, the angle is stamped with the
+ * current epoch. Once the images of all three kinds pass the budget, the
+ * angles with the oldest stamps across all views are evicted until usage is
+ * back below {@link #EVICTION_TARGET} of the budget. Angles used in the
+ * current epoch are only evicted if usage would otherwise stay over the
+ * budget, and the angle whose caching caused the eviction never is. Evicted
+ * angles are read or rendered again when next needed.
+ * <p>
+ * Renderers that draw spracks from their layers, such as
+ * {@link RasterRenderer}, never read cached images. Each pipeline drawing
+ * views of the manager holds a {@link #newCacheUse use} that it sets while any
+ * of its renderers draws cached images. Once no pipeline does, the manager
+ * releases every cached image, stops rendering angles ahead in the
+ * background, and builds new views in the
+ * {@link SprackView.BuildMode#ON_DEMAND ON_DEMAND} mode, so that drawing only
+ * from layers costs only the memory of the layers. Once a pipeline draws
+ * cached images again, angles are rendered again as they are drawn.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class ViewCacheManager {
+    /** The default number of bytes that the cached images of all views may hold. */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    /** The fewest angles cached for any sheet. */
+    private static final int MIN_ANGLE_COUNT = 32;
+    /** The most angles cached for any sheet. */
+    private static final int MAX_ANGLE_COUNT = 360;
+    /** The distance that the outermost pixel of a layer moves between neighbouring angles, in unscaled pixels. */
+    private static final double ANGLE_STEP_PIXELS = 0.5;
+    /** The largest side of a sprite stack in its cached images, in pixels, before the cache scale is reduced. */
+    private static final int MAX_CACHED_SIZE = 128;
+    /** The fraction of the budget that eviction brings usage down to, so that it is not needed on every store. */
+    private static final double EVICTION_TARGET = 0.9;
+    /** The fraction of the budget that the scaled images of all views may hold. */
+    private static final double SCALED_IMAGE_SHARE = 0.125;
+    /** The maximum number of scaled images of all views to keep. */
+    private static final int SCALED_IMAGE_CAPACITY = 4096;
+    /** The number of separately locked parts of the scaled image cache, a power of 2. */
+    private static final int SCALED_IMAGE_STRIPES = 16;
+
+    private final long budget;
+    private final SprackView.BuildMode mode;
+    private final Path cacheDirectory;
+
+    /** The view of each registered sheet, by sheet name. */
+    private final Map<String, SprackView> views;
+    /** The number of bytes held by the cached angles of every view. */
+    private final AtomicLong angleBytes;
+    /**
+     * The scaled images of every view, keyed by view number, cache index and
+     * zoom bucket, split into stripes by key. Views may be drawn on several
+     * threads at once, so each stripe is only used while holding its lock,
+     * and threads drawing different images rarely wait for each other.
+     */
+    private final LruCache<GreenfootImage>[] scaledImages;
+    /** The number of bytes held by scaled images, kept outside the locks of the stripes so that it can be read without them. */
+    private final AtomicLong scaledImageBytes;
+    /** The byte counts of the caches charged to this manager, which are dropped once their caches are collected. */
+    private final List<WeakReference<AtomicLong>> charges;
+    private final AtomicInteger viewCount;
+    /**
+     * The epoch that cached angles are stamped with when used. It is only
+     * advanced by the thread that starts frames, and read by every thread
+     * that draws them.
+     */
+    private volatile long epoch;
+    private final AtomicLong evictedAngleCount;
+    /** The uses of the cached images by pipelines, which are dropped once their pipelines are collected. */
+    private final List<WeakReference<AtomicBoolean>> cacheUses;
+    /** Whether any pipeline draws cached images, or no pipeline has said whether it does. */
+    private volatile boolean imagesUsed;
+
+    /**
+     * Create a new manager of views with the given budget.
+     *
+     * @param budget the number of bytes that the cached images of all views may hold
+     * @param mode the way in which to build the image caches of views
+     * @param cacheDirectory the directory to load and save cache files in, or null to always render
+     */
+    @SuppressWarnings("unchecked")
+    public ViewCacheManager(long budget, SprackView.BuildMode mode, Path cacheDirectory) {
+        this.budget = budget;
+        this.mode = mode;
+        this.cacheDirectory = cacheDirectory;
+        views = new ConcurrentHashMap<>();
+        angleBytes = new AtomicLong();
+        scaledImages = (LruCache<GreenfootImage>[]) new LruCache<?>[SCALED_IMAGE_STRIPES];
+        long stripeWeight = Math.max(1, (long) (budget * SCALED_IMAGE_SHARE) / SCALED_IMAGE_STRIPES);
+        for (int i = 0; i < SCALED_IMAGE_STRIPES; i++) {
+            scaledImages[i] = new LruCache<>(SCALED_IMAGE_CAPACITY / SCALED_IMAGE_STRIPES, stripeWeight);
+        }
+        scaledImageBytes = new AtomicLong();
+        charges = new CopyOnWriteArrayList<>();
+        viewCount = new AtomicInteger();
+        evictedAngleCount = new AtomicLong();
+        cacheUses = new CopyOnWriteArrayList<>();
+        imagesUsed = true;
+    }
+
+    /**
+     * Create a view of the sheet with the given name, loaded from the image
+     * file of the same name, with an angle count and cache scale chosen from
+     * its size.
+     *
+     * @param name the name of the sheet, which is also the name of its image without ".png"
+     * @param layerCount the number of layers in the sheet
+     * @return the new view of the sheet
+     * @throws IllegalArgumentException if a sheet of the same name is already registered
+     */
+    public SprackView register(String name, int layerCount) {
+        return register(name, new GreenfootImage(name + ".png"), layerCount);
+    }
+
+    /**
+     * Create a view of the given sheet under the given name, with an angle
+     * count and cache scale chosen from its size.
+     *
+     * @param name the name of the sheet
+     * @param layerSheet a GreenfootImage containing individual layers arranged vertically from bottom to top
+     * @param layerCount the number of layers in the sheet
+     * @return the new view of the sheet
+     * @throws IllegalArgumentException if a sheet of the same name is already registered
+     */
+    public SprackView register(String name, GreenfootImage layerSheet, int layerCount) {
+        if (views.containsKey(name)) {
+            throw new IllegalArgumentException("A SprackView for sheet \"" + name + "\" is already registered");
+        }
+        int layerWidth = layerSheet.getWidth();
+        int layerHeight = layerSheet.getHeight() / layerCount;
+        // Without a pipeline drawing cached images, there is no use rendering angles ahead
+        SprackView view = new SprackView(layerSheet, layerCount, chooseAngleCount(layerWidth, layerHeight),
+                                         chooseCacheScale(layerWidth, layerHeight, layerCount),
+                                         imagesUsed ? mode : SprackView.BuildMode.ON_DEMAND, cacheDirectory, null, this);
+        views.put(name, view);
+        return view;
+    }
+
+    /**
+     * Return the number of angles to cache for a sheet with layers of the
+     * given size: enough that the corners of a layer move by about
+     * {@link #ANGLE_STEP_PIXELS} between angles, rounded up to a multiple of
+     * 4 so that every {@link SprackView.LevelOfDetail level of detail} uses
+     * evenly spaced angles.
+     *
+     * @param layerWidth the width of a layer, in pixels
+     * @param layerHeight the height of a layer, in pixels
+     * @return the number of angles to cache
+     */
+    public static int chooseAngleCount(int layerWidth, int layerHeight) {
+        double radius = Math.hypot(layerWidth, layerHeight) / 2.0;
+        int count = (int) Math.ceil(2.0 * Math.PI * radius / ANGLE_STEP_PIXELS);
+        count = (count + 3) / 4 * 4;
+        return Math.max(MIN_ANGLE_COUNT, Math.min(MAX_ANGLE_COUNT, count));
+    }
+
+    /**
+     * Return the scale factor of the cached images of a sheet of the given
+     * size: the largest power of two at which no side of the stack exceeds
+     * {@link #MAX_CACHED_SIZE} pixels, between 1 and
+     * {@link SprackView#IMAGE_CACHE_SCALE}.
+     *
+     * @param layerWidth the width of a layer, in pixels
+     * @param layerHeight the height of a layer, in pixels
+     * @param layerCount the number of layers
+     * @return the scale factor of cached images
+     */
+    public static double chooseCacheScale(int layerWidth, int layerHeight, int layerCount) {
+        int size = Math.max(1, Math.max(layerCount, Math.max(layerWidth, layerHeight)));
+        double scale = Integer.highestOneBit(Math.max(1, MAX_CACHED_SIZE / size));
+        return Math.min(SprackView.IMAGE_CACHE_SCALE, scale);
+    }
+
+    /**
+     * Return the view of the sheet with the given name.
+     *
+     * @param name the name of the sheet
+     * @return the view of the sheet, or null if no sheet of that name is registered
+     */
+    public SprackView getView(String name) {
+        return views.get(name);
+    }
+
+    /**
+     * Start a new epoch, so that angles used from now on count as more
+     * recently used than those used before. This is called once at the start
+     * of every frame, from a single thread.
+     */
+    public void advanceEpoch() {
+        // Only one thread advances the epoch, so this needs no atomic update
+        epoch = epoch + 1;
+    }
+
+    /**
+     * Return the current epoch, which cached angles are stamped with when
+     * they are used.
+     *
+     * @return the current epoch
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Record that a view stored a new cached angle of the given size, and
+     * evict the coldest angles of all views if that puts usage over the
+     * budget. The new angle is kept.
+     *
+     * @param bytes the number of bytes held by the new angle
+     * @param view the view that stored the angle
+     * @param index the cache index of the new angle
+     */
+    void angleStored(long bytes, SprackView view, int index) {
+        angleBytes.addAndGet(bytes);
+        if (getUsedBytes() > budget) {
+            evict(view, index);
+        }
+    }
+
+    /**
+     * Return the number to tell the scaled images of a new view apart by.
+     *
+     * @return a number not given to any other view of this manager
+     */
+    int nextViewNumber() {
+        return viewCount.incrementAndGet();
+    }
+
+    /**
+     * Return the scaled image with the given key, or null if it is not cached.
+     *
+     * @param key the view number, cache index and zoom bucket of the image
+     * @return the cached scaled image, or null
+     */
+    GreenfootImage getScaledImage(long key) {
+        LruCache<GreenfootImage> stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * Cache a scaled image, evicting the least recently used scaled images
+     * of every view to keep them within their share of the budget, and
+     * evicting angles if that puts usage over the budget.
+     *
+     * @param key the view number, cache index and zoom bucket of the image
+     * @param image the scaled image
+     */
+    void putScaledImage(long key, GreenfootImage image) {
+        LruCache<GreenfootImage> stripe = getStripe(key);
+        synchronized (stripe) {
+            long before = stripe.getWeight();
+            stripe.put(key, image, 4L * image.getWidth() * image.getHeight());
+            scaledImageBytes.addAndGet(stripe.getWeight() - before);
+        }
+        checkBudget();
+    }
+
+    private LruCache<GreenfootImage> getStripe(long key) {
+        // Spread keys that differ in any of their bits across the stripes
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return scaledImages[(int) (hash >>> 60) & (SCALED_IMAGE_STRIPES - 1)];
+    }
+
+    /**
+     * Return a new byte count through which a cache outside this manager
+     * charges its images to the budget. The cache must bound its own size,
+     * report it through {@link #charge}, and keep the returned count for as
+     * long as it holds the images. Once it is garbage collected, its count is
+     * no longer charged.
+     *
+     * @return a new byte count of zero
+     */
+    public AtomicLong newCharge() {
+        charges.removeIf(charge -> charge.get() == null);
+        AtomicLong charge = new AtomicLong();
+        charges.add(new WeakReference<>(charge));
+        return charge;
+    }
+
+    /**
+     * Set the number of bytes held by a cache charged to this manager, and
+     * evict angles if that puts usage over the budget.
+     *
+     * @param charge the byte count of the cache, from {@link #newCharge}
+     * @param bytes the number of bytes now held by the cache
+     */
+    public void charge(AtomicLong charge, long bytes) {
+        charge.set(bytes);
+        checkBudget();
+    }
+
+    private void checkBudget() {
+        if (getUsedBytes() > budget) {
+            evict(null, -1);
+        }
+    }
+
+    /**
+     * Return a new use of the cached images of this manager's views, set
+     * until {@link #setCacheUsed} says otherwise. A pipeline must keep the
+     * returned use for as long as it draws views of this manager. Once it is
+     * garbage collected, it no longer counts.
+     *
+     * @return a new use of the cached images
+     */
+    public AtomicBoolean newCacheUse() {
+        cacheUses.removeIf(use -> use.get() == null);
+        AtomicBoolean use = new AtomicBoolean(true);
+        cacheUses.add(new WeakReference<>(use));
+        return use;
+    }
+
+    /**
+     * Set whether the pipeline holding the given use draws cached images. If
+     * no pipeline does any longer, every cached angle and scaled image is
+     * released, and no more angles are rendered ahead of their use until one
+     * does again.
+     *
+     * @param use the use of the pipeline, from {@link #newCacheUse}
+     * @param used whether any renderer of the pipeline draws cached images
+     */
+    public synchronized void setCacheUsed(AtomicBoolean use, boolean used) {
+        use.set(used);
+        boolean wasUsed = imagesUsed;
+        boolean anyUse = false;
+        boolean anyUsed = false;
+        for (WeakReference<AtomicBoolean> reference : cacheUses) {
+            AtomicBoolean other = reference.get();
+            if (other != null) {
+                anyUse = true;
+                anyUsed |= other.get();
+            }
+        }
+        imagesUsed = anyUsed || !anyUse;
+        if (wasUsed && !imagesUsed) {
+            releaseImages();
+        }
+    }
+
+    /**
+     * Return whether any pipeline draws the cached images of this manager's
+     * views, or no pipeline has said whether it does.
+     *
+     * @return true if cached images are used
+     */
+    public boolean isCacheUsed() {
+        return imagesUsed;
+    }
+
+    /**
+     * Remove every cached angle and scaled image of every view. Angles that
+     * are still being rendered ahead are released by their views once stored.
+     */
+    private void releaseImages() {
+        for (SprackView view : views.values()) {
+            for (int i = 0; i < view.getAngleCount(); i++) {
+                releaseAngle(view, i);
+            }
+        }
+        for (LruCache<GreenfootImage> stripe : scaledImages) {
+            synchronized (stripe) {
+                scaledImageBytes.addAndGet(-stripe.getWeight());
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Remove the angle at the given cache index from the given view without
+     * counting it as evicted.
+     *
+     * @param view the view of the angle
+     * @param index the cache index of the angle
+     */
+    void releaseAngle(SprackView view, int index) {
+        angleBytes.addAndGet(-view.evictAngle(index));
+    }
+
+    /**
+     * Return whether angles should be cached ahead of their use: cached
+     * images are used, and usage is far enough below the budget to cache
+     * more without evicting any.
+     *
+     * @return true if angles can be rendered ahead
+     */
+    boolean hasRoom() {
+        return imagesUsed && getUsedBytes() < budget * EVICTION_TARGET;
+    }
+
+    /**
+     * Evict the angles of every view with the oldest stamps until usage is
+     * below {@link #EVICTION_TARGET} of the budget. Angles used in the current
+     * epoch are probably still being drawn, so they are only evicted while
+     * usage is over the budget itself.
+     *
+     * @param keepView the view of the angle to keep, or null to keep none
+     * @param keepIndex the cache index of the angle to keep
+     */
+    private synchronized void evict(SprackView keepView, int keepIndex) {
+        long now = epoch;
+        long target = (long) (budget * EVICTION_TARGET);
+        if (getUsedBytes() <= budget) {
+            // Another thread evicted while this one waited
+            return;
+        }
+        List<SprackView> viewList = new ArrayList<>(views.values());
+        int[] firstPosition = new int[viewList.size() + 1];
+        for (int v = 0; v < viewList.size(); v++) {
+            firstPosition[v + 1] = firstPosition[v] + viewList.get(v).getAngleCount();
+        }
+        // Order every cached angle by its stamp, packed with its position among all views' angles
+        long[] order = new long[firstPosition[viewList.size()]];
+        int count = 0;
+        for (int v = 0; v < viewList.size(); v++) {
+            SprackView view = viewList.get(v);
+            for (int i = 0; i < view.getAngleCount(); i++) {
+                long lastUsed = view.getAngleLastUsed(i);
+                if (lastUsed >= 0 && (view != keepView || i != keepIndex)) {
+                    order[count++] = (lastUsed << 23) | (firstPosition[v] + i);
+                }
+            }
+        }
+        Arrays.sort(order, 0, count);
+        for (int n = 0; n < count; n++) {
+            // Stamps fit in the bits above the position for about 2^40 frames
+            long lastUsed = order[n] >>> 23;
+            if (getUsedBytes() <= (lastUsed < now ? target : budget)) {
+                break;
+            }
+            int position = (int) (order[n] & ((1 << 23) - 1));
+            // Find the last view whose angles start at or before the position
+            int v = Arrays.binarySearch(firstPosition, position);
+            v = v >= 0 ? v : -v - 2;
+            while (viewList.get(v).getAngleCount() == 0) {
+                v++;
+            }
+            long freed = viewList.get(v).evictAngle(position - firstPosition[v]);
+            if (freed > 0) {
+                angleBytes.addAndGet(-freed);
+                evictedAngleCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes held by the cached angles and scaled images
+     * of every view and by the caches charged to this manager.
+     *
+     * @return the memory in use, in bytes
+     */
+    public long getUsedBytes() {
+        return angleBytes.get() + scaledImageBytes.get() + getChargedBytes();
+    }
+
+    /**
+     * Return the number of bytes held by the cached angles of every view.
+     *
+     * @return the memory used by cached angles, in bytes
+     */
+    public long getAngleBytes() {
+        return angleBytes.get();
+    }
+
+    /**
+     * Return the number of bytes held by the scaled images of every view.
+     *
+     * @return the memory used by scaled images, in bytes
+     */
+    public long getScaledImageBytes() {
+        return scaledImageBytes.get();
+    }
+
+    /**
+     * Return the number of bytes held by the caches charged to this manager.
+     *
+     * @return the memory used by charged caches, in bytes
+     */
+    public long getChargedBytes() {
+        long bytes = 0;
+        for (WeakReference<AtomicLong> reference : charges) {
+            AtomicLong charge = reference.get();
+            if (charge != null) {
+                bytes += charge.get();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes that the images of all views and charged caches may hold.
+     *
+     * @return the memory budget, in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Return the number of angles evicted from every view so far.
+     *
+     * @return the number of evicted angles
+     */
+    public long getEvictedAngleCount() {
+        return evictedAngleCount.get();
+    }
+
+    /**
+     * Return a report of the memory used by cached images against the budget,
+     * followed by the angle count, cache scale and cache size of each view,
+     * one line per sheet.
+     *
+     * @return the cache report of every registered sheet
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        long usedBytes = getUsedBytes();
+        report.append(String.format("%d/%d bytes used (%.1f%%): %d in angles, %d in scaled images, %d charged; %d angles evicted\n",
+                                    usedBytes, budget, 100.0 * usedBytes / budget, getAngleBytes(),
+                                    getScaledImageBytes(), getChargedBytes(), getEvictedAngleCount()));
+        for (Map.Entry<String, SprackView> entry : new TreeMap<>(views).entrySet()) {
+            SprackView view = entry.getValue();
+            report.append(entry.getKey()).append(String.format(" (%d angles at %.0fx): ", view.getAngleCount(), view.getCacheScale()))
+                  .append(view.getCacheReport()).append('\n');
+        }
+        return report.toString();
+    }
+}
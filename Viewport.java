@@ -0,0 +1,136 @@
+/**
+ * A rectangle of the canvas that a {@link FramePipeline} draws the world
+ * onto, as seen by a camera of its own and drawn by a renderer of its own.
+ * <p>
+ * A pipeline draws every viewport in every frame, in the order they were
+ * added, so several views of the same world can share a canvas, such as the
+ * halves of a split screen or a minimap over the main view. A viewport
+ * without a rectangle covers the whole canvas.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class Viewport {
+    private final Camera camera;
+    private FrameRenderer renderer;
+    /** Whether this viewport covers the whole canvas, in which case the rectangle is unused. */
+    private final boolean fullCanvas;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    /**
+     * Create a new viewport covering the whole canvas.
+     *
+     * @param camera the camera to view the world from
+     * @param renderer the renderer to draw the viewport with, not shared with any other viewport
+     */
+    public Viewport(Camera camera, FrameRenderer renderer) {
+        this(camera, renderer, true, 0, 0, 0, 0);
+    }
+
+    /**
+     * Create a new viewport covering the given rectangle of the canvas.
+     *
+     * @param camera the camera to view the world from
+     * @param renderer the renderer to draw the viewport with, not shared with any other viewport
+     * @param x the x position of the left edge of the viewport on the canvas, in pixels
+     * @param y the y position of the top edge of the viewport on the canvas, in pixels
+     * @param width the width of the viewport, in pixels
+     * @param height the height of the viewport, in pixels
+     * @throws IllegalArgumentException if the given width or height is not positive
+     */
+    public Viewport(Camera camera, FrameRenderer renderer, int x, int y, int width, int height) {
+        this(camera, renderer, false, x, y, width, height);
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Viewport width and height must be positive");
+        }
+    }
+
+    private Viewport(Camera camera, FrameRenderer renderer, boolean fullCanvas, int x, int y, int width, int height) {
+        this.camera = camera;
+        this.renderer = renderer;
+        this.fullCanvas = fullCanvas;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Return the camera that this viewport views the world from.
+     *
+     * @return the camera of this viewport
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Return the renderer that draws this viewport.
+     *
+     * @return the renderer of this viewport
+     */
+    public FrameRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * Set the renderer that draws this viewport. Pipelines change renderers
+     * through {@link FramePipeline#setRenderer(Viewport, FrameRenderer)},
+     * which also limits the camera's zoom factor.
+     *
+     * @param renderer the renderer to draw this viewport with
+     */
+    void setRenderer(FrameRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Return whether this viewport covers the whole canvas.
+     *
+     * @return true if this viewport has no rectangle of its own
+     */
+    public boolean isFullCanvas() {
+        return fullCanvas;
+    }
+
+    /**
+     * Return the x position of the left edge of this viewport on the canvas.
+     *
+     * @return the x position of the viewport, in pixels
+     */
+    public int getX() {
+        return fullCanvas ? 0 : x;
+    }
+
+    /**
+     * Return the y position of the top edge of this viewport on the canvas.
+     *
+     * @return the y position of the viewport, in pixels
+     */
+    public int getY() {
+        return fullCanvas ? 0 : y;
+    }
+
+    /**
+     * Return the width of this viewport on a canvas of the given width.
+     *
+     * @param canvasWidth the width of the canvas
+     * @return the width of the viewport, in pixels
+     */
+    public int getWidth(int canvasWidth) {
+        return fullCanvas ? canvasWidth : width;
+    }
+
+    /**
+     * Return the height of this viewport on a canvas of the given height.
+     *
+     * @param canvasHeight the height of the canvas
+     * @return the height of the viewport, in pixels
+     */
+    public int getHeight(int canvasHeight) {
+        return fullCanvas ? canvasHeight : height;
+    }
+}
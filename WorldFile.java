@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A file of placed spracks, grouped into square chunks of world so that the
+ * spracks near a point can be read without reading the rest, read through a
+ * memory map.
+ * <p>
+ * Each placed sprack is stored as a compact record of its sheet, location,
+ * and rotation, with sheets named once in the header and referred to by
+ * index. The records of a chunk are stored together, and the chunk index in
+ * the header gives the location of each chunk's records.
+ * <p>
+ * All values are stored big-endian, laid out as follows:
+ * <pre>
+ * int     magic number, "GFSW"
+ * int     format version
+ * double  chunk width and height, in world units
+ * int     sheet count
+ * for each sheet:
+ *     short    name length, in bytes
+ *     byte[]   UTF-8 name
+ * int     chunk count
+ * for each chunk:
+ *     int  cell x, the chunk's left edge divided by the chunk size
+ *     int  cell y, the chunk's top edge divided by the chunk size
+ *     long offset of the chunk's records from the start of the file
+ *     int  record count
+ * for each chunk, for each record:
+ *     short sheet index
+ *     float x position, in world units
+ *     float y position, in world units
+ *     float rotation, in degrees
+ * </pre>
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class WorldFile {
+    private static final int MAGIC = 0x47465357;
+    /** The version of the file format. This must be incremented whenever it changes. */
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHUNK_ENTRY_SIZE = 4 + 4 + 8 + 4;
+    /** The size of the record of one sprack, in bytes. */
+    public static final int RECORD_SIZE = 2 + 4 + 4 + 4;
+
+    /** The mapped contents of the file, only ever read at absolute positions so it can be shared between threads. */
+    private final MappedByteBuffer buffer;
+    private final double chunkSize;
+    private final String[] sheetNames;
+    /** The position of the chunk index within the file. */
+    private final int indexStart;
+    private final int chunkCount;
+    /**
+     * Open-addressed hash table of the index of every chunk, keyed by
+     * {@link SpatialGrid#getCellKey cell key} and using linear probing, so
+     * that finding a chunk does not box its key. Empty slots contain -1.
+     */
+    private final int[] chunkTable;
+    /** The cell key of the chunk in each slot of the chunk table. */
+    private final long[] chunkTableKeys;
+    /** The bit mask used to wrap indices into the chunk table. */
+    private final int chunkTableMask;
+    private final long recordCount;
+
+    private WorldFile(MappedByteBuffer buffer, double chunkSize, String[] sheetNames, int indexStart, int chunkCount) {
+        this.buffer = buffer;
+        this.chunkSize = chunkSize;
+        this.sheetNames = sheetNames;
+        this.indexStart = indexStart;
+        this.chunkCount = chunkCount;
+        // Keep the load factor of the chunk table at or below 0.5
+        chunkTable = new int[Integer.highestOneBit(Math.max(1, chunkCount)) << 2];
+        chunkTableKeys = new long[chunkTable.length];
+        chunkTableMask = chunkTable.length - 1;
+        Arrays.fill(chunkTable, -1);
+        long records = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            long key = SpatialGrid.getCellKey(getCellX(i), getCellY(i));
+            int slot = findSlot(key);
+            chunkTable[slot] = i;
+            chunkTableKeys[slot] = key;
+            records += getRecordCount(i);
+        }
+        recordCount = records;
+    }
+
+    /**
+     * Return the cell of the chunk containing the given coordinate.
+     *
+     * @param coordinate an x or y position, in world units
+     * @param chunkSize the width and height of a chunk, in world units
+     * @return the x or y cell of the chunk containing the position
+     */
+    public static int getCell(double coordinate, double chunkSize) {
+        return (int) Math.floor(coordinate / chunkSize);
+    }
+
+    /**
+     * Open and map the world file at the given path.
+     *
+     * @param path the path of the world file
+     * @return the opened world file
+     * @throws IOException if the file could not be read or is not a valid world file
+     */
+    public static WorldFile open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            ByteBuffer header = buffer.duplicate();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a world file of version " + FORMAT_VERSION + ": " + path);
+            }
+            double chunkSize = header.getDouble();
+            String[] sheetNames = new String[header.getInt()];
+            for (int i = 0; i < sheetNames.length; i++) {
+                byte[] name = new byte[header.getShort() & 0xFFFF];
+                header.get(name);
+                sheetNames[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            int chunkCount = header.getInt();
+            int indexStart = header.position();
+            if (!(chunkSize > 0.0) || chunkCount < 0 || indexStart + (long) chunkCount * CHUNK_ENTRY_SIZE > buffer.capacity()) {
+                throw new IOException("Corrupt world file header: " + path);
+            }
+            // Make sure every chunk lies within the file so that reading one later cannot fail
+            for (int i = 0; i < chunkCount; i++) {
+                int entry = indexStart + i * CHUNK_ENTRY_SIZE;
+                long offset = buffer.getLong(entry + 8);
+                int count = buffer.getInt(entry + 16);
+                if (offset < 0 || count < 0 || offset + (long) count * RECORD_SIZE > buffer.capacity()) {
+                    throw new IOException("Corrupt world file chunk index: " + path);
+                }
+            }
+            return new WorldFile(buffer, chunkSize, sheetNames, indexStart, chunkCount);
+        } catch (RuntimeException e) {
+            // Reading past the end of a truncated header
+            throw new IOException("Corrupt world file header: " + path, e);
+        }
+    }
+
+    /**
+     * Write a new world file with the given placed spracks, grouping them
+     * into chunks of the given size. The file is written under a temporary
+     * name and then moved into place, so a partially written file is never
+     * opened.
+     *
+     * @param path the path of the world file
+     * @param chunkSize the width and height of a chunk, in world units
+     * @param sheetNames the names of the sheets that records refer to by index
+     * @param count the number of placed spracks
+     * @param sheets the index of the sheet of each sprack within sheetNames
+     * @param x the x position of each sprack, in world units
+     * @param y the y position of each sprack, in world units
+     * @param rotation the rotation of each sprack, in degrees
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path path, double chunkSize, String[] sheetNames, int count,
+                             short[] sheets, float[] x, float[] y, float[] rotation) throws IOException {
+        // Number the chunks in order of their first record, then sort records by chunk with a counting sort
+        Map<Long, Integer> chunkIndices = new HashMap<>();
+        int[] recordChunks = new int[count];
+        int[] chunkCellX = new int[16];
+        int[] chunkCellY = new int[16];
+        int[] chunkStarts = new int[17];
+        for (int i = 0; i < count; i++) {
+            int cellX = getCell(x[i], chunkSize);
+            int cellY = getCell(y[i], chunkSize);
+            Integer chunk = chunkIndices.get(SpatialGrid.getCellKey(cellX, cellY));
+            if (chunk == null) {
+                chunk = chunkIndices.size();
+                chunkIndices.put(SpatialGrid.getCellKey(cellX, cellY), chunk);
+                if (chunk == chunkCellX.length) {
+                    chunkCellX = Arrays.copyOf(chunkCellX, chunk * 2);
+                    chunkCellY = Arrays.copyOf(chunkCellY, chunk * 2);
+                    chunkStarts = Arrays.copyOf(chunkStarts, chunk * 2 + 1);
+                }
+                chunkCellX[chunk] = cellX;
+                chunkCellY[chunk] = cellY;
+            }
+            recordChunks[i] = chunk;
+            chunkStarts[chunk + 1]++;
+        }
+        int chunkCount = chunkIndices.size();
+        for (int i = 0; i < chunkCount; i++) {
+            chunkStarts[i + 1] += chunkStarts[i];
+        }
+        int[] order = new int[count];
+        int[] next = Arrays.copyOf(chunkStarts, chunkCount);
+        for (int i = 0; i < count; i++) {
+            order[next[recordChunks[i]]++] = i;
+        }
+
+        byte[][] names = new byte[sheetNames.length][];
+        int headerSize = 4 + 4 + 8 + 4 + 4 + chunkCount * CHUNK_ENTRY_SIZE;
+        for (int i = 0; i < sheetNames.length; i++) {
+            names[i] = sheetNames[i].getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + names[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putDouble(chunkSize).putInt(sheetNames.length);
+        for (byte[] name : names) {
+            header.putShort((short) name.length).put(name);
+        }
+        header.putInt(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            header.putInt(chunkCellX[i]).putInt(chunkCellY[i]);
+            header.putLong(headerSize + (long) chunkStarts[i] * RECORD_SIZE);
+            header.putInt(chunkStarts[i + 1] - chunkStarts[i]);
+        }
+        header.flip();
+
+        Path directory = path.toAbsolutePath().getParent();
+        Path tempPath = Files.createTempFile(directory, "gfsw", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, header);
+                ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 4096);
+                for (int i = 0; i < count; i++) {
+                    int record = order[i];
+                    records.putShort(sheets[record]).putFloat(x[record]).putFloat(y[record]).putFloat(rotation[record]);
+                    if (!records.hasRemaining()) {
+                        records.flip();
+                        writeFully(channel, records);
+                        records.clear();
+                    }
+                }
+                records.flip();
+                writeFully(channel, records);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Return the width and height of the chunks of this world.
+     *
+     * @return the chunk size, in world units
+     */
+    public double getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Return the number of chunks with at least one record.
+     *
+     * @return the number of chunks in this file
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Return the total number of placed spracks in this world.
+     *
+     * @return the number of records in every chunk
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Return the index of the chunk at the given cell.
+     *
+     * @param cellX the x cell of the chunk
+     * @param cellY the y cell of the chunk
+     * @return the index of the chunk, or -1 if no records lie within it
+     */
+    public int findChunk(int cellX, int cellY) {
+        return chunkTable[findSlot(SpatialGrid.getCellKey(cellX, cellY))];
+    }
+
+    /**
+     * Return the index of the chunk table slot holding the given cell key, or
+     * of the empty slot where it would be stored.
+     */
+    private int findSlot(long key) {
+        // Cell keys are already scrambled, so their halves only need folding together
+        int slot = (int) (key ^ (key >>> 32)) & chunkTableMask;
+        while (chunkTable[slot] != -1 && chunkTableKeys[slot] != key) {
+            slot = (slot + 1) & chunkTableMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Return the x cell of the chunk with the given index.
+     *
+     * @param chunk the index of the chunk
+     * @return the left edge of the chunk divided by the chunk size
+     */
+    public int getCellX(int chunk) {
+        return buffer.getInt(indexStart + chunk * CHUNK_ENTRY_SIZE);
+    }
+
+    /**
+     * Return the y cell of the chunk with the given index.
+     *
+     * @param chunk the index of the chunk
+     * @return the top edge of the chunk divided by the chunk size
+     */
+    public int getCellY(int chunk) {
+        return buffer.getInt(indexStart + chunk * CHUNK_ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Return the number of placed spracks in the chunk with the given index.
+     *
+     * @param chunk the index of the chunk
+     * @return the number of records in the chunk
+     */
+    public int getRecordCount(int chunk) {
+        return buffer.getInt(indexStart + chunk * CHUNK_ENTRY_SIZE + 16);
+    }
+
+    /**
+     * Create the spracks placed in the chunk with the given index and add
+     * them to the given list, located and rotated as recorded. This may be
+     * called from any thread.
+     *
+     * @param chunk the index of the chunk
+     * @param factory the way to create a sprack of a sheet, given the sheet's name
+     * @param result the list to add the created spracks to
+     */
+    public void read(int chunk, Function<String, Sprack> factory, List<Sprack> result) {
+        long offset = buffer.getLong(indexStart + chunk * CHUNK_ENTRY_SIZE + 8);
+        int count = getRecordCount(chunk);
+        for (int i = 0; i < count; i++) {
+            int record = (int) (offset + (long) i * RECORD_SIZE);
+            int sheet = buffer.getShort(record) & 0xFFFF;
+            if (sheet >= sheetNames.length) {
+                throw new IllegalStateException("Record refers to sheet " + sheet + " of " + sheetNames.length);
+            }
+            Sprack sprack = factory.apply(sheetNames[sheet]);
+            sprack.setWorldLocation(buffer.getFloat(record + 2), buffer.getFloat(record + 6));
+            sprack.setSpriteRotation(buffer.getFloat(record + 10));
+            result.add(sprack);
+        }
+    }
+}
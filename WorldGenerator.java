@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sets up the starting state of a world from a seed, so that the same seed
+ * always produces the same world.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class WorldGenerator {
+    /** The seed of the world that the scenario starts in. */
+    public static final long DEFAULT_SEED = 20240501L;
+    /** The names of the sheets of every sprack in generated and streamed worlds, to load ahead of them. */
+    public static final List<String> SHEETS = Collections.unmodifiableList(Arrays.asList("car", "crate"));
+    /** The number of crates scattered around the player. */
+    private static final int CRATE_COUNT = 100;
+    /** The width and height of the square of world that crates are scattered over. */
+    private static final int CRATE_AREA_SIZE = 1000;
+    /** The width and height of the chunks of written world files, in world units. */
+    private static final double STREAMED_CHUNK_SIZE = 256.0;
+
+    /**
+     * A way of adding a sprack to a world at a world location.
+     */
+    public interface Placer {
+        /**
+         * Add the given sprack at the given world location.
+         *
+         * @param sprack the sprack to add
+         * @param x the x position to place the sprack at, in world coordinates
+         * @param y the y position to place the sprack at, in world coordinates
+         */
+        void place(Sprack sprack, double x, double y);
+    }
+
+    private final long seed;
+
+    /**
+     * Create a new generator of the world with the given seed.
+     *
+     * @param seed the seed of the world
+     */
+    public WorldGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Return the seed of the world this generator produces.
+     *
+     * @return the seed of the world
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Reset the given camera and add the world's spracks in a fixed order
+     * through the given placer, with a player that the camera follows.
+     *
+     * @param camera the camera to follow the player with
+     * @param placer the way to add each sprack to the world
+     */
+    public void generate(Camera camera, Placer placer) {
+        camera.resetTo(0, 0, 0, 3);
+        camera.setCloseness(0.2);
+
+        Random random = new Random(seed);
+        placer.place(new Player(camera), 0, 0);
+        for (int i = 0; i < CRATE_COUNT; i++) {
+            placer.place(new Crate(), random.nextInt(CRATE_AREA_SIZE) - CRATE_AREA_SIZE / 2,
+                         random.nextInt(CRATE_AREA_SIZE) - CRATE_AREA_SIZE / 2);
+        }
+    }
+
+    /**
+     * Return a new static sprack of the given sheet, to be placed in a
+     * streamed world.
+     *
+     * @param sheetName the name of the sprack's sheet
+     * @return a new sprack of the sheet
+     * @throws IllegalArgumentException if there is no static sprack of the sheet
+     */
+    public static Sprack createStatic(String sheetName) {
+        if ("crate".equals(sheetName)) {
+            return new Crate();
+        }
+        throw new IllegalArgumentException("No static sprack of sheet \"" + sheetName + "\" exists");
+    }
+
+    /**
+     * Write a world file of crates scattered over a square centered on the
+     * origin, at random locations and rotations from this generator's seed,
+     * for a {@link WorldStreamer} to load.
+     *
+     * @param path the path of the world file
+     * @param crateCount the number of crates to place
+     * @param size the width and height of the square of world to scatter crates over
+     * @throws IOException if the file could not be written
+     */
+    public void writeWorld(Path path, int crateCount, double size) throws IOException {
+        Random random = new Random(seed);
+        short[] sheets = new short[crateCount];
+        float[] x = new float[crateCount];
+        float[] y = new float[crateCount];
+        float[] rotation = new float[crateCount];
+        for (int i = 0; i < crateCount; i++) {
+            x[i] = (float) ((random.nextDouble() - 0.5) * size);
+            y[i] = (float) ((random.nextDouble() - 0.5) * size);
+            rotation[i] = (float) (random.nextDouble() * 360.0);
+        }
+        WorldFile.write(path, STREAMED_CHUNK_SIZE, new String[] {"crate"}, crateCount, sheets, x, y, rotation);
+    }
+
+    /**
+     * Write a world file for the scenario to stream, given the path of the
+     * file, the number of crates, and optionally the size of the world and
+     * the seed.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if the file could not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: WorldGenerator FILE CRATES [SIZE [SEED]]");
+            System.exit(2);
+        }
+        int crateCount = Integer.parseInt(args[1]);
+        // Keep the same density of crates as the generated world by default
+        double size = args.length > 2 ? Double.parseDouble(args[2])
+            : CRATE_AREA_SIZE * Math.sqrt((double) crateCount / CRATE_COUNT);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+        new WorldGenerator(seed).writeWorld(Paths.get(args[0]), crateCount, size);
+    }
+}
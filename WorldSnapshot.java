@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A copy of the world locations and rotations of every entity in an
+ * {@link EntityStore} and of the camera of every {@link Viewport} at the end
+ * of a simulation tick.
+ * <p>
+ * Snapshots let a frame be rendered from a consistent state while the next
+ * simulation ticks are already changing the entities themselves.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class WorldSnapshot {
+    private final EntityStore entities;
+    /** The captured state of the camera of each viewport, in the order of the viewports. */
+    private final List<CameraState> cameras;
+
+    /**
+     * Create a new empty snapshot.
+     */
+    public WorldSnapshot() {
+        entities = new EntityStore();
+        cameras = new ArrayList<>();
+    }
+
+    /**
+     * Set this snapshot to the current state of the given entities and of the
+     * cameras of the given viewports. The entity at index i of the store is
+     * stored at index i of this snapshot, and the camera of viewport i is
+     * stored as camera i.
+     *
+     * @param store the entities to copy the state of
+     * @param viewports the viewports whose cameras to copy the state of
+     */
+    public void capture(EntityStore store, List<Viewport> viewports) {
+        entities.copyFrom(store);
+        captureCameras(viewports);
+    }
+
+    /**
+     * Set the cameras of this snapshot to the current state of the cameras
+     * of the given viewports, leaving the entities unchanged.
+     *
+     * @param viewports the viewports whose cameras to copy the state of
+     */
+    public void captureCameras(List<Viewport> viewports) {
+        while (cameras.size() < viewports.size()) {
+            cameras.add(new CameraState());
+        }
+        for (int i = 0; i < viewports.size(); i++) {
+            cameras.get(i).capture(viewports.get(i).getCamera());
+        }
+    }
+
+    /**
+     * Return the number of entities in this snapshot.
+     *
+     * @return the number of entities captured
+     */
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Return the captured state of the entities.
+     *
+     * @return a store holding the captured state of every entity, which must not be modified
+     */
+    public EntityStore getEntities() {
+        return entities;
+    }
+
+    /**
+     * Return the captured x position of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the x position of the entity, in world coordinates
+     */
+    public double getX(int index) {
+        return entities.getX(index);
+    }
+
+    /**
+     * Return the captured y position of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the y position of the entity, in world coordinates
+     */
+    public double getY(int index) {
+        return entities.getY(index);
+    }
+
+    /**
+     * Return the captured rotation of the entity at the given index.
+     *
+     * @param index the index of the entity
+     * @return the rotation angle of the entity, in degrees
+     */
+    public double getRotation(int index) {
+        return entities.getRotation(index);
+    }
+
+    /**
+     * Return the captured state of the camera of the viewport with the given
+     * index.
+     *
+     * @param index the index of the viewport
+     * @return the state of the viewport's camera
+     */
+    public CameraState getCamera(int index) {
+        return cameras.get(index);
+    }
+}
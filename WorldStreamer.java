@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Loads the static spracks of a {@link WorldFile} into a pipeline around the
+ * camera, and removes them again once the camera is far away, so that a world
+ * of any size is held in memory only near the camera.
+ * <p>
+ * Chunks within the load radius of the camera are read and their spracks
+ * created on a loader thread, nearest first, and a limited number of loaded
+ * chunks are added to the pipeline at the start of each frame so that no
+ * single frame does much of the work. Chunks are only evicted once they are
+ * a chunk further away than the load radius, so a camera moving back and
+ * forth across the edge of the radius does not load and evict the same
+ * chunks over and over.
+ * <p>
+ * Streamed spracks collide with moving ones, so the frame at which a chunk is
+ * added changes the simulation. Streamers of recorded or replayed sessions
+ * are therefore made {@link #setSynchronous synchronous}, reading chunks on
+ * the rendering thread so that every run adds them in the same frames.
+ * <p>
+ * Every sprack in a world file must be {@link Sprack#isStatic static}.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class WorldStreamer {
+    /** The default distance from the camera within which chunks are loaded, in world units. */
+    public static final double DEFAULT_LOAD_RADIUS = 1536.0;
+    /** The most loaded chunks added to the pipeline in a single frame. */
+    private static final int MAX_CHUNKS_ADDED_PER_FRAME = 2;
+    /** The most chunks removed from the pipeline in a single frame. */
+    private static final int MAX_CHUNKS_EVICTED_PER_FRAME = 4;
+
+    /** The thread that reads chunks, shared by all streamers. */
+    private static final ExecutorService LOADER_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "World loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The spracks of a chunk read by the loader thread, or the reason they
+     * could not be.
+     */
+    private static class LoadedChunk {
+        private final int chunk;
+        private final List<Sprack> spracks;
+        private final RuntimeException error;
+
+        LoadedChunk(int chunk, List<Sprack> spracks, RuntimeException error) {
+            this.chunk = chunk;
+            this.spracks = spracks;
+            this.error = error;
+        }
+    }
+
+    private final WorldFile file;
+    private final Function<String, Sprack> factory;
+    private final double loadRadius;
+    private final double evictRadius;
+
+    /**
+     * The spracks of every chunk added to the pipeline, indexed by chunk
+     * index, or null for chunks that are not loaded. Chunks are looked up by
+     * index in arrays rather than maps so that checking them every frame does
+     * not box their indices.
+     */
+    private final List<Sprack>[] loaded;
+    /** The indices of the chunks added to the pipeline, in the order they were added. */
+    private int[] loadedChunks;
+    private int loadedChunkCount;
+    /** Whether each chunk is being read by the loader thread, or read but not yet added, indexed by chunk index. */
+    private final boolean[] requested;
+    private int requestedCount;
+    /** The chunks read by the loader thread, waiting to be added to the pipeline. */
+    private final Queue<LoadedChunk> completed;
+    /** The chunks to request in the current frame, reused between frames. */
+    private int[] candidates;
+    /** The spracks to add to or remove from the pipeline in the current frame, reused between frames. */
+    private final List<Sprack> batch;
+    private int loadedSprackCount;
+    /** Whether chunks are read on the rendering thread rather than the loader thread. */
+    private boolean synchronous;
+
+    /**
+     * Create a new streamer of the given world file that loads chunks within
+     * the default radius of the camera.
+     *
+     * @param file the world to stream
+     * @param factory the way to create a static sprack of a sheet, given the sheet's name
+     */
+    public WorldStreamer(WorldFile file, Function<String, Sprack> factory) {
+        this(file, factory, DEFAULT_LOAD_RADIUS);
+    }
+
+    /**
+     * Create a new streamer of the given world file.
+     *
+     * @param file the world to stream
+     * @param factory the way to create a static sprack of a sheet, given the sheet's name
+     * @param loadRadius the distance from the camera within which chunks are loaded, in world units
+     */
+    @SuppressWarnings("unchecked")
+    public WorldStreamer(WorldFile file, Function<String, Sprack> factory, double loadRadius) {
+        this.file = file;
+        this.factory = factory;
+        this.loadRadius = loadRadius;
+        evictRadius = loadRadius + file.getChunkSize();
+        loaded = (List<Sprack>[]) new List<?>[file.getChunkCount()];
+        loadedChunks = new int[16];
+        requested = new boolean[file.getChunkCount()];
+        completed = new ConcurrentLinkedQueue<>();
+        candidates = new int[16];
+        batch = new ArrayList<>();
+    }
+
+    /**
+     * Set whether chunks are read on the thread that calls {@link #update}
+     * rather than on the loader thread. Synchronous chunks are read in the
+     * frame in which they come within the load radius and added to the
+     * pipeline from the next frame on, regardless of how long reading takes.
+     *
+     * @param synchronous true to read chunks while updating
+     */
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    /**
+     * Add chunks that have finished loading to the given pipeline, remove
+     * chunks far from the given camera location, and start loading chunks
+     * near it. This must not run while simulation ticks are running.
+     *
+     * @param pipeline the pipeline holding the world's spracks
+     * @param cameraX the x position of the camera, in world coordinates
+     * @param cameraY the y position of the camera, in world coordinates
+     */
+    public void update(FramePipeline pipeline, double cameraX, double cameraY) {
+        // Add and remove the spracks of all chunks at once, since each batch costs a pass over every collision bound
+        batch.clear();
+        for (int added = 0; added < MAX_CHUNKS_ADDED_PER_FRAME; ) {
+            LoadedChunk chunk = completed.poll();
+            if (chunk == null) {
+                break;
+            }
+            requested[chunk.chunk] = false;
+            requestedCount--;
+            if (chunk.error != null) {
+                throw new IllegalStateException("Could not load chunk " + chunk.chunk, chunk.error);
+            }
+            // The camera may have moved away while the chunk was loading
+            if (getDistance(chunk.chunk, cameraX, cameraY) > evictRadius) {
+                continue;
+            }
+            batch.addAll(chunk.spracks);
+            loaded[chunk.chunk] = chunk.spracks;
+            if (loadedChunkCount == loadedChunks.length) {
+                loadedChunks = Arrays.copyOf(loadedChunks, loadedChunkCount * 2);
+            }
+            loadedChunks[loadedChunkCount++] = chunk.chunk;
+            loadedSprackCount += chunk.spracks.size();
+            FrameProfiler.count(FrameProfiler.Counter.CHUNKS_LOADED, 1);
+            added++;
+        }
+        if (!batch.isEmpty()) {
+            pipeline.addStatics(batch);
+        }
+
+        batch.clear();
+        int evicted = 0;
+        for (int i = 0; i < loadedChunkCount && evicted < MAX_CHUNKS_EVICTED_PER_FRAME; ) {
+            int chunk = loadedChunks[i];
+            if (getDistance(chunk, cameraX, cameraY) > evictRadius) {
+                List<Sprack> spracks = loaded[chunk];
+                batch.addAll(spracks);
+                loadedSprackCount -= spracks.size();
+                loaded[chunk] = null;
+                // Keep the remaining chunks in the order they were added
+                System.arraycopy(loadedChunks, i + 1, loadedChunks, i, loadedChunkCount - i - 1);
+                loadedChunkCount--;
+                FrameProfiler.count(FrameProfiler.Counter.CHUNKS_EVICTED, 1);
+                evicted++;
+            } else {
+                i++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            pipeline.removeStatics(batch);
+            batch.clear();
+        }
+
+        requestNear(cameraX, cameraY);
+    }
+
+    /**
+     * Start loading every chunk within the load radius of the given location
+     * that is neither loaded nor being loaded, nearest first.
+     */
+    private void requestNear(double cameraX, double cameraY) {
+        double chunkSize = file.getChunkSize();
+        int minCellX = WorldFile.getCell(cameraX - loadRadius, chunkSize);
+        int minCellY = WorldFile.getCell(cameraY - loadRadius, chunkSize);
+        int maxCellX = WorldFile.getCell(cameraX + loadRadius, chunkSize);
+        int maxCellY = WorldFile.getCell(cameraY + loadRadius, chunkSize);
+        int candidateCount = 0;
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                int chunk = file.findChunk(cellX, cellY);
+                if (chunk >= 0 && loaded[chunk] == null && !requested[chunk]
+                    && getDistance(chunk, cameraX, cameraY) <= loadRadius) {
+                    if (candidateCount == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                    }
+                    // Insertion sort by distance, since only a few chunks come within range at a time
+                    double distance = getDistance(chunk, cameraX, cameraY);
+                    int i = candidateCount++;
+                    while (i > 0 && getDistance(candidates[i - 1], cameraX, cameraY) > distance) {
+                        candidates[i] = candidates[i - 1];
+                        i--;
+                    }
+                    candidates[i] = chunk;
+                }
+            }
+        }
+        for (int i = 0; i < candidateCount; i++) {
+            int chunk = candidates[i];
+            requested[chunk] = true;
+            requestedCount++;
+            if (synchronous) {
+                load(chunk);
+            } else {
+                LOADER_EXECUTOR.execute(() -> load(chunk));
+            }
+        }
+    }
+
+    /**
+     * Read the spracks of a chunk on the loader thread, or the rendering
+     * thread if synchronous, and queue them to be added to the pipeline.
+     */
+    private void load(int chunk) {
+        try {
+            List<Sprack> spracks = new ArrayList<>(file.getRecordCount(chunk));
+            file.read(chunk, factory, spracks);
+            for (int i = 0; i < spracks.size(); i++) {
+                if (!spracks.get(i).isStatic()) {
+                    throw new IllegalStateException("Streamed sprack " + spracks.get(i) + " is not static");
+                }
+            }
+            completed.add(new LoadedChunk(chunk, spracks, null));
+        } catch (RuntimeException e) {
+            // Report the failure on the rendering thread, where it can be seen
+            completed.add(new LoadedChunk(chunk, null, e));
+        }
+    }
+
+    /**
+     * Return the distance from the given location to the nearest point of
+     * the chunk with the given index, in world units.
+     */
+    private double getDistance(int chunk, double x, double y) {
+        double chunkSize = file.getChunkSize();
+        double left = file.getCellX(chunk) * chunkSize;
+        double top = file.getCellY(chunk) * chunkSize;
+        double dx = Math.max(0.0, Math.max(left - x, x - (left + chunkSize)));
+        double dy = Math.max(0.0, Math.max(top - y, y - (top + chunkSize)));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Return the number of chunks whose spracks are in the pipeline.
+     *
+     * @return the number of loaded chunks
+     */
+    public int getLoadedChunkCount() {
+        return loadedChunkCount;
+    }
+
+    /**
+     * Return the number of spracks of this world in the pipeline.
+     *
+     * @return the number of spracks in loaded chunks
+     */
+    public int getLoadedSprackCount() {
+        return loadedSprackCount;
+    }
+
+    /**
+     * Return the number of chunks being loaded or waiting to be added to the
+     * pipeline.
+     *
+     * @return the number of requested chunks
+     */
+    public int getPendingChunkCount() {
+        return requestedCount;
+    }
+}
@@ -0,0 +1,54 @@
+package gfss;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of a whole frame, including simulation ticks, culling, sorting and
+ * drawing, for worlds of crates of different sizes. Crates are spread out in
+ * proportion to their number, so about the same number are on the screen at
+ * every size and the difference shows the cost of the crates that are not.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FrameBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int crates;
+
+    @Param({"GREENFOOT", "GREENFOOT_UNTILED", "FRAMEBUFFER", "RASTER_NEAREST"})
+    public String renderer;
+
+    @Param({"3.0"})
+    public double zoom;
+
+    private IntSupplier frame;
+
+    @Setup
+    public void setUp() {
+        frame = Scenes.create(IntSupplier.class, "frame", new Class<?>[] {int.class, String.class, double.class},
+                              crates, renderer, zoom);
+    }
+
+    @Benchmark
+    public int frame() {
+        return frame.getAsInt();
+    }
+}
@@ -0,0 +1,36 @@
+package gfss;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Access to the methods of BenchmarkScenes, which is in the default package
+ * and so cannot be referred to from here by name.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+final class Scenes {
+    // Don't let anyone instantiate this class
+    private Scenes() {}
+
+    /**
+     * Call the static method of BenchmarkScenes with the given name and
+     * parameter types, and return its result.
+     *
+     * @param type the type of the result
+     * @param name the name of the method
+     * @param parameterTypes the types of the method's parameters
+     * @param arguments the arguments to call the method with
+     * @return the result of the method
+     */
+    static <T> T create(Class<T> type, String name, Class<?>[] parameterTypes, Object... arguments) {
+        try {
+            Class<?> scenes = Class.forName("BenchmarkScenes");
+            return type.cast(scenes.getMethod(name, parameterTypes).invoke(null, arguments));
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not set up scene " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkScenes." + name + " is missing", e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package gfss;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the per-sprite work of a frame: looking up a scaled image,
+ * transforming and drawing a single sprack through Greenfoot or straight
+ * into the canvas pixels, and normalizing an angle.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SpriteBenchmark {
+    @Param({"1.0", "3.0"})
+    public double zoom;
+
+    private IntSupplier transformedImage;
+    private IntSupplier blitSprite;
+    private IntSupplier blitSpriteDirect;
+    private DoubleUnaryOperator normalizeAngle;
+    private double angle;
+
+    @Setup
+    public void setUp() {
+        transformedImage = Scenes.create(IntSupplier.class, "transformedImage", new Class<?>[] {double.class}, zoom);
+        blitSprite = Scenes.create(IntSupplier.class, "blitSprite", new Class<?>[] {double.class}, zoom);
+        blitSpriteDirect = Scenes.create(IntSupplier.class, "blitSpriteDirect", new Class<?>[] {double.class}, zoom);
+        normalizeAngle = Scenes.create(DoubleUnaryOperator.class, "normalizeAngle", new Class<?>[0]);
+    }
+
+    @Benchmark
+    public int getTransformedImage() {
+        return transformedImage.getAsInt();
+    }
+
+    @Benchmark
+    public int transformAndBlit() {
+        return blitSprite.getAsInt();
+    }
+
+    @Benchmark
+    public int transformAndBlitDirect() {
+        return blitSpriteDirect.getAsInt();
+    }
+
+    @Benchmark
+    public double normalizeAngle() {
+        // Step by an amount that leaves the range in both directions over time
+        angle += 137.5;
+        return normalizeAngle.applyAsDouble(angle - 540.0);
+    }
+}
@@ -0,0 +1,47 @@
+package gfss;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time taken to build the whole image cache of a view of each sheet.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ViewCacheBenchmark {
+    /** The name of the sheet and its number of layers. */
+    @Param({"crate:16", "car:9"})
+    public String sheet;
+
+    private IntSupplier build;
+
+    @Setup
+    public void setUp() {
+        String[] parts = sheet.split(":");
+        build = Scenes.create(IntSupplier.class, "buildView", new Class<?>[] {String.class, int.class},
+                              parts[0], Integer.parseInt(parts[1]));
+    }
+
+    @Benchmark
+    public int buildCache() {
+        return build.getAsInt();
+    }
+}
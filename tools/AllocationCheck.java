@@ -0,0 +1,203 @@
+import greenfoot.*;
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A command-line check that steady-state frames of a {@link FramePipeline}
+ * drawn with {@link FramebufferRenderer}s allocate nothing, measured with the
+ * JVM's per-thread allocation counters.
+ * <p>
+ * The check sets up the generated world, streams a world file of crates
+ * around it, and shows a minimap so that two viewports are drawn at the same
+ * time. The player turns on the spot every tick, so every frame culls, sorts
+ * and draws the crates at new angles, but no new chunks come within range.
+ * Enough crates circle around the player for sprites to be updated in
+ * parallel, so every tick also moves spracks through the spatial grid and
+ * the broadphase.
+ * Frames are first run until the player has turned all the way around
+ * several times and every angle of every sheet is read into the cache, so
+ * that only steady-state frames are measured.
+ * <p>
+ * The rendering thread, the simulation thread, and the worker threads that
+ * update sprites and draw viewports are measured and checked separately.
+ * These allocations are known and left out of the check:
+ * <ul>
+ * <li>when a thread has to wait for a fork-join task that a worker stole,
+ * the common pool allocates a small node to wait on, so each thread may
+ * allocate up to {@link #MAX_BYTES_PER_FRAME} on average. Running with a
+ * common pool parallelism of 0 shows that nothing else is allocated;</li>
+ * <li>recording input with an {@link InputRecorder} copies every frame's
+ * input into its trace, so recording is opt-in;</li>
+ * <li>chunks coming within range of a {@link WorldStreamer} allocate their
+ * spracks and a task to load them;</li>
+ * <li>an angle being used for the first time or after being evicted from
+ * the view cache, a sheet finishing loading, a renderer's buffers growing,
+ * and viewports being added or removed allocate once.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code AllocationCheck [CRATES] [FRAMES]}. Run with
+ * java.awt.headless set. Exits with status 1 if any of the measured threads
+ * allocated more than {@link #MAX_BYTES_PER_FRAME} on average.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class AllocationCheck {
+    private static final int CANVAS_WIDTH = 600;
+    private static final int CANVAS_HEIGHT = 400;
+    /** The number of frames to draw before measuring, enough for the player to turn around several times. */
+    private static final int WARMUP_FRAMES = 4000;
+    /** The most bytes a thread may allocate per frame on average, which only fork-join wait nodes fit in. */
+    private static final double MAX_BYTES_PER_FRAME = 1.0;
+    /** The number of crates circling around the player, enough for sprites to be updated in parallel. */
+    private static final int CIRCLING_CRATES = FramePipeline.PARALLEL_UPDATE_THRESHOLD;
+    /** The distance between the centres of the circles of neighbouring circling crates, in world units. */
+    private static final double CIRCLING_SPACING = 48.0;
+
+    // Don't let anyone instantiate this class
+    private AllocationCheck() {}
+
+    public static void main(String[] args) throws IOException {
+        int crateCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM does not count allocated memory per thread");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // Set the world up the same way as ReplayRunner does, with a streamed world and a minimap
+        Sprack.getAssets().load(WorldGenerator.SHEETS).join();
+        Camera camera = new Camera();
+        FramePipeline pipeline = new FramePipeline(camera, () -> SpriteStackingWorld.tick(camera));
+        pipeline.setRenderer(new FramebufferRenderer());
+        pipeline.addViewport(new Viewport(new Camera(), new FramebufferRenderer(), 440, 10, 150, 100));
+        new WorldGenerator(WorldGenerator.DEFAULT_SEED).generate(camera, pipeline::add);
+        int columns = (int) Math.ceil(Math.sqrt(CIRCLING_CRATES));
+        for (int i = 0; i < CIRCLING_CRATES; i++) {
+            double x = camera.getX() + (i % columns - columns / 2) * CIRCLING_SPACING;
+            double y = camera.getY() + (i / columns - columns / 2) * CIRCLING_SPACING;
+            pipeline.add(new CirclingCrate(x, y, i * 7.0), x, y);
+        }
+        Path worldFile = Files.createTempFile("gfss", ".gfsw");
+        worldFile.toFile().deleteOnExit();
+        new WorldGenerator(WorldGenerator.DEFAULT_SEED).writeWorld(worldFile, crateCount, 4000.0);
+        WorldStreamer streamer = new WorldStreamer(WorldFile.open(worldFile), WorldGenerator::createStatic);
+        streamer.setSynchronous(true);
+        pipeline.setStreamer(streamer);
+        // Run one tick every frame with the player turning, regardless of the real-time clock
+        FrameInput input = new FrameInput(1, 0.5, FrameInput.getKeyBit("left"), null);
+        pipeline.setInputSource((ticks, alpha) -> input);
+
+        GreenfootImage canvas = new GreenfootImage(CANVAS_WIDTH, CANVAS_HEIGHT);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            pipeline.frame(canvas);
+        }
+        // Moving spracks can still turn to angles not read from the disk cache yet, so read them all now
+        for (String sheet : WorldGenerator.SHEETS) {
+            SprackView view = Sprack.getViewManager().getView(sheet);
+            for (int i = 0; i < view.getAngleCount(); i++) {
+                view.getCachedRegion((i + 0.5) * 360.0 / view.getAngleCount());
+            }
+        }
+
+        // Find the threads to measure before measuring, since finding them allocates
+        long rendering = Thread.currentThread().getId();
+        long[] simulation = findThreads("Simulation");
+        long[] workers = findThreads("ForkJoinPool.commonPool-worker-");
+        long renderingStart = threads.getThreadAllocatedBytes(rendering);
+        long simulationStart = sumAllocatedBytes(threads, simulation);
+        long workersStart = sumAllocatedBytes(threads, workers);
+        long evictedStart = Sprack.getViewManager().getEvictedAngleCount();
+        for (int i = 0; i < frames; i++) {
+            pipeline.frame(canvas);
+        }
+        long renderingBytes = threads.getThreadAllocatedBytes(rendering) - renderingStart;
+        long simulationBytes = sumAllocatedBytes(threads, simulation) - simulationStart;
+        long workerBytes = sumAllocatedBytes(threads, workers) - workersStart;
+        long evicted = Sprack.getViewManager().getEvictedAngleCount() - evictedStart;
+
+        System.out.printf("%d streamed spracks in %d chunks, %d circling crates, 2 viewports%n",
+                          streamer.getLoadedSprackCount(), streamer.getLoadedChunkCount(), CIRCLING_CRATES);
+        boolean passed = report("rendering thread", renderingBytes, frames, 1);
+        passed &= report("simulation thread", simulationBytes, frames, simulation.length);
+        passed &= report("worker threads", workerBytes, frames, workers.length);
+        System.out.printf("%d angles evicted from the view cache%n", evicted);
+        // Background cache building threads would otherwise keep running
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Print the number of bytes allocated by a group of threads, and return
+     * whether it is within {@link #MAX_BYTES_PER_FRAME} per thread on average.
+     */
+    private static boolean report(String name, long bytes, int frames, int threadCount) {
+        System.out.printf("%s: %d bytes allocated over %d frames (%.1f bytes/frame)%n",
+                          name, bytes, frames, (double) bytes / frames);
+        return (double) bytes / frames <= MAX_BYTES_PER_FRAME * Math.max(1, threadCount);
+    }
+
+    /**
+     * Return the IDs of the live threads whose names start with any of the given prefixes.
+     */
+    private static long[] findThreads(String... prefixes) {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> {
+                for (String prefix : prefixes) {
+                    if (thread.getName().startsWith(prefix)) {
+                        return true;
+                    }
+                }
+                return false;
+            })
+            .mapToLong(Thread::getId)
+            .toArray();
+    }
+
+    /**
+     * Return the total number of bytes allocated by the given threads so far,
+     * without allocating. Threads that have ended are not counted.
+     */
+    private static long sumAllocatedBytes(ThreadMXBean threads, long[] ids) {
+        long total = 0;
+        for (long id : ids) {
+            total += Math.max(0, threads.getThreadAllocatedBytes(id));
+        }
+        return total;
+    }
+
+    /**
+     * A crate that circles around where it was added, turning as it goes,
+     * so that it moves every tick.
+     */
+    private static class CirclingCrate extends Sprack {
+        /** The radius of the circle, in world units. */
+        private static final double RADIUS = 8.0;
+        /** The angle turned every tick, in degrees. */
+        private static final double SPEED = 3.0;
+
+        private final double centerX;
+        private final double centerY;
+        private double angle;
+
+        CirclingCrate(double centerX, double centerY, double angle) {
+            super("crate");
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.angle = angle;
+        }
+
+        @Override
+        public void update() {
+            angle += SPEED;
+            double rad = Math.toRadians(angle);
+            setWorldLocation(centerX + RADIUS * Math.cos(rad), centerY + RADIUS * Math.sin(rad));
+            setSpriteRotation(angle);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import greenfoot.*;
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntSupplier;
+
+/**
+ * The scenes timed by {@link RendererBenchmark} and by the JMH suite in the
+ * benchmarks directory, set up in one place so that their numbers can be
+ * compared.
+ * <p>
+ * JMH does not allow benchmarks in the default package, and classes in named
+ * packages cannot refer to classes in the default package, so the JMH suite
+ * looks these methods up by name once per trial. Each method does all of its
+ * setup before returning, and returns an operation that does only the work to
+ * be timed, returning a value derived from its result so that the work
+ * cannot be optimized away.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class BenchmarkScenes {
+    public static final int CANVAS_WIDTH = 600;
+    public static final int CANVAS_HEIGHT = 400;
+    /**
+     * The number of crates per square world unit in scenes whose size grows
+     * with their crate count, which keeps about the same number of crates on
+     * the screen at any count.
+     */
+    public static final double CRATE_DENSITY = 0.002;
+    /** The change in rotation between consecutive calls of rotating operations, in degrees. */
+    private static final double ROTATION_STEP = 7.3;
+
+    // Don't let anyone instantiate this class
+    private BenchmarkScenes() {}
+
+    /**
+     * Return the width and height of the square of world that holds the given
+     * number of crates at {@link #CRATE_DENSITY}.
+     *
+     * @param crateCount the number of crates
+     * @return the side length of the square, in world units
+     */
+    public static double getWorldSize(int crateCount) {
+        return Math.sqrt(crateCount / CRATE_DENSITY);
+    }
+
+    /**
+     * Return a new renderer of the given kind.
+     *
+     * @param name one of GREENFOOT, GREENFOOT_UNTILED, FRAMEBUFFER, RASTER_NEAREST, or RASTER_BILINEAR
+     * @return a new renderer
+     */
+    public static FrameRenderer createRenderer(String name) {
+        switch (name) {
+        case "GREENFOOT":
+            return new GreenfootRenderer(true);
+        case "GREENFOOT_UNTILED":
+            return new GreenfootRenderer(false);
+        case "FRAMEBUFFER":
+            return new FramebufferRenderer();
+        case "RASTER_NEAREST":
+            return new RasterRenderer(RasterRenderer.Filter.NEAREST);
+        case "RASTER_BILINEAR":
+            return new RasterRenderer(RasterRenderer.Filter.BILINEAR);
+        default:
+            throw new IllegalArgumentException("Unknown renderer \"" + name + "\"");
+        }
+    }
+
+    /**
+     * Return a new pipeline with the given number of randomly rotated crates
+     * scattered over a square of world centered on the origin.
+     *
+     * @param crateCount the number of crates to add
+     * @param worldSize the width and height of the square to scatter crates over, in world units
+     * @param seed the seed of the random placement
+     * @return a pipeline holding the crates
+     */
+    public static FramePipeline createCrates(int crateCount, double worldSize, long seed) {
+        FramePipeline pipeline = new FramePipeline(() -> {});
+        // Draw the loaded sheet rather than its placeholder
+        Sprack.getAssets().request("crate").join();
+        Random random = new Random(seed);
+        for (int i = 0; i < crateCount; i++) {
+            Crate crate = new Crate();
+            crate.setSpriteRotation(random.nextDouble() * 360.0);
+            pipeline.add(crate, (random.nextDouble() - 0.5) * worldSize, (random.nextDouble() - 0.5) * worldSize);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Return an operation that builds the whole image cache of a new view of
+     * the given sheet on the calling thread, without reading or writing
+     * cache files.
+     *
+     * @param sheetName the name of the sheet's image, without its extension
+     * @param layerCount the number of layers in the sheet
+     * @return an operation returning the number of cached angles
+     */
+    public static IntSupplier buildView(String sheetName, int layerCount) {
+        GreenfootImage sheet = new GreenfootImage(sheetName + ".png");
+        // Use a new atlas for each view so that the pixels of previous views can be freed
+        return () -> new SprackView(sheet, layerCount, SprackView.BuildMode.SERIAL, null,
+                                    new TextureAtlas(SprackView.ATLAS_PAGE_SIZE)).getCachedAngleCount();
+    }
+
+    /**
+     * Return an operation that looks up the scaled image of a crate at the
+     * next of a series of rotations, after filling the scaled image cache.
+     *
+     * @param zoom the zoom factor to scale images by
+     * @return an operation returning the width of the image
+     */
+    public static IntSupplier transformedImage(double zoom) {
+        SprackView view = new SprackView(new GreenfootImage("crate.png"), 16, SprackView.BuildMode.PARALLEL);
+        double[] rotation = new double[1];
+        IntSupplier lookup = () -> {
+            rotation[0] = Vector2.normalizeAngle(rotation[0] + ROTATION_STEP);
+            GreenfootImage image = view.getTransformedImage(rotation[0], zoom);
+            return image == null ? 0 : image.getWidth();
+        };
+        for (int i = 0; i < 360; i++) {
+            lookup.getAsInt();
+        }
+        return lookup;
+    }
+
+    /**
+     * Return an operation that places a single crate on the screen at the
+     * next of a series of rotations and draws it with
+     * {@link Sprack#render}, the per-sprite work of a {@link GreenfootRenderer}
+     * frame.
+     *
+     * @param zoom the zoom factor to draw the crate at
+     * @return an operation returning the width the crate was drawn at
+     */
+    public static IntSupplier blitSprite(double zoom) {
+        Sprack.getAssets().request("crate").join();
+        Crate crate = new Crate();
+        GreenfootImage canvas = new GreenfootImage(CANVAS_WIDTH, CANVAS_HEIGHT);
+        double imageScale = SprackView.quantizeScale(zoom);
+        double[] rotation = new double[1];
+        return () -> {
+            rotation[0] = Vector2.normalizeAngle(rotation[0] + ROTATION_STEP);
+            crate.setScreenState(CANVAS_WIDTH / 2, CANVAS_HEIGHT / 2, rotation[0], zoom, imageScale);
+            crate.render(canvas);
+            return crate.getDrawWidth();
+        };
+    }
+
+    /**
+     * Return an operation that places a single crate on the screen at the
+     * next of a series of rotations and draws it straight into the pixels of
+     * the canvas with {@link Sprack#render(PixelRegion)}, which scales its
+     * cached image as it draws instead of through a scaled copy.
+     *
+     * @param zoom the zoom factor to draw the crate at
+     * @return an operation returning the width the crate was drawn at
+     */
+    public static IntSupplier blitSpriteDirect(double zoom) {
+        Sprack.getAssets().request("crate").join();
+        Crate crate = new Crate();
+        PixelRegion canvas = PixelRegion.wrap(new GreenfootImage(CANVAS_WIDTH, CANVAS_HEIGHT));
+        double imageScale = SprackView.quantizeScale(zoom);
+        double[] rotation = new double[1];
+        return () -> {
+            rotation[0] = Vector2.normalizeAngle(rotation[0] + ROTATION_STEP);
+            crate.setScreenState(CANVAS_WIDTH / 2, CANVAS_HEIGHT / 2, rotation[0], zoom, imageScale);
+            crate.render(canvas);
+            return crate.getDrawWidth();
+        };
+    }
+
+    /**
+     * Return {@link Vector2#normalizeAngle}.
+     *
+     * @return the angle normalization function
+     */
+    public static DoubleUnaryOperator normalizeAngle() {
+        return Vector2::normalizeAngle;
+    }
+
+    /**
+     * Return an operation that renders a whole frame of the given number of
+     * crates, scattered at {@link #CRATE_DENSITY}, including the simulation
+     * ticks that are due. This is the work done by each act of
+     * {@link SpriteStackingWorld}.
+     *
+     * @param crateCount the number of crates in the world
+     * @param rendererName the renderer to draw with, as given to {@link #createRenderer}
+     * @param zoom the zoom factor of the camera
+     * @return an operation returning a pixel of the rendered frame
+     */
+    public static IntSupplier frame(int crateCount, String rendererName, double zoom) {
+        FramePipeline pipeline = createCrates(crateCount, getWorldSize(crateCount), 1);
+        // Limit the zoom factor to what the renderer can draw before placing
+        // the camera, which setting the renderer then captures for interpolation
+        FrameRenderer renderer = createRenderer(rendererName);
+        pipeline.getCamera().setMaxZoom(renderer.getMaxZoom());
+        pipeline.getCamera().resetTo(0, 0, 15, zoom);
+        pipeline.setRenderer(renderer);
+        GreenfootImage canvas = new GreenfootImage(CANVAS_WIDTH, CANVAS_HEIGHT);
+        return () -> {
+            pipeline.frame(canvas);
+            return canvas.getAwtImage().getRGB(CANVAS_WIDTH / 2, CANVAS_HEIGHT / 2);
+        };
+    }
+}
@@ -0,0 +1,113 @@
+import greenfoot.*;
+
+/**
+ * A command-line benchmark comparing the time taken to render frames with
+ * each {@link FrameRenderer}, the memory used by a view's rotated image
+ * cache compared to its layers alone and to its untrimmed images, and the
+ * memory held by the shared {@link ViewCacheManager} when a scene is drawn
+ * with a renderer that uses cached images and with one that does not.
+ * <p>
+ * Run with an optional number of crates to scatter around the camera, and
+ * an optional number of frames to time per configuration. For repeatable
+ * measurements with warmup and forking, use the JMH suite in the benchmarks
+ * directory instead, which times the same {@link BenchmarkScenes}.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class RendererBenchmark {
+    private static final int WARMUP_FRAMES = 50;
+    /** The width and height of the square of world around the camera that crates are scattered in. */
+    private static final double WORLD_SIZE = 1000.0;
+
+    // Don't let anyone instantiate this class
+    private RendererBenchmark() {}
+
+    public static void main(String[] args) {
+        int crateCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        SprackView cached = new SprackView(new GreenfootImage("crate.png"), 16, SprackView.BuildMode.PARALLEL);
+        System.out.printf("crate view: %d bytes of layers, %d bytes of rotated image cache%n",
+                          cached.getLayerBytes(), cached.getCacheBytes());
+        SprackView car = new SprackView(new GreenfootImage("car.png"), 9, SprackView.BuildMode.PARALLEL);
+        System.out.println("crate cache: " + cached.getCacheReport());
+        System.out.println("car cache: " + car.getCacheReport());
+
+        reportManagedMemory(crateCount);
+
+        FrameRenderer[] renderers = {
+            new GreenfootRenderer(true),
+            new GreenfootRenderer(false),
+            new FramebufferRenderer(),
+            new RasterRenderer(RasterRenderer.Filter.NEAREST),
+            new RasterRenderer(RasterRenderer.Filter.BILINEAR),
+        };
+        for (double zoom : new double[] {1.0, 3.0, 8.0, 16.0}) {
+            for (FrameRenderer renderer : renderers) {
+                if (zoom > renderer.getMaxZoom()) {
+                    continue;
+                }
+                System.out.printf("%-20s zoom %4.1f: %.3f ms/frame%n", describe(renderer), zoom,
+                                  timeFrames(renderer, crateCount, zoom, frames));
+            }
+        }
+        // Background cache building threads would otherwise keep running
+        System.exit(0);
+    }
+
+    /**
+     * Print the memory held by the shared view cache manager after drawing a
+     * scene of crates with the rasterizer alone, which reads no cached
+     * images, and then with the default renderer, which does.
+     */
+    private static void reportManagedMemory(int crateCount) {
+        ViewCacheManager manager = Sprack.getViewManager();
+        FramePipeline pipeline = BenchmarkScenes.createCrates(crateCount, WORLD_SIZE, 1);
+        GreenfootImage canvas = new GreenfootImage(BenchmarkScenes.CANVAS_WIDTH, BenchmarkScenes.CANVAS_HEIGHT);
+        FrameRenderer[] renderers = {new RasterRenderer(RasterRenderer.Filter.NEAREST), new GreenfootRenderer()};
+        for (FrameRenderer renderer : renderers) {
+            pipeline.setRenderer(renderer);
+            pipeline.getCamera().resetTo(0, 0, 15, 1.0);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                pipeline.frame(canvas);
+            }
+            System.out.printf("%-20s managed cache: %d bytes (%d in angles, %d in scaled images, %d charged)%n",
+                              describe(renderer), manager.getUsedBytes(), manager.getAngleBytes(),
+                              manager.getScaledImageBytes(), manager.getChargedBytes());
+        }
+    }
+
+    /**
+     * Return a short name for the given renderer.
+     */
+    private static String describe(FrameRenderer renderer) {
+        String name = renderer.getClass().getSimpleName();
+        if (renderer instanceof RasterRenderer) {
+            return name + " " + ((RasterRenderer) renderer).getFilter();
+        }
+        if (renderer instanceof GreenfootRenderer && !renderer.drawsStaticTiles()) {
+            return name + " UNTILED";
+        }
+        return name;
+    }
+
+    /**
+     * Return the average time taken to render a frame of randomly rotated
+     * crates with the given renderer and zoom factor, in milliseconds.
+     */
+    private static double timeFrames(FrameRenderer renderer, int crateCount, double zoom, int frames) {
+        FramePipeline pipeline = BenchmarkScenes.createCrates(crateCount, WORLD_SIZE, 1);
+        pipeline.setRenderer(renderer);
+        pipeline.getCamera().resetTo(0, 0, 15, zoom);
+        GreenfootImage canvas = new GreenfootImage(BenchmarkScenes.CANVAS_WIDTH, BenchmarkScenes.CANVAS_HEIGHT);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            pipeline.frame(canvas);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            pipeline.frame(canvas);
+        }
+        return (System.nanoTime() - start) / 1e6 / frames;
+    }
+}
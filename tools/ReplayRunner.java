@@ -0,0 +1,164 @@
+import greenfoot.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A command-line runner that replays a session recorded by
+ * {@link SpriteStackingWorld} without Greenfoot's window, timing each frame
+ * and taking a checksum of each rendered frame.
+ * <p>
+ * Because replayed frames run exactly the recorded ticks with exactly the
+ * recorded input, two runs of the same trace render the same frames, and
+ * runs with different renderers can be compared for speed and for pixel
+ * equality. So that every renderer sees the same camera, the zoom factor is
+ * always limited to {@link SprackView#IMAGE_CACHE_SCALE}; sessions recorded
+ * while zoomed further in with a {@link RasterRenderer} will not replay
+ * exactly. The world file streamed in the recorded session, if any, is
+ * streamed again, synchronously as when it was recorded.
+ * <p>
+ * Usage: {@code ReplayRunner TRACE [RENDERER|ALL] [FRAMES] [CSV]}, where
+ * RENDERER is one of the names accepted by
+ * {@link BenchmarkScenes#createRenderer} (GREENFOOT by default), FRAMES
+ * limits the number of frames replayed, and CSV is a file to write the
+ * timing and checksum of every frame to. Run with java.awt.headless set.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class ReplayRunner {
+    private static final int CANVAS_WIDTH = 600;
+    private static final int CANVAS_HEIGHT = 400;
+    private static final String[] ALL_RENDERERS = {"GREENFOOT_UNTILED", "GREENFOOT", "FRAMEBUFFER", "RASTER_NEAREST", "RASTER_BILINEAR"};
+
+    // Don't let anyone instantiate this class
+    private ReplayRunner() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayRunner TRACE [RENDERER|ALL] [FRAMES] [CSV]");
+            System.exit(2);
+        }
+        InputTrace trace = InputTrace.load(Paths.get(args[0]));
+        String rendererName = args.length > 1 ? args[1] : "GREENFOOT";
+        int maxFrames = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+        Path csv = args.length > 3 ? Paths.get(args[3]) : null;
+
+        if (rendererName.equals("ALL")) {
+            // Compare every renderer's frames to the first renderer's
+            long[] reference = null;
+            for (String name : ALL_RENDERERS) {
+                long[] checksums = replay(trace, name, maxFrames, null);
+                if (reference == null) {
+                    reference = checksums;
+                } else {
+                    int differing = 0;
+                    for (int i = 0; i < checksums.length; i++) {
+                        if (checksums[i] != reference[i]) {
+                            differing++;
+                        }
+                    }
+                    System.out.printf("%s: %d of %d frames differ from %s%n", name, differing, checksums.length, ALL_RENDERERS[0]);
+                }
+            }
+        } else {
+            replay(trace, rendererName, maxFrames, csv);
+        }
+        // Background cache building threads would otherwise keep running
+        System.exit(0);
+    }
+
+    /**
+     * Replay the given trace in a newly generated world with the given
+     * renderer, print a summary of frame times, and return the checksum of
+     * every frame.
+     */
+    private static long[] replay(InputTrace trace, String rendererName, int maxFrames, Path csv) throws IOException {
+        int frames = Math.min(trace.size(), maxFrames);
+        long[] nanos = new long[frames];
+        long[] ticks = new long[frames];
+        long[] checksums = new long[frames];
+
+        // Set the world up the same way as SpriteStackingWorld does, but
+        // without placeholders, so that every replay draws the same frames
+        Sprack.getAssets().load(WorldGenerator.SHEETS).join();
+        Camera camera = new Camera();
+        FramePipeline pipeline = new FramePipeline(camera, () -> SpriteStackingWorld.tick(camera));
+        pipeline.setRenderer(BenchmarkScenes.createRenderer(rendererName));
+        camera.setMaxZoom(SprackView.IMAGE_CACHE_SCALE);
+        InputReplay replay = new InputReplay(trace);
+        pipeline.setInputSource(replay);
+        new WorldGenerator(trace.getSeed()).generate(camera, pipeline::add);
+        if (trace.getWorldFile() != null) {
+            // Stream the recorded world the same way as it was recorded, adding chunks in the same frames
+            WorldStreamer streamer = new WorldStreamer(WorldFile.open(trace.getWorldFile()), WorldGenerator::createStatic);
+            streamer.setSynchronous(true);
+            pipeline.setStreamer(streamer);
+        }
+
+        GreenfootImage canvas = new GreenfootImage(CANVAS_WIDTH, CANVAS_HEIGHT);
+        for (int i = 0; i < frames; i++) {
+            ticks[i] = trace.get(i).getTicks();
+            long start = System.nanoTime();
+            pipeline.frame(canvas);
+            nanos[i] = System.nanoTime() - start;
+            checksums[i] = checksum(canvas);
+        }
+
+        if (csv != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+                writer.write("frame,ticks,nanos,checksum");
+                writer.newLine();
+                for (int i = 0; i < frames; i++) {
+                    writer.write(i + "," + ticks[i] + "," + nanos[i] + "," + Long.toHexString(checksums[i]));
+                    writer.newLine();
+                }
+            }
+        }
+
+        long total = 0;
+        long sessionChecksum = 0;
+        for (int i = 0; i < frames; i++) {
+            total += nanos[i];
+            sessionChecksum = sessionChecksum * 31 + checksums[i];
+        }
+        long[] sorted = Arrays.copyOf(nanos, frames);
+        Arrays.sort(sorted);
+        System.out.printf("%s: %d frames, mean %.3f ms, p50 %.3f ms, p95 %.3f ms, max %.3f ms, last frame %016x, session %016x%n",
+                          rendererName, frames, frames == 0 ? 0.0 : total / 1e6 / frames,
+                          percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 1.0),
+                          frames == 0 ? 0 : checksums[frames - 1], sessionChecksum);
+        return checksums;
+    }
+
+    /**
+     * Return the given fraction of the way through the given sorted frame
+     * times, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * Return a checksum of the colors of every pixel of the given image.
+     */
+    private static long checksum(GreenfootImage image) {
+        PixelRegion pixels = PixelRegion.of(image);
+        long checksum = 0;
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            int row = pixels.getOffset() + y * pixels.getStride();
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                checksum = checksum * 31 + pixels.getPixels()[row + x];
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,97 @@
+import greenfoot.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A command-line check that a {@link ViewCacheManager} evicts the least
+ * recently used angles of its views once they pass its budget.
+ * <p>
+ * A view of a plain sheet is given a budget of a few of its angles, then
+ * angles are drawn in a random order with repeats. After each one, the drawn
+ * angle must still be cached, usage must be within the budget, and every
+ * cached angle must have been drawn more recently than every angle that was
+ * evicted.
+ * <p>
+ * Usage: {@code ViewCacheCheck [ANGLES_IN_BUDGET] [STEPS]}. Run with
+ * java.awt.headless set. Exits with status 1 if the order is not kept.
+ *
+ * @author Martin Baldwin
+ * @version May 2024
+ */
+public class ViewCacheCheck {
+    private static final int LAYER_SIZE = 12;
+    private static final int LAYER_COUNT = 4;
+
+    // Don't let anyone instantiate this class
+    private ViewCacheCheck() {}
+
+    public static void main(String[] args) {
+        double anglesInBudget = args.length > 0 ? Double.parseDouble(args[0]) : 2.5;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        GreenfootImage sheet = new GreenfootImage(LAYER_SIZE, LAYER_SIZE * LAYER_COUNT);
+        sheet.setColor(new Color(200, 120, 40));
+        sheet.fill();
+        // Find the size of the largest angle, so that the budget always holds more than one
+        ViewCacheManager unbounded = new ViewCacheManager(Long.MAX_VALUE, SprackView.BuildMode.ON_DEMAND, null);
+        SprackView measured = unbounded.register("check", sheet, LAYER_COUNT);
+        long largest = 0;
+        for (int i = 0; i < measured.getAngleCount(); i++) {
+            long before = unbounded.getUsedBytes();
+            measured.getCachedRegion(getRotation(measured, i));
+            largest = Math.max(largest, unbounded.getUsedBytes() - before);
+        }
+
+        long budget = (long) (largest * anglesInBudget);
+        ViewCacheManager manager = new ViewCacheManager(budget, SprackView.BuildMode.ON_DEMAND, null);
+        SprackView view = manager.register("check", sheet, LAYER_COUNT);
+        int angleCount = view.getAngleCount();
+        // The step at which each angle was last drawn, or -1 if never
+        long[] lastDrawn = new long[angleCount];
+        Arrays.fill(lastDrawn, -1);
+        // Draw from a small working set most of the time, so that some angles are reused before eviction
+        Random random = new Random(1);
+        int failures = 0;
+        for (int step = 0; step < steps; step++) {
+            int angle = random.nextInt(4) == 0 ? random.nextInt(angleCount) : random.nextInt(Math.min(angleCount, 6));
+            // Each step stands for a frame that draws one angle
+            manager.advanceEpoch();
+            view.getCachedRegion(getRotation(view, angle));
+            lastDrawn[angle] = step;
+
+            long oldestCached = Long.MAX_VALUE;
+            long newestEvicted = -1;
+            for (int i = 0; i < angleCount; i++) {
+                if (view.getAngleLastUsed(i) >= 0) {
+                    oldestCached = Math.min(oldestCached, lastDrawn[i]);
+                } else {
+                    newestEvicted = Math.max(newestEvicted, lastDrawn[i]);
+                }
+            }
+            String problem = null;
+            if (view.getAngleLastUsed(angle) < 0) {
+                problem = "angle " + angle + " was evicted as soon as it was drawn";
+            } else if (manager.getUsedBytes() > budget) {
+                problem = manager.getUsedBytes() + " bytes used over a budget of " + budget;
+            } else if (newestEvicted > oldestCached) {
+                problem = "an angle drawn at step " + newestEvicted + " was evicted before one drawn at step " + oldestCached;
+            }
+            if (problem != null) {
+                failures++;
+                if (failures <= 10) {
+                    System.out.println("step " + step + ": " + problem);
+                }
+            }
+        }
+        System.out.printf("%d steps over %d angles with a budget of %.1f angles: %d evicted, %d failures%n",
+                          steps, angleCount, anglesInBudget, manager.getEvictedAngleCount(), failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Return a rotation in the middle of the given cached angle of the given view.
+     */
+    private static double getRotation(SprackView view, int angle) {
+        return (angle + 0.5) * 360.0 / view.getAngleCount();
+    }
+}